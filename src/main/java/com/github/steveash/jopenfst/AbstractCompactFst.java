@@ -0,0 +1,435 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Base class for the read-only FSTs that store their states and arcs in compressed-sparse-row (CSR) form: the arcs
+ * of state `s` are the (global) arc indexes `[arcOffset(s), arcOffset(s + 1))`. Subclasses decide where the primitive
+ * values actually live (on heap arrays, memory mapped buffers, etc.)
+ * <p>
+ * The State and Arc instances returned by these FSTs are lightweight views that are created on demand, so they are
+ * cheap but they are _not_ identity stable (i.e. two calls to `getState(1)` return equal but different instances).
+ *
+ * @author Steve Ash
+ * @see CompactFst
+ * @see MappedFst
+ */
+public abstract class AbstractCompactFst implements Fst {
+
+  private final Semiring semiring;
+  private final int startId;
+  private final ImmutableSymbolTable itable;
+  private final ImmutableSymbolTable otable;
+  private final ImmutableSymbolTable stable;
+  // whether any arc has an input (resp. output) epsilon; computed on first use: 0 = not yet, 1 = no, 2 = yes
+  private volatile byte inputEpsilons = 0;
+  private volatile byte outputEpsilons = 0;
+
+  protected AbstractCompactFst(Semiring semiring, int startId, ImmutableSymbolTable itable,
+                               ImmutableSymbolTable otable, @Nullable ImmutableSymbolTable stable) {
+    this.semiring = semiring;
+    this.startId = startId;
+    this.itable = itable;
+    this.otable = otable;
+    this.stable = stable;
+  }
+
+  /**
+   * The total number of arcs across all states
+   * @return
+   */
+  public abstract int getArcCount();
+
+  /**
+   * Returns true if any arc has an epsilon input label; this scans the arcs the first time it's called and then
+   * remembers the answer (which is fine as these can't be changed)
+   * @return
+   */
+  public boolean hasInputEpsilons() {
+    if (inputEpsilons == 0) {
+      inputEpsilons = (byte) (scanForEpsilon(itable, true) ? 2 : 1);
+    }
+    return inputEpsilons == 2;
+  }
+
+  /**
+   * Returns true if any arc has an epsilon output label; see `hasInputEpsilons`
+   * @return
+   */
+  public boolean hasOutputEpsilons() {
+    if (outputEpsilons == 0) {
+      outputEpsilons = (byte) (scanForEpsilon(otable, false) ? 2 : 1);
+    }
+    return outputEpsilons == 2;
+  }
+
+  private boolean scanForEpsilon(SymbolTable syms, boolean input) {
+    if (!syms.contains(Fst.EPS)) {
+      return false;
+    }
+    int eps = syms.get(Fst.EPS);
+    int arcCount = getArcCount();
+    for (int i = 0; i < arcCount; i++) {
+      if ((input ? ilabelAt(i) : olabelAt(i)) == eps) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The final weight of the given state id
+   */
+  protected abstract double finalWeightAt(int stateId);
+
+  /**
+   * The global index of the first arc of the given state id; `arcOffsetAt(getStateCount())` must be the total arc count
+   */
+  protected abstract int arcOffsetAt(int stateId);
+
+  protected abstract int ilabelAt(int arcIndex);
+
+  protected abstract int olabelAt(int arcIndex);
+
+  protected abstract int nextStateAt(int arcIndex);
+
+  protected abstract double weightAt(int arcIndex);
+
+  @Override
+  public CompactState getStartState() {
+    return getState(startId);
+  }
+
+  @Override
+  public Semiring getSemiring() {
+    return semiring;
+  }
+
+  @Override
+  public CompactState getState(int index) {
+    Preconditions.checkElementIndex(index, getStateCount(), "state index");
+    return new CompactState(index);
+  }
+
+  @Override
+  public CompactState getState(String name) {
+    Preconditions.checkState(stable != null, "cant use get by name if not using state symols");
+    return getState(stable.get(name));
+  }
+
+  @Override
+  public ImmutableSymbolTable getInputSymbols() {
+    return itable;
+  }
+
+  @Override
+  public ImmutableSymbolTable getOutputSymbols() {
+    return otable;
+  }
+
+  @Nullable
+  @Override
+  public ImmutableSymbolTable getStateSymbols() {
+    return stable;
+  }
+
+  @Override
+  public boolean isUsingStateSymbols() {
+    return stable != null;
+  }
+
+  @Override
+  public int getInputSymbolCount() {
+    return itable.size();
+  }
+
+  @Override
+  public int getOutputSymbolCount() {
+    return otable.size();
+  }
+
+  @Override
+  public int lookupInputSymbol(String symbol) {
+    return itable.get(symbol);
+  }
+
+  @Override
+  public int lookupOutputSymbol(String symbol) {
+    return otable.get(symbol);
+  }
+
+  @Override
+  public void throwIfInvalid() {
+    // cant even construct an invalid compact fst
+  }
+
+  @Override
+  public double getFinalWeight(int stateId) {
+    Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+    return finalWeightAt(stateId);
+  }
+
+  @Override
+  public CompactArcCursor newArcCursor() {
+    return new CompactArcCursor();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return FstUtils.fstEquals(this, obj);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = semiring != null ? semiring.hashCode() : 0;
+    result = 31 * result + startId;
+    result = 31 * result + getStateCount();
+    result = 31 * result + getArcCount();
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(start=" + startId + ", states=" + getStateCount() + ", arcs=" +
+           getArcCount() + ", isyms=" + itable + ", osyms=" + otable + ", semiring=" + semiring + ")";
+  }
+
+  /**
+   * Arc cursor that reads the primitives directly by global arc index
+   */
+  public class CompactArcCursor implements ArcCursor {
+
+    private int stateId = -1;
+    private int arcIndex;
+    private int start;
+    private int end;
+
+    private CompactArcCursor() {
+    }
+
+    @Override
+    public void reset(int stateId) {
+      Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+      this.stateId = stateId;
+      this.start = arcOffsetAt(stateId);
+      this.end = arcOffsetAt(stateId + 1);
+      this.arcIndex = start - 1;
+    }
+
+    @Override
+    public boolean next() {
+      arcIndex += 1;
+      if (arcIndex < end) {
+        return true;
+      }
+      arcIndex = end;
+      return false;
+    }
+
+    @Override
+    public boolean seek(int ilabel) {
+      int lo = start;
+      int hi = end;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (ilabelAt(mid) < ilabel) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      arcIndex = lo - 1;
+      return lo < end && ilabelAt(lo) == ilabel;
+    }
+
+    @Override
+    public int stateId() {
+      return stateId;
+    }
+
+    @Override
+    public int arcCount() {
+      return end - start;
+    }
+
+    @Override
+    public double finalWeight() {
+      return finalWeightAt(stateId);
+    }
+
+    @Override
+    public int ilabel() {
+      return ilabelAt(arcIndex);
+    }
+
+    @Override
+    public int olabel() {
+      return olabelAt(arcIndex);
+    }
+
+    @Override
+    public double weight() {
+      return weightAt(arcIndex);
+    }
+
+    @Override
+    public int nextStateId() {
+      return nextStateAt(arcIndex);
+    }
+  }
+
+  /**
+   * View of a single state in the compact fst; holds nothing but the state id
+   */
+  public class CompactState implements State {
+
+    private final int id;
+
+    private CompactState(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public double getFinalWeight() {
+      return finalWeightAt(id);
+    }
+
+    @Override
+    public int getId() {
+      return id;
+    }
+
+    @Override
+    public int getArcCount() {
+      return arcOffsetAt(id + 1) - arcOffsetAt(id);
+    }
+
+    @Override
+    public CompactArc getArc(int index) {
+      Preconditions.checkElementIndex(index, getArcCount(), "arc index");
+      return new CompactArc(arcOffsetAt(id) + index);
+    }
+
+    @Override
+    public List<CompactArc> getArcs() {
+      return new AbstractList<CompactArc>() {
+        @Override
+        public CompactArc get(int index) {
+          return getArc(index);
+        }
+
+        @Override
+        public int size() {
+          return getArcCount();
+        }
+      };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return FstUtils.stateEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = id;
+      long temp = Double.doubleToLongBits(getFinalWeight());
+      result = 31 * result + (int) (temp ^ (temp >>> 32));
+      result = 31 * result + getArcCount();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "CompactState{" +
+             "id=" + id +
+             ", finalWeight=" + getFinalWeight() +
+             ", arcs=" + getArcs() +
+             '}';
+    }
+  }
+
+  /**
+   * View of a single arc in the compact fst; holds nothing but the (global) arc index
+   */
+  public class CompactArc implements Arc {
+
+    private final int arcIndex;
+
+    private CompactArc(int arcIndex) {
+      this.arcIndex = arcIndex;
+    }
+
+    @Override
+    public double getWeight() {
+      return weightAt(arcIndex);
+    }
+
+    @Override
+    public int getIlabel() {
+      return ilabelAt(arcIndex);
+    }
+
+    @Override
+    public int getOlabel() {
+      return olabelAt(arcIndex);
+    }
+
+    @Override
+    public CompactState getNextState() {
+      return new CompactState(nextStateAt(arcIndex));
+    }
+
+    public int getNextStateId() {
+      return nextStateAt(arcIndex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return FstUtils.arcEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      long temp = Double.doubleToLongBits(getWeight());
+      int result = (int) (temp ^ (temp >>> 32));
+      result = 31 * result + getIlabel();
+      result = 31 * result + getOlabel();
+      result = 31 * result + getNextStateId();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "CompactArc{" +
+             "ilabel=" + getIlabel() +
+             ", olabel=" + getOlabel() +
+             ", weight=" + getWeight() +
+             ", nextStateId=" + getNextStateId() +
+             '}';
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+/**
+ * A reusable cursor over the outgoing arcs of one state at a time, exposing the arc values as primitives so that
+ * traversals by state id don't need any State or Arc instances. Get one from `Fst.arcs(stateId, cursor)` or
+ * {@link Fst#newArcCursor()} and then reuse it for every state of that fst:
+ * <pre>
+ *   ArcCursor cursor = fst.newArcCursor();
+ *   for (int s = 0; s &lt; fst.getStateCount(); s++) {
+ *     fst.arcs(s, cursor);
+ *     while (cursor.next()) {
+ *       ... cursor.ilabel(), cursor.nextStateId(), etc.
+ *     }
+ *   }
+ * </pre>
+ * NOTE cursors are NOT thread safe (even for immutable FSTs); use a cursor per thread
+ * @author Steve Ash
+ */
+public interface ArcCursor {
+
+  /**
+   * Positions this cursor _before_ the first arc of the given state; call `next()` to move to the first arc
+   * @param stateId the state whose outgoing arcs to iterate
+   */
+  void reset(int stateId);
+
+  /**
+   * Advances to the next arc of the current state
+   * @return true if the cursor is now on an arc, false if there are no more arcs in this state
+   */
+  boolean next();
+
+  /**
+   * Positions this cursor _before_ the first arc of the current state that has the given input label (so that the
+   * following call to `next()` lands on it). This requires that the state's arcs are sorted by input label (as
+   * ArcSort.sortByInput does) and uses binary search; cursors from an {@link ArcMatcher} don't need sorted arcs and
+   * stop after the last matching arc. Either way, callers should stop at the first arc with a different label
+   * @param ilabel the input label to find
+   * @return true if there is at least one arc with this input label (and thus `next()` will be on it)
+   */
+  boolean seek(int ilabel);
+
+  /**
+   * The id of the state whose arcs this cursor is currently iterating
+   */
+  int stateId();
+
+  /**
+   * The number of outgoing arcs for the current state
+   */
+  int arcCount();
+
+  /**
+   * The final weight of the current state
+   */
+  double finalWeight();
+
+  int ilabel();
+
+  int olabel();
+
+  double weight();
+
+  int nextStateId();
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.carrotsearch.hppc.IntIntOpenHashMap;
+
+/**
+ * Per-state label index over the arcs of an immutable compact FST, used to find all of the arcs leaving a state
+ * that have a particular input (or output) label without scanning them. Each state gets its own lookup structure,
+ * picked by its fan-out:
+ * <ul>
+ * <li>states with fewer than {@link #MIN_INDEXED_ARCS} arcs just binary search the label-sorted arcs</li>
+ * <li>states whose label span is at most {@link #MAX_DENSE_SPAN_RATIO} times their arc count get a dense table
+ * directly indexed by label</li>
+ * <li>all other (sparse, large alphabet) states get a hash table from label to the first matching arc</li>
+ * </ul>
+ * The fst doesn't need to be sorted; matching arcs are always returned in their original arc order (i.e. the same
+ * order that a linear scan would find them in). If every state is already sorted by the match label then no arc
+ * permutation is stored at all.
+ * <p>
+ * This is immutable and thread safe; use a separate cursor (from `newArcCursor()`) per thread.
+ *
+ * @author Steve Ash
+ */
+public class ArcMatcher {
+
+  /**
+   * States with fewer arcs than this just use binary search
+   */
+  public static final int MIN_INDEXED_ARCS = 32;
+
+  /**
+   * States with a label span (max - min + 1) up to this multiple of their arc count use a dense table
+   */
+  public static final int MAX_DENSE_SPAN_RATIO = 4;
+
+  /**
+   * Creates a matcher that finds arcs by input label
+   */
+  public static ArcMatcher forInput(AbstractCompactFst fst) {
+    return new ArcMatcher(fst, true);
+  }
+
+  /**
+   * Creates a matcher that finds arcs by output label
+   */
+  public static ArcMatcher forOutput(AbstractCompactFst fst) {
+    return new ArcMatcher(fst, false);
+  }
+
+  private final AbstractCompactFst fst;
+  private final boolean matchInput;
+  // global arc indexes stable sorted by label within each state; null if the fst is already sorted everywhere
+  private final int[] order;
+  // per state: null (binary search), int[] (dense table), or IntIntOpenHashMap (hash)
+  private final Object[] tables;
+
+  private ArcMatcher(AbstractCompactFst fst, boolean matchInput) {
+    this.fst = fst;
+    this.matchInput = matchInput;
+    int numStates = fst.getStateCount();
+    this.order = isSorted() ? null : makeOrder();
+    this.tables = new Object[numStates];
+    for (int i = 0; i < numStates; i++) {
+      tables[i] = makeTable(fst.arcOffsetAt(i), fst.arcOffsetAt(i + 1));
+    }
+  }
+
+  public AbstractCompactFst getFst() {
+    return fst;
+  }
+
+  /**
+   * Returns true if this matches on input labels, false if on output labels
+   */
+  public boolean isMatchingInput() {
+    return matchInput;
+  }
+
+  /**
+   * Creates a new cursor that iterates arcs like any other cursor, but whose `seek` uses this matcher; after a
+   * successful seek, the cursor iterates only the arcs with the sought label and then stops
+   * @return
+   */
+  public MatcherCursor newArcCursor() {
+    return new MatcherCursor();
+  }
+
+  private int labelAt(int arcIndex) {
+    return matchInput ? fst.ilabelAt(arcIndex) : fst.olabelAt(arcIndex);
+  }
+
+  // label of the arc at the given (sorted) position
+  private int sortedLabelAt(int position) {
+    return labelAt(order == null ? position : order[position]);
+  }
+
+  private boolean isSorted() {
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      int end = fst.arcOffsetAt(i + 1);
+      for (int j = fst.arcOffsetAt(i) + 1; j < end; j++) {
+        if (labelAt(j - 1) > labelAt(j)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private int[] makeOrder() {
+    int[] order = new int[fst.getArcCount()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      // insertion sort for the (typical) small states; merge sort would just be allocating for them
+      int start = fst.arcOffsetAt(i);
+      int end = fst.arcOffsetAt(i + 1);
+      if (end - start < MIN_INDEXED_ARCS) {
+        insertionSort(order, start, end);
+      } else {
+        mergeSort(order, start, end, new int[end - start]);
+      }
+    }
+    return order;
+  }
+
+  private void insertionSort(int[] order, int start, int end) {
+    for (int i = start + 1; i < end; i++) {
+      int arc = order[i];
+      int label = labelAt(arc);
+      int j = i - 1;
+      while (j >= start && labelAt(order[j]) > label) {
+        order[j + 1] = order[j];
+        j -= 1;
+      }
+      order[j + 1] = arc;
+    }
+  }
+
+  // stable merge sort of order[start, end) by label; scratch must be at least end - start long
+  private void mergeSort(int[] order, int start, int end, int[] scratch) {
+    if (end - start < MIN_INDEXED_ARCS) {
+      insertionSort(order, start, end);
+      return;
+    }
+    int mid = (start + end) >>> 1;
+    mergeSort(order, start, mid, scratch);
+    mergeSort(order, mid, end, scratch);
+    System.arraycopy(order, start, scratch, 0, end - start);
+    int left = 0;
+    int leftEnd = mid - start;
+    int right = leftEnd;
+    int rightEnd = end - start;
+    int out = start;
+    while (left < leftEnd && right < rightEnd) {
+      if (labelAt(scratch[right]) < labelAt(scratch[left])) {
+        order[out++] = scratch[right++];
+      } else {
+        order[out++] = scratch[left++];
+      }
+    }
+    while (left < leftEnd) {
+      order[out++] = scratch[left++];
+    }
+    while (right < rightEnd) {
+      order[out++] = scratch[right++];
+    }
+  }
+
+  private Object makeTable(int start, int end) {
+    int count = end - start;
+    if (count < MIN_INDEXED_ARCS) {
+      return null;
+    }
+    int min = sortedLabelAt(start);
+    int max = sortedLabelAt(end - 1);
+    long span = (long) max - min + 1;
+    if (span <= (long) MAX_DENSE_SPAN_RATIO * count) {
+      // dense[0] is the min label, then dense[1 + k] is the first position with label >= min + k
+      int[] dense = new int[(int) span + 2];
+      dense[0] = min;
+      int pos = start;
+      for (int k = 0; k <= span; k++) {
+        while (pos < end && sortedLabelAt(pos) < min + k) {
+          pos += 1;
+        }
+        dense[1 + k] = pos;
+      }
+      return dense;
+    }
+    IntIntOpenHashMap hash = new IntIntOpenHashMap(count);
+    int last = -1;
+    for (int pos = start; pos < end; pos++) {
+      int label = sortedLabelAt(pos);
+      if (pos == start || label != last) {
+        // store position + 1 so that the default 0 means missing
+        hash.put(label, pos + 1);
+        last = label;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Arc cursor that uses the matcher's index for `seek`
+   */
+  public class MatcherCursor implements ArcCursor {
+
+    private int stateId = -1;
+    private int position;
+    private int end;
+    // true if iterating the matched (sorted) positions, false if iterating all arcs in original order
+    private boolean matching;
+
+    private MatcherCursor() {
+    }
+
+    @Override
+    public void reset(int stateId) {
+      this.stateId = stateId;
+      this.position = fst.arcOffsetAt(stateId) - 1;
+      this.end = fst.arcOffsetAt(stateId + 1);
+      this.matching = false;
+    }
+
+    @Override
+    public boolean next() {
+      position += 1;
+      if (position < end) {
+        return true;
+      }
+      position = end;
+      return false;
+    }
+
+    @Override
+    public boolean seek(int label) {
+      int start = fst.arcOffsetAt(stateId);
+      int stateEnd = fst.arcOffsetAt(stateId + 1);
+      Object table = tables[stateId];
+      int lo;
+      int hi;
+      if (table == null) {
+        lo = lowerBound(start, stateEnd, label);
+        hi = lowerBound(lo, stateEnd, label + 1);
+      } else if (table instanceof int[]) {
+        int[] dense = (int[]) table;
+        long k = (long) label - dense[0];
+        if (k < 0 || k >= dense.length - 2) {
+          lo = hi = stateEnd;
+        } else {
+          lo = dense[1 + (int) k];
+          hi = dense[2 + (int) k];
+        }
+      } else {
+        int found = ((IntIntOpenHashMap) table).get(label);
+        if (found == 0) {
+          lo = hi = stateEnd;
+        } else {
+          lo = found - 1;
+          hi = lo + 1;
+          while (hi < stateEnd && sortedLabelAt(hi) == label) {
+            hi += 1;
+          }
+        }
+      }
+      this.matching = true;
+      this.position = lo - 1;
+      this.end = hi;
+      return lo < hi;
+    }
+
+    private int lowerBound(int lo, int hi, int label) {
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (sortedLabelAt(mid) < label) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    private int arcIndex() {
+      return (matching && order != null) ? order[position] : position;
+    }
+
+    @Override
+    public int stateId() {
+      return stateId;
+    }
+
+    @Override
+    public int arcCount() {
+      return fst.arcOffsetAt(stateId + 1) - fst.arcOffsetAt(stateId);
+    }
+
+    @Override
+    public double finalWeight() {
+      return fst.finalWeightAt(stateId);
+    }
+
+    @Override
+    public int ilabel() {
+      return fst.ilabelAt(arcIndex());
+    }
+
+    @Override
+    public int olabel() {
+      return fst.olabelAt(arcIndex());
+    }
+
+    @Override
+    public double weight() {
+      return fst.weightAt(arcIndex());
+    }
+
+    @Override
+    public int nextStateId() {
+      return fst.nextStateAt(arcIndex());
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+
+/**
+ * Immutable FST that stores all of its states and arcs in compressed-sparse-row (CSR) form: the arcs of state `s` are
+ * at the arc indexes `[arcOffsets[s], arcOffsets[s + 1])` of the parallel primitive arrays `ilabels`, `olabels`,
+ * `nextStates`, and `weights`. This avoids the per-state and per-arc object overhead of {@link ImmutableFst}, which
+ * matters a lot for large (millions of arcs) models.
+ * <p>
+ * The State and Arc instances returned by this FST are lightweight views (see {@link AbstractCompactFst})
+ * NOTE: CompactFst is thread safe (unlike {@link CompactMutableFst})
+ *
+ * @author Steve Ash
+ */
+public class CompactFst extends AbstractCompactFst {
+
+  /**
+   * Creates a compact copy of any FST (mutable or immutable) in a single pass over the states and arcs
+   * @param fst the fst to copy
+   * @return a new compact, immutable FST
+   */
+  public static CompactFst copyFrom(Fst fst) {
+    fst.throwIfInvalid();
+    if (fst instanceof CompactFst) {
+      return (CompactFst) fst;
+    }
+    int numStates = fst.getStateCount();
+    int[] arcOffsets = new int[numStates + 1];
+    double[] finalWeights = new double[numStates];
+    int numArcs = 0;
+    for (int i = 0; i < numStates; i++) {
+      State state = fst.getState(i);
+      Preconditions.checkState(state.getId() == i, "state id doesnt match its index", state);
+      arcOffsets[i] = numArcs;
+      finalWeights[i] = state.getFinalWeight();
+      numArcs += state.getArcCount();
+    }
+    arcOffsets[numStates] = numArcs;
+
+    int[] ilabels = new int[numArcs];
+    int[] olabels = new int[numArcs];
+    int[] nextStates = new int[numArcs];
+    double[] weights = new double[numArcs];
+    ArcCursor cursor = fst.newArcCursor();
+    int k = 0;
+    for (int i = 0; i < numStates; i++) {
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        ilabels[k] = cursor.ilabel();
+        olabels[k] = cursor.olabel();
+        nextStates[k] = cursor.nextStateId();
+        weights[k] = cursor.weight();
+        k += 1;
+      }
+    }
+    ImmutableSymbolTable stable = null;
+    if (fst.isUsingStateSymbols()) {
+      stable = new ImmutableSymbolTable(fst.getStateSymbols());
+    }
+    return new CompactFst(fst.getSemiring(), fst.getStartState().getId(),
+        new ImmutableSymbolTable(fst.getInputSymbols()), new ImmutableSymbolTable(fst.getOutputSymbols()), stable,
+        finalWeights, arcOffsets, ilabels, olabels, nextStates, weights);
+  }
+
+  private final double[] finalWeights;
+  private final int[] arcOffsets;
+  private final int[] ilabels;
+  private final int[] olabels;
+  private final int[] nextStates;
+  private final double[] weights;
+
+  CompactFst(Semiring semiring, int startId, ImmutableSymbolTable itable, ImmutableSymbolTable otable,
+             @Nullable ImmutableSymbolTable stable, double[] finalWeights, int[] arcOffsets, int[] ilabels,
+             int[] olabels, int[] nextStates, double[] weights) {
+    super(semiring, startId, itable, otable, stable);
+    Preconditions.checkArgument(arcOffsets.length == finalWeights.length + 1, "arc offsets must have one more entry "
+                                                                              + "than the number of states");
+    this.finalWeights = finalWeights;
+    this.arcOffsets = arcOffsets;
+    this.ilabels = ilabels;
+    this.olabels = olabels;
+    this.nextStates = nextStates;
+    this.weights = weights;
+  }
+
+  @Override
+  public int getStateCount() {
+    return finalWeights.length;
+  }
+
+  @Override
+  public int getArcCount() {
+    return ilabels.length;
+  }
+
+  @Override
+  protected double finalWeightAt(int stateId) {
+    return finalWeights[stateId];
+  }
+
+  @Override
+  protected int arcOffsetAt(int stateId) {
+    return arcOffsets[stateId];
+  }
+
+  @Override
+  protected int ilabelAt(int arcIndex) {
+    return ilabels[arcIndex];
+  }
+
+  @Override
+  protected int olabelAt(int arcIndex) {
+    return olabels[arcIndex];
+  }
+
+  @Override
+  protected int nextStateAt(int arcIndex) {
+    return nextStates[arcIndex];
+  }
+
+  @Override
+  protected double weightAt(int arcIndex) {
+    return weights[arcIndex];
+  }
+}
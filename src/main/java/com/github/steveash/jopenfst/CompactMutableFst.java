@@ -0,0 +1,607 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Mutable FST meant for building large FSTs quickly: states are just int ids and each state keeps its arcs in
+ * growable primitive arrays (no MutableState or MutableArc instances and no incoming state sets are maintained while
+ * building). When you're done building convert it to an immutable {@link CompactFst} with `toCompactFst()` in a single
+ * linear pass.
+ * <p>
+ * States can only be added (not deleted) and arcs can only be appended. If you need the incoming states of a state,
+ * `getIncomingStates()` builds a compact reverse index the first time it is asked for (after any modification).
+ * <p>
+ * The State and Arc instances returned by `getState` are lightweight views that are created on demand and read
+ * through to this fst (they're not identity stable); prefer the int id methods and `newArcCursor()`
+ * NOTE: this is not thread safe
+ *
+ * @author Steve Ash
+ * @see CompactFst
+ */
+public class CompactMutableFst implements Fst {
+
+  // per arc we store ilabel, olabel, nextState in the int arrays
+  private static final int INTS_PER_ARC = 3;
+  private static final int DEFAULT_STATE_CAPACITY = 16;
+  private static final int[] EMPTY_INTS = new int[0];
+  private static final double[] EMPTY_DOUBLES = new double[0];
+
+  private final Semiring semiring;
+  private final WriteableSymbolTable inputSymbols;
+  private final WriteableSymbolTable outputSymbols;
+  private MutableSymbolTable stateSymbols;
+  private int startId = -1;
+  private int numStates = 0;
+  private int numArcs = 0;
+  private double[] finalWeights;
+  private int[] arcCounts;
+  private int[][] arcInts;
+  private double[][] arcWeights;
+  private IncomingStateIndex incoming;
+
+  public CompactMutableFst() {
+    this(TropicalSemiring.INSTANCE);
+  }
+
+  public CompactMutableFst(Semiring semiring) {
+    this(semiring, new MutableSymbolTable(), new MutableSymbolTable());
+  }
+
+  /**
+   * Constructs a new fst with the given semiring and symbol tables; NOTE that (like MutableFst) these symbol tables
+   * are being GIVEN to own by this fst
+   * @param semiring
+   * @param inputSymbolsToOwn
+   * @param outputSymbolsToOwn
+   */
+  public CompactMutableFst(Semiring semiring, WriteableSymbolTable inputSymbolsToOwn,
+                           WriteableSymbolTable outputSymbolsToOwn) {
+    this.semiring = Preconditions.checkNotNull(semiring, "must have a semiring");
+    this.inputSymbols = inputSymbolsToOwn;
+    this.outputSymbols = outputSymbolsToOwn;
+    this.finalWeights = new double[DEFAULT_STATE_CAPACITY];
+    this.arcCounts = new int[DEFAULT_STATE_CAPACITY];
+    this.arcInts = new int[DEFAULT_STATE_CAPACITY][];
+    this.arcWeights = new double[DEFAULT_STATE_CAPACITY][];
+  }
+
+  /**
+   * Indicates that this FST will be using state symbols
+   */
+  public void useStateSymbols() {
+    Preconditions.checkState(numStates == 0, "cannot switch to using state symbols after states are constructed");
+    this.stateSymbols = new MutableSymbolTable();
+  }
+
+  /**
+   * Adds a new state with a zero final weight
+   * @return the id of the new state
+   */
+  public int newState() {
+    return newState(semiring.zero(), null);
+  }
+
+  public int newState(double finalWeight) {
+    return newState(finalWeight, null);
+  }
+
+  public int newState(@Nullable String newStateSymbol) {
+    return newState(semiring.zero(), newStateSymbol);
+  }
+
+  private int newState(double finalWeight, @Nullable String newStateSymbol) {
+    int id = numStates;
+    if (stateSymbols != null) {
+      Preconditions.checkNotNull(newStateSymbol, "if using symbol table for states everything must have a symbol");
+      stateSymbols.put(newStateSymbol, id);
+    } else {
+      Preconditions.checkState(newStateSymbol == null, "cant pass state name if not using symbol table");
+    }
+    ensureStateCapacity(id + 1);
+    finalWeights[id] = finalWeight;
+    arcInts[id] = EMPTY_INTS;
+    arcWeights[id] = EMPTY_DOUBLES;
+    numStates += 1;
+    incoming = null;
+    return id;
+  }
+
+  public int newStartState() {
+    return newStartState(null);
+  }
+
+  public int newStartState(@Nullable String startStateSymbol) {
+    checkArgument(startId < 0, "cant add more than one start state");
+    int id = newState(semiring.zero(), startStateSymbol);
+    setStart(id);
+    return id;
+  }
+
+  public int getOrNewState(String stateSymbol) {
+    Preconditions.checkNotNull(stateSymbols, "cant use this without state symbols");
+    if (stateSymbols.contains(stateSymbol)) {
+      return stateSymbols.get(stateSymbol);
+    }
+    return newState(stateSymbol);
+  }
+
+  public void setStart(int stateId) {
+    Preconditions.checkElementIndex(stateId, numStates, "state index");
+    this.startId = stateId;
+  }
+
+  public int getStartStateId() {
+    return startId;
+  }
+
+  public void setFinalWeight(int stateId, double finalWeight) {
+    Preconditions.checkElementIndex(stateId, numStates, "state index");
+    finalWeights[stateId] = finalWeight;
+  }
+
+  /**
+   * Appends a new arc to the given start state
+   * @param startStateId
+   * @param inSymbolId
+   * @param outSymbolId
+   * @param endStateId
+   * @param weight
+   */
+  public void addArc(int startStateId, int inSymbolId, int outSymbolId, int endStateId, double weight) {
+    Preconditions.checkElementIndex(startStateId, numStates, "start state index");
+    Preconditions.checkElementIndex(endStateId, numStates, "end state index");
+    int count = arcCounts[startStateId];
+    int[] ints = arcInts[startStateId];
+    if ((count + 1) * INTS_PER_ARC > ints.length) {
+      int newCapacity = Math.max(2, count + (count >> 1) + 1);
+      ints = Arrays.copyOf(ints, newCapacity * INTS_PER_ARC);
+      arcInts[startStateId] = ints;
+      arcWeights[startStateId] = Arrays.copyOf(arcWeights[startStateId], newCapacity);
+    }
+    int base = count * INTS_PER_ARC;
+    ints[base] = inSymbolId;
+    ints[base + 1] = outSymbolId;
+    ints[base + 2] = endStateId;
+    arcWeights[startStateId][count] = weight;
+    arcCounts[startStateId] = count + 1;
+    numArcs += 1;
+    incoming = null;
+  }
+
+  /**
+   * Appends a new arc to the given start state; the in/out symbols will be added to the symbol tables if they dont
+   * exist
+   */
+  public void addArc(int startStateId, String inSymbol, String outSymbol, int endStateId, double weight) {
+    addArc(startStateId, inputSymbols.getOrAdd(inSymbol), outputSymbols.getOrAdd(outSymbol), endStateId, weight);
+  }
+
+  /**
+   * Adds a new arc between the given named states (creating them if they dont exist)
+   */
+  public void addArc(String startStateSymbol, String inSymbol, String outSymbol, String endStateSymbol,
+                     double weight) {
+    Preconditions.checkNotNull(stateSymbols, "cant use this without state symbols; call useStateSymbols()");
+    int startStateId = getOrNewState(startStateSymbol);
+    int endStateId = getOrNewState(endStateSymbol);
+    addArc(startStateId, inSymbol, outSymbol, endStateId, weight);
+  }
+
+  /**
+   * The total number of arcs across all states
+   * @return
+   */
+  public int getArcCount() {
+    return numArcs;
+  }
+
+  public int getArcCount(int stateId) {
+    Preconditions.checkElementIndex(stateId, numStates, "state index");
+    return arcCounts[stateId];
+  }
+
+  /**
+   * Returns the reverse adjacency index for the current states and arcs; this is built on first request and then
+   * reused until the fst is modified again
+   * @return
+   */
+  public IncomingStateIndex getIncomingStates() {
+    if (incoming == null) {
+      incoming = IncomingStateIndex.build(this);
+    }
+    return incoming;
+  }
+
+  /**
+   * Converts this into an immutable CompactFst in a single pass over the states and arcs; this fst is left unchanged
+   * @return
+   */
+  public CompactFst toCompactFst() {
+    throwIfInvalid();
+    int[] arcOffsets = new int[numStates + 1];
+    int[] ilabels = new int[numArcs];
+    int[] olabels = new int[numArcs];
+    int[] nextStates = new int[numArcs];
+    double[] weights = new double[numArcs];
+    int k = 0;
+    for (int i = 0; i < numStates; i++) {
+      arcOffsets[i] = k;
+      int[] ints = arcInts[i];
+      System.arraycopy(arcWeights[i], 0, weights, k, arcCounts[i]);
+      for (int j = 0; j < arcCounts[i]; j++) {
+        int base = j * INTS_PER_ARC;
+        ilabels[k] = ints[base];
+        olabels[k] = ints[base + 1];
+        nextStates[k] = ints[base + 2];
+        k += 1;
+      }
+    }
+    arcOffsets[numStates] = k;
+    ImmutableSymbolTable stable = null;
+    if (stateSymbols != null) {
+      stable = new ImmutableSymbolTable(stateSymbols);
+    }
+    return new CompactFst(semiring, startId, new ImmutableSymbolTable(inputSymbols),
+        new ImmutableSymbolTable(outputSymbols), stable, Arrays.copyOf(finalWeights, numStates), arcOffsets, ilabels,
+        olabels, nextStates, weights);
+  }
+
+  private void ensureStateCapacity(int capacity) {
+    if (capacity <= finalWeights.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, finalWeights.length + (finalWeights.length >> 1));
+    finalWeights = Arrays.copyOf(finalWeights, newCapacity);
+    arcCounts = Arrays.copyOf(arcCounts, newCapacity);
+    arcInts = Arrays.copyOf(arcInts, newCapacity);
+    arcWeights = Arrays.copyOf(arcWeights, newCapacity);
+  }
+
+  @Override
+  public ArrayState getStartState() {
+    if (startId < 0) {
+      return null;
+    }
+    return getState(startId);
+  }
+
+  @Override
+  public Semiring getSemiring() {
+    return semiring;
+  }
+
+  @Override
+  public int getStateCount() {
+    return numStates;
+  }
+
+  @Override
+  public ArrayState getState(int index) {
+    Preconditions.checkElementIndex(index, numStates, "state index");
+    return new ArrayState(index);
+  }
+
+  @Override
+  public double getFinalWeight(int stateId) {
+    Preconditions.checkElementIndex(stateId, numStates, "state index");
+    return finalWeights[stateId];
+  }
+
+  @Override
+  public ArrayState getState(String name) {
+    Preconditions.checkState(stateSymbols != null, "cant ask by name if not using state symbols");
+    return getState(stateSymbols.get(name));
+  }
+
+  @Override
+  public WriteableSymbolTable getInputSymbols() {
+    return inputSymbols;
+  }
+
+  @Override
+  public WriteableSymbolTable getOutputSymbols() {
+    return outputSymbols;
+  }
+
+  @Nullable
+  @Override
+  public WriteableSymbolTable getStateSymbols() {
+    return stateSymbols;
+  }
+
+  @Override
+  public boolean isUsingStateSymbols() {
+    return stateSymbols != null;
+  }
+
+  @Override
+  public int getInputSymbolCount() {
+    return inputSymbols.size();
+  }
+
+  @Override
+  public int getOutputSymbolCount() {
+    return outputSymbols.size();
+  }
+
+  @Override
+  public int lookupInputSymbol(String symbol) {
+    return inputSymbols.get(symbol);
+  }
+
+  @Override
+  public int lookupOutputSymbol(String symbol) {
+    return outputSymbols.get(symbol);
+  }
+
+  @Override
+  public void throwIfInvalid() {
+    Preconditions.checkState(startId >= 0, "must have a start state");
+  }
+
+  @Override
+  public ArcCursor newArcCursor() {
+    return new ArrayArcCursor();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return FstUtils.fstEquals(this, obj);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = semiring.hashCode();
+    result = 31 * result + startId;
+    result = 31 * result + numStates;
+    result = 31 * result + numArcs;
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactMutableFst(start=" + startId + ", states=" + numStates + ", arcs=" + numArcs + ", isyms=" +
+           inputSymbols + ", osyms=" + outputSymbols + ", semiring=" + semiring + ")";
+  }
+
+  private class ArrayArcCursor implements ArcCursor {
+
+    private int stateId = -1;
+    private int[] ints;
+    private double[] weights;
+    private int index;
+    private int count;
+
+    @Override
+    public void reset(int stateId) {
+      Preconditions.checkElementIndex(stateId, numStates, "state index");
+      this.stateId = stateId;
+      this.ints = arcInts[stateId];
+      this.weights = arcWeights[stateId];
+      this.count = arcCounts[stateId];
+      this.index = -1;
+    }
+
+    @Override
+    public boolean next() {
+      index += 1;
+      if (index < count) {
+        return true;
+      }
+      index = count;
+      return false;
+    }
+
+    @Override
+    public boolean seek(int ilabel) {
+      int lo = 0;
+      int hi = count;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (ints[mid * INTS_PER_ARC] < ilabel) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      index = lo - 1;
+      return lo < count && ints[lo * INTS_PER_ARC] == ilabel;
+    }
+
+    @Override
+    public int stateId() {
+      return stateId;
+    }
+
+    @Override
+    public int arcCount() {
+      return count;
+    }
+
+    @Override
+    public double finalWeight() {
+      return finalWeights[stateId];
+    }
+
+    @Override
+    public int ilabel() {
+      return ints[index * INTS_PER_ARC];
+    }
+
+    @Override
+    public int olabel() {
+      return ints[index * INTS_PER_ARC + 1];
+    }
+
+    @Override
+    public double weight() {
+      return weights[index];
+    }
+
+    @Override
+    public int nextStateId() {
+      return ints[index * INTS_PER_ARC + 2];
+    }
+  }
+
+  /**
+   * View of a single state; holds nothing but the state id
+   */
+  public class ArrayState implements State {
+
+    private final int id;
+
+    private ArrayState(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public double getFinalWeight() {
+      return finalWeights[id];
+    }
+
+    @Override
+    public int getId() {
+      return id;
+    }
+
+    @Override
+    public int getArcCount() {
+      return arcCounts[id];
+    }
+
+    @Override
+    public ArrayArc getArc(int index) {
+      Preconditions.checkElementIndex(index, getArcCount(), "arc index");
+      return new ArrayArc(id, index);
+    }
+
+    @Override
+    public List<ArrayArc> getArcs() {
+      return new AbstractList<ArrayArc>() {
+        @Override
+        public ArrayArc get(int index) {
+          return getArc(index);
+        }
+
+        @Override
+        public int size() {
+          return getArcCount();
+        }
+      };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return FstUtils.stateEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = id;
+      long temp = Double.doubleToLongBits(getFinalWeight());
+      result = 31 * result + (int) (temp ^ (temp >>> 32));
+      result = 31 * result + getArcCount();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "ArrayState{" +
+             "id=" + id +
+             ", finalWeight=" + getFinalWeight() +
+             ", arcs=" + getArcs() +
+             '}';
+    }
+  }
+
+  /**
+   * View of a single arc; holds nothing but the state id and the arc index within that state
+   */
+  public class ArrayArc implements Arc {
+
+    private final int stateId;
+    private final int index;
+
+    private ArrayArc(int stateId, int index) {
+      this.stateId = stateId;
+      this.index = index;
+    }
+
+    @Override
+    public double getWeight() {
+      return arcWeights[stateId][index];
+    }
+
+    @Override
+    public int getIlabel() {
+      return arcInts[stateId][index * INTS_PER_ARC];
+    }
+
+    @Override
+    public int getOlabel() {
+      return arcInts[stateId][index * INTS_PER_ARC + 1];
+    }
+
+    @Override
+    public ArrayState getNextState() {
+      return new ArrayState(getNextStateId());
+    }
+
+    public int getNextStateId() {
+      return arcInts[stateId][index * INTS_PER_ARC + 2];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return FstUtils.arcEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      long temp = Double.doubleToLongBits(getWeight());
+      int result = (int) (temp ^ (temp >>> 32));
+      result = 31 * result + getIlabel();
+      result = 31 * result + getOlabel();
+      result = 31 * result + getNextStateId();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "ArrayArc{" +
+             "ilabel=" + getIlabel() +
+             ", olabel=" + getOlabel() +
+             ", weight=" + getWeight() +
+             ", nextStateId=" + getNextStateId() +
+             '}';
+    }
+  }
+}
@@ -28,6 +28,16 @@ public interface Fst {
 
   String EPS = "<eps>";
 
+  /**
+   * Special input labels that compose understands on the inner (right hand side) fst, so that you don't have to
+   * enumerate an arc for every symbol: SIGMA matches any symbol, RHO matches any symbol that the state has no other
+   * arc for, and PHI is a failure (back-off) transition that is followed without consuming anything when nothing else
+   * at the state matches. If a SIGMA or RHO arc also has SIGMA or RHO as its output, the matched symbol is output.
+   */
+  String SIGMA = "<sigma>";
+  String RHO = "<rho>";
+  String PHI = "<phi>";
+
   /**
    * The start state in the FST; there must be exactly one
    * @return
@@ -54,6 +64,16 @@ public interface Fst {
    */
   State getState(int index);
 
+  /**
+   * Get the final weight of the state with the given id; this is equivalent to `getState(stateId).getFinalWeight()`
+   * but doesn't need a State instance (implementations that don't keep State instances should override this)
+   * @param stateId
+   * @return
+   */
+  default double getFinalWeight(int stateId) {
+    return getState(stateId).getFinalWeight();
+  }
+
   /**
    * Get the FST state corresponding to the given state label or throws an IllegalArgumentException if state labels
    * are not being used in this FST
@@ -121,4 +141,27 @@ public interface Fst {
    * throws an exception if the FST is constructed in an invalid state
    */
   void throwIfInvalid();
+
+  /**
+   * Creates a new, reusable cursor that iterates over the arcs of this FST by state id without needing any State or
+   * Arc instances; the default walks the State and Arc instances so implementations that don't keep them should
+   * override this
+   * @see ArcCursor
+   * @return
+   */
+  default ArcCursor newArcCursor() {
+    return new StateArcCursor(this);
+  }
+
+  /**
+   * Positions the given cursor (which must have come from this FST's `newArcCursor()`) before the first arc of the
+   * given state and returns it
+   * @param stateId the state whose arcs you want to iterate
+   * @param cursor the cursor to reuse
+   * @return the given cursor
+   */
+  default ArcCursor arcs(int stateId, ArcCursor cursor) {
+    cursor.reset(stateId);
+    return cursor;
+  }
 }
@@ -20,10 +20,16 @@ import com.google.common.base.Throwables;
 import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Files;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 
 import com.carrotsearch.hppc.cursors.ObjectIntCursor;
 import com.github.steveash.jopenfst.semiring.Semiring;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -31,6 +37,12 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.Map;
@@ -50,6 +62,11 @@ public class FstInputOutput {
   private static final int FIRST_VERSION = 42;
   private static final int CURRENT_VERSION = 42;
 
+  // the memory mapped layout is a different file format than the object stream format above
+  private static final int MAPPED_MAGIC = 0x4A464D46; // "JFMF"
+  private static final int MAPPED_VERSION = 1;
+  private static final int MAPPED_PREAMBLE_BYTES = 12; // magic, version, header length
+
   /**
    * Deserializes a symbol map from an java.io.ObjectInput
    *
@@ -226,6 +243,158 @@ public class FstInputOutput {
     }
   }
 
+  /**
+   * Writes the given FST to disk in the memory mappable layout that can be opened (without deserializing) via
+   * `readFstFromMappedFile`. The layout is a small preamble (magic, version, header length), a header (symbol tables,
+   * semiring, and counts) written as an object stream, then the CSR sections (final weights, arc offsets, input labels,
+   * output labels, next states, and arc weights) as raw big-endian primitives
+   * @param fst the fst to write
+   * @param file the file to write to
+   * @throws IOException
+   */
+  public static void writeFstToMappedFile(Fst fst, File file) throws IOException {
+    fst.throwIfInvalid();
+    int numStates = fst.getStateCount();
+    // these fsts can be huge so walk them with one cursor instead of the State and Arc instances
+    ArcCursor cursor = fst.newArcCursor();
+    int numArcs = 0;
+    for (int i = 0; i < numStates; i++) {
+      numArcs += fst.arcs(i, cursor).arcCount();
+    }
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream header = new ObjectOutputStream(headerBytes)) {
+      writeStringMap(fst.getInputSymbols(), header);
+      writeStringMap(fst.getOutputSymbols(), header);
+      header.writeBoolean(fst.isUsingStateSymbols());
+      if (fst.isUsingStateSymbols()) {
+        writeStringMap(fst.getStateSymbols(), header);
+      }
+      header.writeObject(fst.getSemiring());
+      header.writeInt(fst.getStartState().getId());
+      header.writeInt(numStates);
+      header.writeInt(numArcs);
+    }
+
+    try (DataOutputStream out = new DataOutputStream(Files.asByteSink(file).openBufferedStream())) {
+      out.writeInt(MAPPED_MAGIC);
+      out.writeInt(MAPPED_VERSION);
+      out.writeInt(headerBytes.size());
+      headerBytes.writeTo(out);
+
+      for (int i = 0; i < numStates; i++) {
+        out.writeDouble(fst.getFinalWeight(i));
+      }
+      int offset = 0;
+      for (int i = 0; i < numStates; i++) {
+        out.writeInt(offset);
+        offset += fst.arcs(i, cursor).arcCount();
+      }
+      out.writeInt(offset);
+      // each arc field is its own contiguous section so we make one pass over the arcs per section
+      for (int i = 0; i < numStates; i++) {
+        fst.arcs(i, cursor);
+        while (cursor.next()) {
+          out.writeInt(cursor.ilabel());
+        }
+      }
+      for (int i = 0; i < numStates; i++) {
+        fst.arcs(i, cursor);
+        while (cursor.next()) {
+          out.writeInt(cursor.olabel());
+        }
+      }
+      for (int i = 0; i < numStates; i++) {
+        fst.arcs(i, cursor);
+        while (cursor.next()) {
+          out.writeInt(cursor.nextStateId());
+        }
+      }
+      for (int i = 0; i < numStates; i++) {
+        fst.arcs(i, cursor);
+        while (cursor.next()) {
+          out.writeDouble(cursor.weight());
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens an FST that was written by `writeFstToMappedFile` by memory mapping it. Only the header (symbol tables, etc.)
+   * is read on to the heap; the states and arcs are read directly out of the mapped file on demand. Note that each
+   * section (i.e. all input labels) must be less than 2GB
+   * @param file the file to map
+   * @return the read-only mapped fst
+   */
+  public static MappedFst readFstFromMappedFile(File file) {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer preamble = readFully(channel, 0, MAPPED_PREAMBLE_BYTES);
+      int magic = preamble.getInt();
+      int version = preamble.getInt();
+      int headerLength = preamble.getInt();
+      if (magic != MAPPED_MAGIC) {
+        throw new IllegalArgumentException("file " + file + " is not a memory mapped fst model");
+      }
+      if (version != MAPPED_VERSION) {
+        throw new IllegalArgumentException("cant read version mapped fst model " + version);
+      }
+      ByteBuffer headerBuffer = readFully(channel, MAPPED_PREAMBLE_BYTES, headerLength);
+      try (ObjectInputStream header = new ObjectInputStream(new ByteArrayInputStream(headerBuffer.array()))) {
+        MutableSymbolTable is = readStringMap(header);
+        MutableSymbolTable os = readStringMap(header);
+        ImmutableSymbolTable ss = null;
+        if (header.readBoolean()) {
+          ss = new ImmutableSymbolTable(readStringMap(header));
+        }
+        Semiring semiring = (Semiring) header.readObject();
+        int startId = header.readInt();
+        int numStates = header.readInt();
+        int numArcs = header.readInt();
+
+        long position = MAPPED_PREAMBLE_BYTES + headerLength;
+        DoubleBuffer finalWeights = mapSection(channel, position, numStates, Doubles.BYTES).asDoubleBuffer();
+        position += (long) numStates * Doubles.BYTES;
+        IntBuffer arcOffsets = mapSection(channel, position, numStates + 1, Ints.BYTES).asIntBuffer();
+        position += (long) (numStates + 1) * Ints.BYTES;
+        IntBuffer ilabels = mapSection(channel, position, numArcs, Ints.BYTES).asIntBuffer();
+        position += (long) numArcs * Ints.BYTES;
+        IntBuffer olabels = mapSection(channel, position, numArcs, Ints.BYTES).asIntBuffer();
+        position += (long) numArcs * Ints.BYTES;
+        IntBuffer nextStates = mapSection(channel, position, numArcs, Ints.BYTES).asIntBuffer();
+        position += (long) numArcs * Ints.BYTES;
+        DoubleBuffer weights = mapSection(channel, position, numArcs, Doubles.BYTES).asDoubleBuffer();
+
+        return new MappedFst(semiring, startId, new ImmutableSymbolTable(is), new ImmutableSymbolTable(os), ss,
+                             finalWeights, arcOffsets, ilabels, olabels, nextStates, weights);
+      }
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new EOFException("unexpected end of mapped fst file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static MappedByteBuffer mapSection(FileChannel channel, long position, int count, int bytesPer)
+      throws IOException {
+    long size = (long) count * bytesPer;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("mapped fst section of " + size + " bytes is too large to map");
+    }
+    if (position + size > channel.size()) {
+      throw new EOFException("mapped fst file is truncated; expected a section at " + position + " of " + size);
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
   // shim while i was still using John's serialized "expected" values to test the algorithms
 //  private static class ConvertingObjectInputStream extends ObjectInputStream {
 //
@@ -133,6 +133,16 @@ public class ImmutableFst implements Fst {
     // cant even construct an invalid immutable fst
   }
 
+  @Override
+  public double getFinalWeight(int stateId) {
+    return states.get(stateId).getFinalWeight();
+  }
+
+  @Override
+  public ArcCursor newArcCursor() {
+    return new StateArcCursor(this);
+  }
+
   @Override
   public boolean equals(Object obj) {
     return FstUtils.fstEquals(this, obj);
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+
+/**
+ * Compact (CSR) reverse adjacency index of an FST: for each state the distinct ids of the states that have at least
+ * one arc into it, in ascending order. This is built in two linear passes over the arcs and is a snapshot, so it
+ * must be rebuilt if the FST is changed after the index was built. It can optionally keep the best (in the natural
+ * order of the semiring) weight of the arcs from each incoming state too (see `buildWithBestWeights`).
+ *
+ * @author Steve Ash
+ */
+public class IncomingStateIndex {
+
+  /**
+   * Builds the index for the current states and arcs of the given fst
+   * @param fst
+   * @return
+   */
+  public static IncomingStateIndex build(Fst fst) {
+    return build(fst, false);
+  }
+
+  /**
+   * Builds the index for the current states and arcs of the given fst, keeping the best (in the natural order of the
+   * fst's semiring) weight of the arcs from each incoming state (see `getIncomingWeight`)
+   * @param fst
+   * @return
+   */
+  public static IncomingStateIndex buildWithBestWeights(Fst fst) {
+    return build(fst, true);
+  }
+
+  private static IncomingStateIndex build(Fst fst, boolean withWeights) {
+    Semiring semiring = fst.getSemiring();
+    int numStates = fst.getStateCount();
+    int[] offsets = new int[numStates + 1];
+    ArcCursor cursor = fst.newArcCursor();
+    for (int i = 0; i < numStates; i++) {
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        offsets[cursor.nextStateId() + 1] += 1;
+      }
+    }
+    for (int i = 0; i < numStates; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    int[] sources = new int[offsets[numStates]];
+    double[] weights = (withWeights ? new double[sources.length] : null);
+    int[] fill = new int[numStates];
+    System.arraycopy(offsets, 0, fill, 0, numStates);
+    // walking the source states in order means that each target's segment is already sorted
+    for (int i = 0; i < numStates; i++) {
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        int slot = fill[cursor.nextStateId()]++;
+        sources[slot] = i;
+        if (weights != null) {
+          weights[slot] = cursor.weight();
+        }
+      }
+    }
+    // now squeeze out the duplicates from parallel arcs
+    int write = 0;
+    int segmentStart = 0;
+    for (int i = 0; i < numStates; i++) {
+      int segmentEnd = offsets[i + 1];
+      offsets[i] = write;
+      int last = -1;
+      for (int j = segmentStart; j < segmentEnd; j++) {
+        if (sources[j] != last) {
+          last = sources[j];
+          if (weights != null) {
+            weights[write] = weights[j];
+          }
+          sources[write++] = last;
+        } else if (weights != null && semiring.naturalLess(weights[j], weights[write - 1])) {
+          weights[write - 1] = weights[j];
+        }
+      }
+      segmentStart = segmentEnd;
+    }
+    offsets[numStates] = write;
+    return new IncomingStateIndex(offsets, sources, weights);
+  }
+
+  private final int[] offsets;
+  private final int[] sources;
+  @Nullable
+  private final double[] weights;
+
+  private IncomingStateIndex(int[] offsets, int[] sources, @Nullable double[] weights) {
+    this.offsets = offsets;
+    this.sources = sources;
+    this.weights = weights;
+  }
+
+  /**
+   * The number of states covered by this index
+   * @return
+   */
+  public int getStateCount() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * The number of distinct states that have an arc into the given state
+   * @param stateId
+   * @return
+   */
+  public int getIncomingCount(int stateId) {
+    Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+    return offsets[stateId + 1] - offsets[stateId];
+  }
+
+  /**
+   * The id of the `index`th (in ascending id order) state that has an arc into the given state
+   * @param stateId
+   * @param index
+   * @return
+   */
+  public int getIncomingState(int stateId, int index) {
+    Preconditions.checkElementIndex(index, getIncomingCount(stateId), "incoming index");
+    return sources[offsets[stateId] + index];
+  }
+
+  /**
+   * The best weight of the arcs from the `index`th incoming state (see `getIncomingState`) into the given state; only
+   * available if this was built with `buildWithBestWeights`
+   * @param stateId
+   * @param index
+   * @return
+   */
+  public double getIncomingWeight(int stateId, int index) {
+    Preconditions.checkState(weights != null, "this index was built without weights");
+    Preconditions.checkElementIndex(index, getIncomingCount(stateId), "incoming index");
+    return weights[offsets[stateId] + index];
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.carrotsearch.hppc.IntArrayDeque;
+import com.carrotsearch.hppc.IntArrayList;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Input label reachability of an FST (as used by OpenFst's label lookahead composition): for each state the distinct
+ * input labels that can be read next from that state, i.e. the labels of the non-epsilon arcs that can be reached by
+ * following only input epsilon arcs (including none), and whether a final state can be reached that way. Compose
+ * uses this to avoid creating product states that can never match anything in the inner fst (and thus can never
+ * reach a final state). States that can reach a SIGMA, RHO or PHI arc (see {@link Fst#SIGMA}) can read anything.
+ * <p>
+ * The labels are kept sorted in one compact (CSR) array; this is a snapshot, so it must be rebuilt if the FST is
+ * changed after it was built. This is immutable and thread safe.
+ *
+ * @author Steve Ash
+ */
+public class LabelReachability {
+
+  /**
+   * Computes the input label reachability of every state of the given fst
+   * @param fst
+   * @return
+   */
+  public static LabelReachability forInput(Fst fst) {
+    fst.throwIfInvalid();
+    Semiring semiring = fst.getSemiring();
+    int epsLabel = fst.getInputSymbols().get(Fst.EPS);
+    int sigmaLabel = labelOrMissing(fst.getInputSymbols(), Fst.SIGMA);
+    int rhoLabel = labelOrMissing(fst.getInputSymbols(), Fst.RHO);
+    int phiLabel = labelOrMissing(fst.getInputSymbols(), Fst.PHI);
+    int numStates = fst.getStateCount();
+    int[] offsets = new int[numStates + 1];
+    IntArrayList labels = new IntArrayList();
+    BitSet finals = new BitSet(numStates);
+    BitSet wildcards = new BitSet(numStates);
+
+    ArcCursor cursor = fst.newArcCursor();
+    IntArrayDeque stack = new IntArrayDeque();
+    // stamp[s] == q when s has already been visited in the closure of q
+    int[] stamp = new int[numStates];
+    Arrays.fill(stamp, -1);
+    IntArrayList found = new IntArrayList();
+    for (int q = 0; q < numStates; q++) {
+      found.clear();
+      stack.addLast(q);
+      stamp[q] = q;
+      while (!stack.isEmpty()) {
+        int s = stack.removeLast();
+        fst.arcs(s, cursor);
+        if (semiring.isNotZero(cursor.finalWeight())) {
+          finals.set(q);
+        }
+        while (cursor.next()) {
+          int label = cursor.ilabel();
+          if (label == sigmaLabel || label == rhoLabel || label == phiLabel) {
+            wildcards.set(q);
+          } else if (label != epsLabel) {
+            found.add(label);
+          } else if (stamp[cursor.nextStateId()] != q) {
+            stamp[cursor.nextStateId()] = q;
+            stack.addLast(cursor.nextStateId());
+          }
+        }
+      }
+      int[] sorted = found.toArray();
+      Arrays.sort(sorted);
+      offsets[q] = labels.size();
+      for (int i = 0; i < sorted.length; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          labels.add(sorted[i]);
+        }
+      }
+    }
+    offsets[numStates] = labels.size();
+    return new LabelReachability(offsets, labels.toArray(), finals, wildcards);
+  }
+
+  private static int labelOrMissing(SymbolTable syms, String symbol) {
+    return syms.contains(symbol) ? syms.get(symbol) : -1;
+  }
+
+  private final int[] offsets;
+  private final int[] labels;
+  private final BitSet finals;
+  private final BitSet wildcards;
+
+  private LabelReachability(int[] offsets, int[] labels, BitSet finals, BitSet wildcards) {
+    this.offsets = offsets;
+    this.labels = labels;
+    this.finals = finals;
+    this.wildcards = wildcards;
+  }
+
+  /**
+   * The number of states covered by this
+   * @return
+   */
+  public int getStateCount() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Returns true if the given label can be read next from the given state (possibly after some input epsilons)
+   * @param stateId
+   * @param label
+   * @return
+   */
+  public boolean canRead(int stateId, int label) {
+    Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+    if (wildcards.get(stateId)) {
+      return true;
+    }
+    int start = offsets[stateId];
+    int end = offsets[stateId + 1];
+    // check the interval first as that rejects most labels without the search
+    if (start == end || label < labels[start] || label > labels[end - 1]) {
+      return false;
+    }
+    return Arrays.binarySearch(labels, start, end, label) >= 0;
+  }
+
+  /**
+   * Returns true if a final state can be reached from the given state by input epsilons alone
+   * @param stateId
+   * @return
+   */
+  public boolean canReachFinal(int stateId) {
+    Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+    return finals.get(stateId);
+  }
+
+  /**
+   * Returns true if the given state can reach a SIGMA, RHO or PHI arc by input epsilons alone (and thus can read
+   * anything)
+   * @param stateId
+   * @return
+   */
+  public boolean canReadAnything(int stateId) {
+    Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+    return wildcards.get(stateId);
+  }
+
+  /**
+   * The number of distinct (non special) labels that can be read next from the given state
+   * @param stateId
+   * @return
+   */
+  public int getReadableCount(int stateId) {
+    Preconditions.checkElementIndex(stateId, getStateCount(), "state index");
+    return offsets[stateId + 1] - offsets[stateId];
+  }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.carrotsearch.hppc.IntObjectOpenHashMap;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Base class for delayed (on-the-fly) FSTs whose states and arcs are computed only when they are asked for (like
+ * OpenFst's ComposeFst, etc.). Subclasses assign state ids as they discover new states (the start state is found
+ * first) and compute the outgoing arcs of a state in `expand`; this class caches the expanded arcs of the most
+ * recently used states (up to `maxCachedStates`), re-expanding states that were evicted if they are needed again.
+ * <p>
+ * Traversals that only look at part of the FST (e.g. a best first search from the start state) only pay for the
+ * states that they visit; anything that needs the whole FST (`getStateCount()`, FstUtils.fstEquals, etc.) forces
+ * the full expansion. Use `toMutableFst()` to materialize the whole thing in one pass.
+ * <p>
+ * NOTE: this is not thread safe
+ *
+ * @author Steve Ash
+ */
+public abstract class LazyFst implements Fst {
+
+  public static final int DEFAULT_MAX_CACHED_STATES = 1 << 16;
+
+  private static final int NO_STATE = -1;
+
+  private final Semiring semiring;
+  private final SymbolTable inputSymbols;
+  private final SymbolTable outputSymbols;
+  private final IntObjectOpenHashMap<ExpandedState> cache = new IntObjectOpenHashMap<>();
+  private final int maxCachedStates;
+  // the cached state ids from most to least recently used as a doubly linked list (indexed by state id); this is only
+  // kept if there is a limit
+  private int[] lruPrev = new int[16];
+  private int[] lruNext = new int[16];
+  private int lruHead = NO_STATE;
+  private int lruTail = NO_STATE;
+  private final BitSet expandedOnce = new BitSet();
+  private final ExpandedState scratch = new ExpandedState();
+  private boolean fullyExpanded = false;
+
+  /**
+   * @param semiring
+   * @param inputSymbols
+   * @param outputSymbols
+   * @param maxCachedStates the maximum number of expanded states to keep; if this is less than 1 then no limit is
+   *                        enforced and every expanded state stays cached
+   */
+  protected LazyFst(Semiring semiring, SymbolTable inputSymbols, SymbolTable outputSymbols, int maxCachedStates) {
+    this.semiring = semiring;
+    this.inputSymbols = inputSymbols;
+    this.outputSymbols = outputSymbols;
+    this.maxCachedStates = maxCachedStates;
+  }
+
+  /**
+   * The id of the start state; this must be the first state discovered (so is usually 0)
+   */
+  protected abstract int getStartStateId();
+
+  /**
+   * The number of states that have been discovered (assigned an id) so far; ids are always `[0, count)`. Unlike
+   * `getStateCount()` this does not expand anything
+   */
+  public abstract int getDiscoveredStateCount();
+
+  /**
+   * Computes the final weight of the given (already discovered) state
+   */
+  protected abstract double computeFinalWeight(int stateId);
+
+  /**
+   * Computes the outgoing arcs of the given (already discovered) state and adds them to the given sink, in order.
+   * This must produce the same arcs each time it is called for the same state (as evicted states are re-expanded),
+   * and it may discover new states as it goes
+   */
+  protected abstract void expand(int stateId, ArcSink sink);
+
+  /**
+   * Receives the arcs of a state being expanded
+   */
+  protected interface ArcSink {
+    void add(int ilabel, int olabel, int nextStateId, double weight);
+  }
+
+  private ExpandedState expanded(int stateId) {
+    Preconditions.checkElementIndex(stateId, getDiscoveredStateCount(), "state index");
+    ExpandedState state = cache.get(stateId);
+    if (state != null) {
+      if (maxCachedStates > 0 && lruHead != stateId) {
+        unlink(stateId);
+        linkFirst(stateId);
+      }
+      return state;
+    }
+    state = new ExpandedState();
+    expand(stateId, state);
+    expandedOnce.set(stateId);
+    cache.put(stateId, state);
+    if (maxCachedStates > 0) {
+      linkFirst(stateId);
+      if (cache.size() > maxCachedStates) {
+        int eldest = lruTail;
+        unlink(eldest);
+        cache.remove(eldest);
+      }
+    }
+    return state;
+  }
+
+  private void linkFirst(int stateId) {
+    if (stateId >= lruPrev.length) {
+      int newCapacity = Math.max(stateId + 1, lruPrev.length * 2);
+      lruPrev = Arrays.copyOf(lruPrev, newCapacity);
+      lruNext = Arrays.copyOf(lruNext, newCapacity);
+    }
+    lruPrev[stateId] = NO_STATE;
+    lruNext[stateId] = lruHead;
+    if (lruHead != NO_STATE) {
+      lruPrev[lruHead] = stateId;
+    } else {
+      lruTail = stateId;
+    }
+    lruHead = stateId;
+  }
+
+  private void unlink(int stateId) {
+    int prev = lruPrev[stateId];
+    int next = lruNext[stateId];
+    if (prev != NO_STATE) {
+      lruNext[prev] = next;
+    } else {
+      lruHead = next;
+    }
+    if (next != NO_STATE) {
+      lruPrev[next] = prev;
+    } else {
+      lruTail = prev;
+    }
+  }
+
+  /**
+   * Expands every reachable state (so that every state has been discovered)
+   */
+  protected void expandAll() {
+    if (fullyExpanded) {
+      return;
+    }
+    for (int i = 0; i < getDiscoveredStateCount(); i++) {
+      if (!expandedOnce.get(i)) {
+        // expanding just to discover so dont pollute the cache
+        scratch.clear();
+        expand(i, scratch);
+        expandedOnce.set(i);
+      }
+    }
+    fullyExpanded = true;
+  }
+
+  /**
+   * Expands the whole FST (from the start state) into a new MutableFst, in a single pass and without using (or
+   * filling) the state cache; the state ids of the result are the same as the ids in this fst
+   * @return
+   */
+  public MutableFst toMutableFst() {
+    MutableFst res = new MutableFst(semiring, FstUtils.symbolTableEffectiveCopy(inputSymbols),
+        FstUtils.symbolTableEffectiveCopy(outputSymbols));
+    int startId = getStartStateId();
+    for (int i = 0; i < getDiscoveredStateCount(); i++) {
+      while (res.getStateCount() <= i) {
+        res.newState(computeFinalWeight(res.getStateCount()));
+      }
+      scratch.clear();
+      expand(i, scratch);
+      expandedOnce.set(i);
+      MutableState state = res.getState(i);
+      for (int j = 0; j < scratch.count; j++) {
+        int nextId = scratch.nextStates[j];
+        while (res.getStateCount() <= nextId) {
+          res.newState(computeFinalWeight(res.getStateCount()));
+        }
+        res.addArc(state, scratch.ilabels[j], scratch.olabels[j], res.getState(nextId), scratch.weights[j]);
+      }
+    }
+    fullyExpanded = true;
+    res.setStart(res.getState(startId));
+    return res;
+  }
+
+  @Override
+  public LazyState getStartState() {
+    return new LazyState(getStartStateId());
+  }
+
+  @Override
+  public Semiring getSemiring() {
+    return semiring;
+  }
+
+  /**
+   * NOTE this forces the full expansion of the fst
+   */
+  @Override
+  public int getStateCount() {
+    expandAll();
+    return getDiscoveredStateCount();
+  }
+
+  @Override
+  public LazyState getState(int index) {
+    Preconditions.checkElementIndex(index, getDiscoveredStateCount(), "state index");
+    return new LazyState(index);
+  }
+
+  @Override
+  public double getFinalWeight(int stateId) {
+    Preconditions.checkElementIndex(stateId, getDiscoveredStateCount(), "state index");
+    return computeFinalWeight(stateId);
+  }
+
+  @Override
+  public State getState(String name) {
+    throw new IllegalStateException("cant ask by name if not using state symbols");
+  }
+
+  @Override
+  public SymbolTable getInputSymbols() {
+    return inputSymbols;
+  }
+
+  @Override
+  public SymbolTable getOutputSymbols() {
+    return outputSymbols;
+  }
+
+  @Nullable
+  @Override
+  public SymbolTable getStateSymbols() {
+    return null;
+  }
+
+  @Override
+  public boolean isUsingStateSymbols() {
+    return false;
+  }
+
+  @Override
+  public int getInputSymbolCount() {
+    return inputSymbols.size();
+  }
+
+  @Override
+  public int getOutputSymbolCount() {
+    return outputSymbols.size();
+  }
+
+  @Override
+  public int lookupInputSymbol(String symbol) {
+    return inputSymbols.get(symbol);
+  }
+
+  @Override
+  public int lookupOutputSymbol(String symbol) {
+    return outputSymbols.get(symbol);
+  }
+
+  @Override
+  public void throwIfInvalid() {
+    Preconditions.checkNotNull(semiring, "must have a semiring");
+  }
+
+  @Override
+  public ArcCursor newArcCursor() {
+    return new LazyArcCursor();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return FstUtils.fstEquals(this, obj);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = semiring.hashCode();
+    result = 31 * result + getStartStateId();
+    result = 31 * result + getStateCount();
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(start=" + getStartStateId() + ", discoveredStates=" +
+           getDiscoveredStateCount() + ", cachedStates=" + cache.size() + ", semiring=" + semiring + ")";
+  }
+
+  /**
+   * The arcs of one expanded state as parallel primitive arrays
+   */
+  private static class ExpandedState implements ArcSink {
+
+    private int[] ilabels = new int[4];
+    private int[] olabels = new int[4];
+    private int[] nextStates = new int[4];
+    private double[] weights = new double[4];
+    private int count = 0;
+
+    @Override
+    public void add(int ilabel, int olabel, int nextStateId, double weight) {
+      if (count == ilabels.length) {
+        int newCapacity = count + (count >> 1) + 1;
+        ilabels = Arrays.copyOf(ilabels, newCapacity);
+        olabels = Arrays.copyOf(olabels, newCapacity);
+        nextStates = Arrays.copyOf(nextStates, newCapacity);
+        weights = Arrays.copyOf(weights, newCapacity);
+      }
+      ilabels[count] = ilabel;
+      olabels[count] = olabel;
+      nextStates[count] = nextStateId;
+      weights[count] = weight;
+      count += 1;
+    }
+
+    void clear() {
+      count = 0;
+    }
+  }
+
+  private class LazyArcCursor implements ArcCursor {
+
+    private int stateId = -1;
+    // we hold on to the expanded state so it doesn't matter if it gets evicted while we're iterating
+    private ExpandedState state;
+    private int index;
+
+    @Override
+    public void reset(int stateId) {
+      this.state = expanded(stateId);
+      this.stateId = stateId;
+      this.index = -1;
+    }
+
+    @Override
+    public boolean next() {
+      index += 1;
+      if (index < state.count) {
+        return true;
+      }
+      index = state.count;
+      return false;
+    }
+
+    @Override
+    public boolean seek(int ilabel) {
+      int lo = 0;
+      int hi = state.count;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (state.ilabels[mid] < ilabel) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      index = lo - 1;
+      return lo < state.count && state.ilabels[lo] == ilabel;
+    }
+
+    @Override
+    public int stateId() {
+      return stateId;
+    }
+
+    @Override
+    public int arcCount() {
+      return state.count;
+    }
+
+    @Override
+    public double finalWeight() {
+      return computeFinalWeight(stateId);
+    }
+
+    @Override
+    public int ilabel() {
+      return state.ilabels[index];
+    }
+
+    @Override
+    public int olabel() {
+      return state.olabels[index];
+    }
+
+    @Override
+    public double weight() {
+      return state.weights[index];
+    }
+
+    @Override
+    public int nextStateId() {
+      return state.nextStates[index];
+    }
+  }
+
+  /**
+   * View of a single (lazily expanded) state; holds nothing but the state id
+   */
+  public class LazyState implements State {
+
+    private final int id;
+
+    private LazyState(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public double getFinalWeight() {
+      return computeFinalWeight(id);
+    }
+
+    @Override
+    public int getId() {
+      return id;
+    }
+
+    @Override
+    public int getArcCount() {
+      return expanded(id).count;
+    }
+
+    @Override
+    public LazyArc getArc(int index) {
+      ExpandedState state = expanded(id);
+      Preconditions.checkElementIndex(index, state.count, "arc index");
+      return new LazyArc(state.ilabels[index], state.olabels[index], state.nextStates[index], state.weights[index]);
+    }
+
+    @Override
+    public List<LazyArc> getArcs() {
+      return new AbstractList<LazyArc>() {
+        @Override
+        public LazyArc get(int index) {
+          return getArc(index);
+        }
+
+        @Override
+        public int size() {
+          return getArcCount();
+        }
+      };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return FstUtils.stateEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = id;
+      long temp = Double.doubleToLongBits(getFinalWeight());
+      result = 31 * result + (int) (temp ^ (temp >>> 32));
+      result = 31 * result + getArcCount();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "LazyState{" +
+             "id=" + id +
+             ", finalWeight=" + getFinalWeight() +
+             '}';
+    }
+  }
+
+  /**
+   * Snapshot of a single arc of a lazy state
+   */
+  public class LazyArc implements Arc {
+
+    private final int ilabel;
+    private final int olabel;
+    private final int nextStateId;
+    private final double weight;
+
+    private LazyArc(int ilabel, int olabel, int nextStateId, double weight) {
+      this.ilabel = ilabel;
+      this.olabel = olabel;
+      this.nextStateId = nextStateId;
+      this.weight = weight;
+    }
+
+    @Override
+    public double getWeight() {
+      return weight;
+    }
+
+    @Override
+    public int getIlabel() {
+      return ilabel;
+    }
+
+    @Override
+    public int getOlabel() {
+      return olabel;
+    }
+
+    @Override
+    public LazyState getNextState() {
+      return new LazyState(nextStateId);
+    }
+
+    public int getNextStateId() {
+      return nextStateId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return FstUtils.arcEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      long temp = Double.doubleToLongBits(weight);
+      int result = (int) (temp ^ (temp >>> 32));
+      result = 31 * result + ilabel;
+      result = 31 * result + olabel;
+      result = 31 * result + nextStateId;
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "LazyArc{" +
+             "ilabel=" + ilabel +
+             ", olabel=" + olabel +
+             ", weight=" + weight +
+             ", nextStateId=" + nextStateId +
+             '}';
+    }
+  }
+}
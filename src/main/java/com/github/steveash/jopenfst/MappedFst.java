@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.Semiring;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Read-only FST whose states and arcs are read straight out of a memory mapped file (in the same CSR layout as
+ * {@link CompactFst}), so opening a model doesn't parse the arcs or copy them on to the heap, and multiple JVMs on the
+ * same host share the OS page cache for the same model file. Only the symbol tables are materialized on the heap.
+ * <p>
+ * Create these files with `FstInputOutput.writeFstToMappedFile` and open them with
+ * `FstInputOutput.readFstFromMappedFile`
+ * NOTE: this is thread safe; the buffers are only ever read with absolute (position independent) gets
+ *
+ * @author Steve Ash
+ * @see FstInputOutput#writeFstToMappedFile(Fst, File)
+ * @see FstInputOutput#readFstFromMappedFile(File)
+ */
+public class MappedFst extends AbstractCompactFst {
+
+  private final int numStates;
+  private final int numArcs;
+  private final DoubleBuffer finalWeights;
+  private final IntBuffer arcOffsets;
+  private final IntBuffer ilabels;
+  private final IntBuffer olabels;
+  private final IntBuffer nextStates;
+  private final DoubleBuffer weights;
+
+  MappedFst(Semiring semiring, int startId, ImmutableSymbolTable itable, ImmutableSymbolTable otable,
+            @Nullable ImmutableSymbolTable stable, DoubleBuffer finalWeights, IntBuffer arcOffsets,
+            IntBuffer ilabels, IntBuffer olabels, IntBuffer nextStates, DoubleBuffer weights) {
+    super(semiring, startId, itable, otable, stable);
+    this.numStates = finalWeights.capacity();
+    this.numArcs = ilabels.capacity();
+    this.finalWeights = finalWeights;
+    this.arcOffsets = arcOffsets;
+    this.ilabels = ilabels;
+    this.olabels = olabels;
+    this.nextStates = nextStates;
+    this.weights = weights;
+  }
+
+  @Override
+  public int getStateCount() {
+    return numStates;
+  }
+
+  @Override
+  public int getArcCount() {
+    return numArcs;
+  }
+
+  @Override
+  protected double finalWeightAt(int stateId) {
+    return finalWeights.get(stateId);
+  }
+
+  @Override
+  protected int arcOffsetAt(int stateId) {
+    return arcOffsets.get(stateId);
+  }
+
+  @Override
+  protected int ilabelAt(int arcIndex) {
+    return ilabels.get(arcIndex);
+  }
+
+  @Override
+  protected int olabelAt(int arcIndex) {
+    return olabels.get(arcIndex);
+  }
+
+  @Override
+  protected int nextStateAt(int arcIndex) {
+    return nextStates.get(arcIndex);
+  }
+
+  @Override
+  protected double weightAt(int arcIndex) {
+    return weights.get(arcIndex);
+  }
+}
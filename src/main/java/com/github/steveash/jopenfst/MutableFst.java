@@ -67,13 +67,13 @@ public class MutableFst implements Fst {
       copy.setState(i, target);
     }
     // build arcs now that we have target state refs
+    ArcCursor cursor = fst.newArcCursor();
     for (int i = 0; i < fst.getStateCount(); i++) {
-      State source = fst.getState(i);
       MutableState target = copy.getState(i);
-      for (int j = 0; j < source.getArcCount(); j++) {
-        Arc sarc = source.getArc(j);
-        MutableState nextTargetState = copy.getState(sarc.getNextState().getId());
-        MutableArc tarc = new MutableArc(sarc.getIlabel(), sarc.getOlabel(), sarc.getWeight(), nextTargetState);
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        MutableState nextTargetState = copy.getState(cursor.nextStateId());
+        MutableArc tarc = new MutableArc(cursor.ilabel(), cursor.olabel(), cursor.weight(), nextTargetState);
         target.addArc(tarc);
       }
     }
@@ -137,6 +137,9 @@ public class MutableFst implements Fst {
   private WriteableSymbolTable inputSymbols;
   private WriteableSymbolTable outputSymbols;
   private MutableSymbolTable stateSymbols;
+  // the reverse index for the deprecated MutableState.getIncomingStates(); built on first use after any change
+  @Nullable
+  private IncomingStateIndex incomingIndex;
 
   public MutableFst() {
     this(makeDefaultRing(), new MutableSymbolTable(), new MutableSymbolTable());
@@ -304,6 +307,8 @@ public class MutableFst implements Fst {
     checkArgument(state.getId() == -1, "trying to add a state that already has id");
     this.states.add(state);
     state.id = states.size() - 1;
+    state.setOwner(this);
+    incomingIndex = null;
     if (stateSymbols != null) {
       Preconditions.checkNotNull(newStateSymbol, "if using symbol table for states everything must have "
                                                  + "a symbol");
@@ -328,6 +333,8 @@ public class MutableFst implements Fst {
     }
     Preconditions.checkState(this.states.get(id) == null, "cant write two states with ", id);
     this.states.set(id, state);
+    state.setOwner(this);
+    incomingIndex = null;
     correctStateWeight(state);
     return state;
   }
@@ -399,7 +406,7 @@ public class MutableFst implements Fst {
                                         weight,
                                         endState);
     startState.addArc(newArc);
-    endState.addIncomingState(startState);
+    incomingIndex = null;
     return newArc;
   }
 
@@ -489,16 +496,50 @@ public class MutableFst implements Fst {
   }
 
   /**
-   * Deletes the given states and remaps the existing state ids
+   * Deletes the given states (and all arcs into them) and remaps the existing state ids
    */
   public void deleteStates(Collection<MutableState> statesToDelete) {
     if (statesToDelete.isEmpty()) {
       return;
     }
+    // we don't track incoming states while building, so use the reverse index for this batch of deletes
+    IncomingStateIndex incoming = getIncomingIndex();
+    boolean[] deleted = new boolean[states.size()];
     for (MutableState state : statesToDelete) {
       deleteState(state);
+      deleted[state.getId()] = true;
+    }
+    // delete arcs with nextstate equal to any deleted state
+    boolean[] visited = new boolean[states.size()];
+    for (MutableState state : statesToDelete) {
+      int id = state.getId();
+      for (int i = 0; i < incoming.getIncomingCount(id); i++) {
+        int inStateId = incoming.getIncomingState(id, i);
+        if (deleted[inStateId] || visited[inStateId]) {
+          continue;
+        }
+        visited[inStateId] = true;
+        Iterator<MutableArc> iter = states.get(inStateId).getArcs().iterator();
+        while (iter.hasNext()) {
+          if (deleted[iter.next().getNextState().getId()]) {
+            iter.remove();
+          }
+        }
+      }
     }
     remapStateIds();
+    incomingIndex = null;
+  }
+
+  /**
+   * Returns the reverse index of the current states and arcs, which is built on first use after a state or arc is
+   * added or states are deleted through this fst
+   */
+  IncomingStateIndex getIncomingIndex() {
+    if (incomingIndex == null) {
+      incomingIndex = IncomingStateIndex.build(this);
+    }
+    return incomingIndex;
   }
 
   /**
@@ -512,25 +553,10 @@ public class MutableFst implements Fst {
     }
     // we're going to "compact" all of the nulls out and remap state ids at the end
     this.states.set(state.getId(), null);
+    state.setOwner(null);
     if (isUsingStateSymbols()) {
       stateSymbols.remove(state.getId());
     }
-
-    // this state won't be incoming to any of its arc's targets anymore
-    for (MutableArc mutableArc : state.getArcs()) {
-      mutableArc.getNextState().removeIncomingState(state);
-    }
-
-    // delete arc's with nextstate equal to stateid
-    for (MutableState inState : state.getIncomingStates()) {
-      Iterator<MutableArc> iter = inState.getArcs().iterator();
-      while (iter.hasNext()) {
-        MutableArc arc = iter.next();
-        if (arc.getNextState() == state) {
-          iter.remove();
-        }
-      }
-    }
   }
 
   private void remapStateIds() {
@@ -589,6 +615,16 @@ public class MutableFst implements Fst {
     }
   }
 
+  @Override
+  public double getFinalWeight(int stateId) {
+    return states.get(stateId).getFinalWeight();
+  }
+
+  @Override
+  public ArcCursor newArcCursor() {
+    return new StateArcCursor(this);
+  }
+
   @Override
   public boolean equals(Object o) {
     return FstUtils.fstEquals(this, o);
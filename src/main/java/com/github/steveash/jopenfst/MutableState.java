@@ -17,14 +17,14 @@
 package com.github.steveash.jopenfst;
 
 import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 /**
  * The fst's mutable state implementation.
@@ -44,12 +44,13 @@ public class MutableState implements State {
   // Outgoing arcs
   private final ArrayList<MutableArc> arcs;
 
-  // Incoming arcs (at least states with arcs that are incoming to us)
-  private final Set<MutableState> incomingStates = Sets.newIdentityHashSet();
-
   // initial number of arcs; this is only used during deserialization and should be ignored otherwise
   protected int initialNumArcs = -1;
 
+  // the fst that this state was added to; only used by the deprecated getIncomingStates()
+  @Nullable
+  private MutableFst owner;
+
   /**
    * Default Constructor
    */
@@ -147,17 +148,34 @@ public class MutableState implements State {
       this.arcs.add(arc);
     }
 
-  void addIncomingState(MutableState inState) {
-    if (inState == this) return;
-    this.incomingStates.add(inState);
+  /**
+   * Returns the (distinct) states that have an arc into this state, not including this state itself
+   *
+   * @deprecated incoming states are no longer tracked as arcs are added; this uses an {@link IncomingStateIndex} of the
+   * owning fst, which is built on first use after the fst's states or arcs change (so changes made directly through
+   * the arcs of a state aren't seen). Build the index yourself instead; this will be removed in the next release
+   */
+  @Deprecated
+  public Iterable<MutableState> getIncomingStates() {
+    Preconditions.checkState(owner != null, "state hasn't been added to an fst");
+    IncomingStateIndex index = owner.getIncomingIndex();
+    List<MutableState> result = Lists.newArrayListWithCapacity(index.getIncomingCount(id));
+    for (int i = 0; i < index.getIncomingCount(id); i++) {
+      int sourceId = index.getIncomingState(id, i);
+      if (sourceId != id) {
+        result.add(owner.getState(sourceId));
+      }
+    }
+    return result;
   }
 
-  void removeIncomingState(MutableState inState) {
-    this.incomingStates.remove(inState);
+  @Nullable
+  MutableFst getOwner() {
+    return owner;
   }
 
-  public Iterable<MutableState> getIncomingStates() {
-    return this.incomingStates;
+  void setOwner(@Nullable MutableFst owner) {
+    this.owner = owner;
   }
 
   @Override
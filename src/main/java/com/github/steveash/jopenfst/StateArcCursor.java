@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+/**
+ * Arc cursor for FSTs that already hold State and Arc objects (like {@link MutableFst} and {@link ImmutableFst}); it
+ * just walks the state's arcs by index so it doesn't allocate anything itself
+ * @author Steve Ash
+ */
+public class StateArcCursor implements ArcCursor {
+
+  private final Fst fst;
+  private State state;
+  private Arc arc;
+  private int index;
+  private int count;
+
+  public StateArcCursor(Fst fst) {
+    this.fst = fst;
+  }
+
+  @Override
+  public void reset(int stateId) {
+    this.state = fst.getState(stateId);
+    this.arc = null;
+    this.index = -1;
+    this.count = state.getArcCount();
+  }
+
+  @Override
+  public boolean next() {
+    index += 1;
+    if (index < count) {
+      arc = state.getArc(index);
+      return true;
+    }
+    index = count;
+    arc = null;
+    return false;
+  }
+
+  @Override
+  public boolean seek(int ilabel) {
+    int lo = 0;
+    int hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (state.getArc(mid).getIlabel() < ilabel) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    index = lo - 1;
+    arc = null;
+    return lo < count && state.getArc(lo).getIlabel() == ilabel;
+  }
+
+  @Override
+  public int stateId() {
+    return state.getId();
+  }
+
+  @Override
+  public int arcCount() {
+    return count;
+  }
+
+  @Override
+  public double finalWeight() {
+    return state.getFinalWeight();
+  }
+
+  @Override
+  public int ilabel() {
+    return arc.getIlabel();
+  }
+
+  @Override
+  public int olabel() {
+    return arc.getOlabel();
+  }
+
+  @Override
+  public double weight() {
+    return arc.getWeight();
+  }
+
+  @Override
+  public int nextStateId() {
+    return arc.getNextState().getId();
+  }
+}
@@ -16,34 +16,33 @@
 
 package com.github.steveash.jopenfst.operations;
 
-import com.carrotsearch.hppc.cursors.ObjectIntCursor;
-import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.ArcMatcher;
+import com.github.steveash.jopenfst.CompactFst;
 import com.github.steveash.jopenfst.Fst;
-import com.github.steveash.jopenfst.ImmutableFst;
-import com.github.steveash.jopenfst.IndexPair;
-import com.github.steveash.jopenfst.MutableArc;
+import com.github.steveash.jopenfst.LabelReachability;
+import com.github.steveash.jopenfst.LazyFst;
 import com.github.steveash.jopenfst.MutableFst;
-import com.github.steveash.jopenfst.MutableState;
-import com.github.steveash.jopenfst.State;
-import com.github.steveash.jopenfst.SymbolTable;
 import com.github.steveash.jopenfst.WriteableSymbolTable;
 import com.github.steveash.jopenfst.semiring.Semiring;
 import com.github.steveash.jopenfst.utils.FstUtils;
-import com.google.common.collect.Maps;
 
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-
-import static com.github.steveash.jopenfst.utils.FstUtils.LOG_REPORTER;
-import static com.github.steveash.jopenfst.utils.FstUtils.symbolTableEffectiveCopy;
+import javax.annotation.Nullable;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Compose operation.
  *
  * There are two ways to use compose: `compose(a, b, ring)` which does the compose on a b. However, if you are going
  * to be running with the same b over and over again, you can optimize some of the work by precomputing the b via
- * `precomputeInner(b)` and then subsequently calling `composeWithPrecomputed()
+ * `precomputeInner(b)` and then subsequently calling `composeWithPrecomputed()`. If you are only going to explore a
+ * small part of the result (e.g. the n-best paths) then `composeLazy()` returns a delayed {@link ComposeFst} that only
+ * computes the states that are visited. To bound the time and memory of composes whose result might blow up, use
+ * `composePruned()` (or `composeWithPrecomputedPruned()`) which take a beam and limits on the result size
+ *
+ * None of these modify their inputs, which can be any kind of fst (mutable, immutable, compact, ...); so read only
+ * models (e.g. an {@link com.github.steveash.jopenfst.ImmutableFst}) can be shared by many threads composing at the
+ * same time without any defensive copies. The exception is delayed fsts (like a {@link ComposeFst}), which aren't
+ * thread safe
  *
  * See: M. Mohri, "Weighted automata algorithms", Handbook of Weighted Automata. Springer, pp. 213-250, 2009.
  *
@@ -51,8 +50,6 @@ import static com.github.steveash.jopenfst.utils.FstUtils.symbolTableEffectiveCo
  */
 public class Compose {
 
-  private enum AugmentLabels {INPUT, OUTPUT}
-
   /**
    * Pre-processes a FST that is going to be used on the right hand side of a compose operator many times
    * @param fst2 the fst that will appear on the right hand side
@@ -60,39 +57,64 @@ public class Compose {
    * @return a pre-processed form of the inner fst that can be passed to `composeWithPrecomputed`
    */
   public static PrecomputedComposeFst precomputeInner(Fst fst2, Semiring semiring) {
+    return precomputeInner(fst2, semiring, false);
+  }
+
+  /**
+   * Pre-processes a FST that is going to be used on the right hand side of a compose operator many times
+   * @param fst2 the fst that will appear on the right hand side
+   * @param semiring the semiring that will be used for the compose operation
+   * @param useLookahead if true then the input label reachability of fst2 is precomputed too (see
+   *                     {@link LabelReachability}) and composes with the result will not create product states that
+   *                     can't match anything in fst2 (which otherwise are only trimmed after the whole product is
+   *                     built); the trimmed result is equivalent either way, but the state ids may be different
+   * @return a pre-processed form of the inner fst that can be passed to `composeWithPrecomputed`
+   */
+  public static PrecomputedComposeFst precomputeInner(Fst fst2, Semiring semiring, boolean useLookahead) {
     fst2.throwIfInvalid();
     MutableFst mutableFst = MutableFst.copyFrom(fst2);
-    WriteableSymbolTable table = mutableFst.getInputSymbols();
-    int e1index = getOrAddEps(table, true);
-    int e2index = getOrAddEps(table, false);
-    String eps1 = table.invert().keyForId(e1index);
-    String eps2 = table.invert().keyForId(e2index);
-    augment(AugmentLabels.INPUT, mutableFst, semiring, eps1, eps2);
+    // outer fsts are built with this input table (see createNewOuterFst), and results have always carried the
+    // compose epsilon symbols, so add them here once
+    addComposeEps(mutableFst.getInputSymbols());
+    addComposeEps(mutableFst.getOutputSymbols());
     ArcSort.sortByInput(mutableFst);
-
-    MutableFst filter = makeFilter(table, semiring, eps1, eps2);
-    ArcSort.sortByInput(filter);
-
-    return new PrecomputedComposeFst(eps1, eps2, new ImmutableFst(mutableFst), semiring, new ImmutableFst(filter));
+    CompactFst compactFst = CompactFst.copyFrom(mutableFst);
+    LabelReachability lookahead = (useLookahead ? LabelReachability.forInput(compactFst) : null);
+    return new PrecomputedComposeFst(compactFst, semiring, lookahead);
   }
 
-  public static MutableFst composeWithPrecomputed(MutableFst fst1, PrecomputedComposeFst fst2) {
+  public static MutableFst composeWithPrecomputed(Fst fst1, PrecomputedComposeFst fst2) {
     return composeWithPrecomputed(fst1, fst2, false);
   }
 
-  public static MutableFst composeWithPrecomputed(MutableFst fst1, PrecomputedComposeFst fst2, boolean useSorted) {
+  public static MutableFst composeWithPrecomputed(Fst fst1, PrecomputedComposeFst fst2, boolean useSorted) {
     return composeWithPrecomputed(fst1, fst2, useSorted, true);
   }
 
   /**
    * Executes a compose of fst1 o fst2, with fst2 being a precomputed/preprocessed fst (for performance reasons)
-   * @param fst1 outer fst
+   * @param fst1 outer fst (which is not modified)
    * @param fst2 inner fst
-   * @param useSorted if true, then performance will be faster; NOTE fst1 must be sorted by OUTPUT labels
+   * @param useSorted if true, then the arcs of the result are produced in fst1's output label order
    * @param trimOutput if true, then output will be trimmed before returning
    * @return
    */
-  public static MutableFst composeWithPrecomputed(MutableFst fst1, PrecomputedComposeFst fst2, boolean useSorted, boolean trimOutput) {
+  public static MutableFst composeWithPrecomputed(Fst fst1, PrecomputedComposeFst fst2, boolean useSorted, boolean trimOutput) {
+    return composeWithPrecomputed(fst1, fst2, useSorted, trimOutput, null);
+  }
+
+  /**
+   * Executes a compose of fst1 o fst2, with fst2 being a precomputed/preprocessed fst (for performance reasons),
+   * optionally expanding the product in parallel on the given pool; the result is the same either way
+   * @param fst1 outer fst (which is not modified)
+   * @param fst2 inner fst
+   * @param useSorted if true, then the arcs of the result are produced in fst1's output label order
+   * @param trimOutput if true, then output will be trimmed before returning
+   * @param pool if not null then the product is expanded in parallel on this pool (see {@link ParallelCompose})
+   * @return
+   */
+  public static MutableFst composeWithPrecomputed(Fst fst1, PrecomputedComposeFst fst2, boolean useSorted,
+                                                  boolean trimOutput, @Nullable ForkJoinPool pool) {
     fst1.throwIfInvalid();
     if (useSorted) {
       if (fst1.getOutputSymbols() != fst2.getFstInputSymbolsAsFrozen() &&
@@ -102,17 +124,8 @@ public class Compose {
       }
     }
     Semiring semiring = fst2.getSemiring();
-
-    augment(AugmentLabels.OUTPUT, fst1, semiring, fst2.getEps1(), fst2.getEps2());
-    if (useSorted) {
-      ArcSort.sortByOutput(fst1);
-    }
-    ImmutableFst filter = fst2.getFilterFst();
-    MutableFst tmp = Compose.doCompose(fst1, filter, semiring, useSorted);
-    if (useSorted) {
-      ArcSort.sortByOutput(tmp);
-    }
-    MutableFst res = Compose.doCompose(tmp, fst2.getFst(), semiring, useSorted);
+    MutableFst res = expand(new ComposeFst(fst1, fst2.getInnerSide(), fst2.getMatcher(), fst2.getLookahead(), semiring,
+        useSorted, 0, null), pool);
     // definitionally the output of compose should be trimmed, but if you don't care, you can save some cpu
     if (trimOutput) {
       Connect.apply(res);
@@ -121,221 +134,154 @@ public class Compose {
   }
 
   /**
-   * Computes the composition of two Fsts. The two Fsts are augmented in order to avoid multiple epsilon paths in the
-   * resulting Fst
+   * Delayed version of `composeWithPrecomputed`: the product states are only computed as they are visited (e.g. by
+   * `NShortestPaths`), so callers that only explore a small part of the result only pay for that part. Note that the
+   * result is not trimmed
+   * @param fst1 outer fst (which is not modified)
+   * @param fst2 inner fst
+   * @return a delayed fst of fst1 o fst2
+   */
+  public static ComposeFst composeLazy(Fst fst1, PrecomputedComposeFst fst2) {
+    return composeLazy(fst1, fst2, LazyFst.DEFAULT_MAX_CACHED_STATES);
+  }
+
+  /**
+   * Delayed version of `composeWithPrecomputed`; see `composeLazy(fst1, fst2)`
+   * @param fst1 outer fst (which is not modified)
+   * @param fst2 inner fst
+   * @param maxCachedStates the maximum number of expanded product states to keep in the cache
+   * @return a delayed fst of fst1 o fst2
+   */
+  public static ComposeFst composeLazy(Fst fst1, PrecomputedComposeFst fst2, int maxCachedStates) {
+    fst1.throwIfInvalid();
+    return new ComposeFst(fst1, fst2.getInnerSide(), fst2.getMatcher(), fst2.getLookahead(), fst2.getSemiring(), false,
+        maxCachedStates, null);
+  }
+
+  /**
+   * Delayed composition of fst1 o fst2; see `composeLazy(fst1, fst2)`. If you are going to use the same fst2 more
+   * than once then precompute it via `precomputeInner` and use that instead
+   * @param fst1 outer fst (which is not modified)
+   * @param fst2 inner fst (which is not modified)
+   * @param semiring the semiring to use in the operation
+   * @return a delayed fst of fst1 o fst2
+   */
+  public static ComposeFst composeLazy(Fst fst1, Fst fst2, Semiring semiring) {
+    return composeLazy(fst1, precomputeInner(fst2, semiring));
+  }
+
+  /**
+   * Computes the composition of two Fsts. Epsilons are handled by an epsilon filter (tracked as part of the composed
+   * states) in order to avoid multiple epsilon paths in the resulting Fst; neither input is modified
    *
    * @param fst1     the first Fst
    * @param fst2     the second Fst
    * @param semiring the semiring to use in the operation
    * @return the composed Fst
    */
-  public static MutableFst compose(MutableFst fst1, MutableFst fst2, Semiring semiring) {
+  public static MutableFst compose(Fst fst1, Fst fst2, Semiring semiring) {
     return compose(fst1, fst2, semiring, false);
   }
 
   /**
-   * Computes the composition of two Fsts. The two Fsts are augmented in order to avoid multiple epsilon paths in the
-   * resulting Fst
+   * Computes the composition of two Fsts. Epsilons are handled by an epsilon filter (tracked as part of the composed
+   * states) in order to avoid multiple epsilon paths in the resulting Fst; neither input is modified
+   *
+   * @param fst1     the first Fst
+   * @param fst2     the second Fst
+   * @param semiring the semiring to use in the operation
+   * @param useSorted if true then the arcs of the result are produced in fst1's output label order
+   * @return the composed Fst
+   */
+  public static MutableFst compose(Fst fst1, Fst fst2, Semiring semiring, boolean useSorted) {
+    return compose(fst1, fst2, semiring, useSorted, null);
+  }
+
+  /**
+   * Computes the composition of two Fsts, optionally expanding the product in parallel on the given pool (one
+   * breadth first level at a time); the result is the same either way. Neither input is modified (nor may they be
+   * modified by anything else while this runs)
    *
    * @param fst1     the first Fst
    * @param fst2     the second Fst
    * @param semiring the semiring to use in the operation
-   * @param useSorted if true then the input fsts should be sorted
+   * @param useSorted if true then the arcs of the result are produced in fst1's output label order
+   * @param pool if not null then the product is expanded in parallel on this pool (see {@link ParallelCompose})
    * @return the composed Fst
    */
-  public static MutableFst compose(MutableFst fst1, MutableFst fst2, Semiring semiring, boolean useSorted) {
+  public static MutableFst compose(Fst fst1, Fst fst2, Semiring semiring, boolean useSorted,
+                                   @Nullable ForkJoinPool pool) {
     fst1.throwIfInvalid();
     fst2.throwIfInvalid();
     if (!FstUtils.symbolTableEquals(fst1.getOutputSymbols(), fst2.getInputSymbols())) {
       throw new IllegalArgumentException("Symbol tables don't match, cant compose " + fst1 + " to " + fst2);
     }
-
-    WriteableSymbolTable table = symbolTableEffectiveCopy(fst1.getOutputSymbols());
-
-    int e1index = getOrAddEps(table, true);
-    int e2index = getOrAddEps(table, false);
-    String eps1 = table.invert().keyForId(e1index);
-    String eps2 = table.invert().keyForId(e2index);
-    MutableFst filter = makeFilter(table, semiring, eps1, eps2);
-    augment(AugmentLabels.OUTPUT, fst1, semiring, eps1, eps2);
-    augment(AugmentLabels.INPUT, fst2, semiring, eps1, eps2);
-    if (useSorted) {
-      ArcSort.sortByOutput(fst1);
-      ArcSort.sortByInput(filter);
-    }
-    assert(FstUtils.symbolTableEquals(fst1.getOutputSymbols(), filter.getInputSymbols(), LOG_REPORTER));
-    MutableFst tmp = Compose.doCompose(fst1, filter, semiring, useSorted);
-    if (useSorted) {
-      ArcSort.sortByOutput(tmp);
-    }
-    assert(FstUtils.symbolTableEquals(tmp.getOutputSymbols(), fst2.getInputSymbols(), LOG_REPORTER));
-    MutableFst res = Compose.doCompose(tmp, fst2, semiring, useSorted);
+    CompactFst compactFst2 = CompactFst.copyFrom(fst2);
+    MutableFst res = expand(new ComposeFst(fst1, compactFst2, ArcMatcher.forInput(compactFst2), null, semiring,
+        useSorted, 0), pool);
     Connect.apply(res);
 
     return res;
   }
 
-  private static int getOrAddEps(WriteableSymbolTable table, boolean isFirst) {
-    return table.getOrAdd("<$$compose$$eps" + (isFirst ? "1" : "2") + ">");
-  }
-
   /**
-   * Get a filter to use for avoiding multiple epsilon paths in the resulting Fst
+   * Computes the composition of two Fsts like `compose`, but bounds the size of the result: states whose distance
+   * from the start is worse than `beam` times the best distance of any state with the same fst1 state are pruned,
+   * and the product stops growing at `maxStates` states and `maxArcs` arcs. The product is expanded best first, so
+   * hitting a limit keeps the states closest to the start (or gives an empty result if no final state was reached by
+   * then) instead of exhausting memory; see {@link PrunedCompose}. Neither input is modified
    *
-   * See: M. Mohri, "Weighted automata algorithms", Handbook of Weighted Automata. Springer, pp. 213-250, 2009.
-   *
-   * @param table    the filter's input/output symbols
+   * @param fst1     the first Fst
+   * @param fst2     the second Fst
    * @param semiring the semiring to use in the operation
+   * @param beam the beam weight in the semiring (e.g. a cost of 10.0 in the tropical semiring); pass
+   *             `semiring.zero()` for no beam
+   * @param maxStates the maximum number of states to create (Integer.MAX_VALUE for no limit)
+   * @param maxArcs the maximum number of arcs to create (Integer.MAX_VALUE for no limit)
+   * @return the composed (and trimmed) Fst
    */
-  private static MutableFst makeFilter(WriteableSymbolTable table, Semiring semiring, String eps1, String eps2) {
-
-    MutableFst filter = new MutableFst(semiring, table, table);
-
-    // State 0
-    MutableState s0 = filter.newStartState();
-    s0.setFinalWeight(semiring.one());
-    MutableState s1 = filter.newState();
-    s1.setFinalWeight(semiring.one());
-    MutableState s2 = filter.newState();
-    s2.setFinalWeight(semiring.one());
-
-    filter.addArc(s0, eps2, eps1, s0, semiring.one());
-    filter.addArc(s0, eps1, eps1, s1, semiring.one());
-    filter.addArc(s0, eps2, eps2, s2, semiring.one());
-    // self loops
-    filter.addArc(s1, eps1, eps1, s1, semiring.one());
-    filter.addArc(s2, eps2, eps2, s2, semiring.one());
-    for (ObjectIntCursor<String> cursor : table) {
-      int i = cursor.value;
-      String key = cursor.key;
-      if (key.equals(Fst.EPS) || key.equals(eps1) || key.equals(eps2)) {
-        continue;
-      }
-      filter.addArc(s0, i, i, s0, semiring.one());
-      filter.addArc(s1, i, i, s0, semiring.one());
-      filter.addArc(s2, i, i, s0, semiring.one());
+  public static MutableFst composePruned(Fst fst1, Fst fst2, Semiring semiring, double beam,
+                                         int maxStates, int maxArcs) {
+    fst1.throwIfInvalid();
+    fst2.throwIfInvalid();
+    if (!FstUtils.symbolTableEquals(fst1.getOutputSymbols(), fst2.getInputSymbols())) {
+      throw new IllegalArgumentException("Symbol tables don't match, cant compose " + fst1 + " to " + fst2);
     }
-    return filter;
+    CompactFst compactFst2 = CompactFst.copyFrom(fst2);
+    MutableFst res = PrunedCompose.expand(new ComposeFst(fst1, compactFst2, ArcMatcher.forInput(compactFst2), null,
+        semiring, false, 0), beam, maxStates, maxArcs);
+    Connect.apply(res);
+    return res;
   }
 
   /**
-   * Augments the labels of an Fst in order to use it for composition avoiding multiple epsilon paths in the resulting
-   * Fst
-   *
-   * @param label constant denoting if the augment should take place on input or output labels For value equal to 0
-   *              augment will take place for input labels For value equal to 1 augment will take place for output
-   *              labels
-   * @param fst   the fst to augment
+   * Pruned version of `composeWithPrecomputed`; see `composePruned` for the limits
+   * @param fst1 outer fst (which is not modified)
+   * @param fst2 inner fst
+   * @param beam the beam weight in the semiring; pass `semiring.zero()` for no beam
+   * @param maxStates the maximum number of states to create (Integer.MAX_VALUE for no limit)
+   * @param maxArcs the maximum number of arcs to create (Integer.MAX_VALUE for no limit)
+   * @return the composed (and trimmed) Fst
    */
-  private static void augment(AugmentLabels label, MutableFst fst, Semiring semiring, String eps1, String eps2) {
-    // label: 0->augment on ilabel
-    // 1->augment on olabel
-
-    int e1inputIndex = fst.getInputSymbols().getOrAdd(eps1);
-    int e2inputIndex = fst.getInputSymbols().getOrAdd(eps2);
-
-    int e1outputIndex = fst.getOutputSymbols().getOrAdd(eps1);
-    int e2outputIndex = fst.getOutputSymbols().getOrAdd(eps2);
-
-    int iEps = fst.getInputSymbols().get(Fst.EPS);
-    int oEps = fst.getOutputSymbols().get(Fst.EPS);
-
-    int numStates = fst.getStateCount();
-    for (int i = 0; i < numStates; i++) {
-      MutableState s = fst.getState(i);
-      for (MutableArc arc : s.getArcs()) {
-        if ((label == AugmentLabels.OUTPUT) && (arc.getOlabel() == oEps)) {
-          arc.setOlabel(e2outputIndex);
-        } else if ((label == AugmentLabels.INPUT) && (arc.getIlabel() == iEps)) {
-          arc.setIlabel(e1inputIndex);
-        }
-      }
-      if (label == AugmentLabels.INPUT) {
-        fst.addArc(s, e2inputIndex, oEps, s, semiring.one());
-      } else if (label == AugmentLabels.OUTPUT) {
-        fst.addArc(s, iEps, e1outputIndex, s, semiring.one());
-      }
-    }
+  public static MutableFst composeWithPrecomputedPruned(Fst fst1, PrecomputedComposeFst fst2, double beam,
+                                                        int maxStates, int maxArcs) {
+    fst1.throwIfInvalid();
+    MutableFst res = PrunedCompose.expand(new ComposeFst(fst1, fst2.getInnerSide(), fst2.getMatcher(),
+        fst2.getLookahead(), fst2.getSemiring(), false, 0, null), beam, maxStates, maxArcs);
+    Connect.apply(res);
+    return res;
   }
 
-  /**
-   * Computes the composition of two Fsts. Assuming no epsilon transitions.
-   *
-   * Input Fsts are not modified.
-   *
-   * @param fst1     the first Fst
-   * @param fst2     the second Fst
-   * @param semiring the semiring to use in the operation
-   * @return the composed Fst
-   */
-  private static MutableFst doCompose(Fst fst1, Fst fst2, Semiring semiring, boolean useSorted) {
-    if (useSorted) {
-      assert(FstUtils.symbolTableEquals(fst1.getOutputSymbols(), fst2.getInputSymbols()));
+  private static MutableFst expand(ComposeFst compose, @Nullable ForkJoinPool pool) {
+    if (pool == null) {
+      // expanding the delayed compose in state id order is just the breadth first product
+      return compose.toMutableFst();
     }
+    return ParallelCompose.expand(compose, pool);
+  }
 
-    MutableFst res = new MutableFst(semiring, symbolTableEffectiveCopy(fst1.getInputSymbols()),
-        symbolTableEffectiveCopy(fst2.getOutputSymbols()));
-
-    // state map is q -> n where q is (q_i, q_j) a state pair made up of state from fst1 and a state from fst2 and
-    // n is the new state index in the composed FST that represents this tuple
-    HashMap<IndexPair, Integer> stateMap = Maps.newHashMap();
-    Deque<IndexPair> queue = new LinkedList<>();
-
-    IndexPair first = new IndexPair(fst1.getStartState().getId(), fst2.getStartState().getId());
-    MutableState newStart = res.newStartState();
-    newStart.setFinalWeight(semiring.times(fst1.getStartState().getFinalWeight(), fst2.getStartState().getFinalWeight()));
-    stateMap.put(first, newStart.getId());
-    queue.addLast(first);
-
-    SymbolTable.InvertedSymbolTable fst1In = fst1.getInputSymbols().invert();
-    SymbolTable.InvertedSymbolTable fst1Out = fst1.getOutputSymbols().invert();
-    SymbolTable.InvertedSymbolTable fst2In = fst2.getInputSymbols().invert();
-    SymbolTable.InvertedSymbolTable fst2Out = fst2.getOutputSymbols().invert();
-
-    while (!queue.isEmpty()) {
-      IndexPair p = queue.removeFirst();
-      State s1 = fst1.getState(p.getLeft());
-      State s2 = fst2.getState(p.getRight());
-      MutableState resultState = res.getState(stateMap.get(p));
-      if (useSorted) {
-        assert (ArcSort.isSorted(s1, OLabelCompare.INSTANCE) && ArcSort.isSorted(s2, ILabelCompare.INSTANCE)) :
-            "\ns1 " + s1.getArcs() + "\n s2 " + s2.getArcs();
-      }
-
-      int jstart = 0; // if not sorted jstart is never updated so always does full nested loop
-      for (int i = 0; i < s1.getArcCount(); ++i) {
-        Arc a1 = s1.getArc(i);
-        for (int j = jstart; j < s2.getArcCount(); ++j) {
-          Arc a2 = s2.getArc(j);
-          if (useSorted && a1.getOlabel() < a2.getIlabel()) {
-            break; // if we know the arcs are sorted then once we've gotten here we know there cant be more j's
-          }
-          String a1Isym = fst1In.keyForId(a1.getIlabel());
-          String a1Osym = fst1Out.keyForId(a1.getOlabel());
-          String a2Isym = fst2In.keyForId(a2.getIlabel());
-          String a2Osym = fst2Out.keyForId(a2.getOlabel());
-          if (a1Osym.equals(a2Isym)) {
-            State nextState1 = a1.getNextState();
-            State nextState2 = a2.getNextState();
-            IndexPair nextPair = new IndexPair(nextState1.getId(), nextState2.getId());
-            Integer nextState = stateMap.get(nextPair);
-            MutableState realNextState;
-            if (nextState == null) {
-              realNextState = res.newState();
-              realNextState.setFinalWeight(semiring.times(nextState1.getFinalWeight(), nextState2.getFinalWeight()));
-              stateMap.put(nextPair, realNextState.getId());
-              queue.addLast(nextPair);
-            } else {
-              realNextState = res.getState(nextState);
-            }
-            res.addArc(resultState, a1Isym, a2Osym, realNextState, semiring.times(a1.getWeight(), a2.getWeight()));
-          } else if (useSorted && a1.getOlabel() > a2.getIlabel()) {
-            // if we're sorted and outer is greater then we know we'll never need to eval this inner index again
-            jstart = j + 1;
-          }
-        }
-      }
-    }
-    return res;
+  private static void addComposeEps(WriteableSymbolTable table) {
+    table.getOrAdd(ComposeFst.EPS1);
+    table.getOrAdd(ComposeFst.EPS2);
   }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.ImmutableFst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.SymbolTable;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A size bounded cache of the results of composing input label sequences with one {@link PrecomputedComposeFst}: for
+ * skewed traffic where the same inputs are composed over and over, the repeats just return the cached (immutable)
+ * result. Each result is the trimmed compose of the linear acceptor of the sequence with the inner fst or, if `nbest`
+ * is positive, the n-best paths of that.
+ * <p>
+ * The cache is bounded by the total number of states and arcs of the cached results (which is roughly proportional to
+ * their memory) and evicts the least recently used results first; `getStats()` has the hit, miss, and eviction counts.
+ * This is thread safe, and concurrent requests for the same missing sequence only compose it once.
+ *
+ * @author Steve Ash
+ */
+public class ComposeCache {
+
+  private final ComposeEngine engine;
+  private final SymbolTable inputSymbols;
+  private final int nbest;
+  private final LoadingCache<LabelSequence, ImmutableFst> cache;
+
+  /**
+   * Creates a cache of the full compose results
+   * @param inner the inner (right hand side) fst of every compose
+   * @param maxStatesAndArcs the maximum total number of states and arcs of all of the cached results
+   */
+  public ComposeCache(PrecomputedComposeFst inner, long maxStatesAndArcs) {
+    this(inner, maxStatesAndArcs, 0);
+  }
+
+  /**
+   * @param inner the inner (right hand side) fst of every compose
+   * @param maxStatesAndArcs the maximum total number of states and arcs of all of the cached results
+   * @param nbest if positive then the n-best paths of each compose are cached instead of the whole result
+   */
+  public ComposeCache(PrecomputedComposeFst inner, long maxStatesAndArcs, int nbest) {
+    Preconditions.checkArgument(maxStatesAndArcs >= 0, "maxStatesAndArcs cant be negative");
+    Preconditions.checkArgument(nbest >= 0, "nbest cant be negative");
+    this.engine = new ComposeEngine(inner);
+    this.inputSymbols = inner.getFstInputSymbolsAsFrozen();
+    this.nbest = nbest;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxStatesAndArcs)
+        .weigher(new Weigher<LabelSequence, ImmutableFst>() {
+          @Override
+          public int weigh(LabelSequence key, ImmutableFst value) {
+            return sizeOf(value);
+          }
+        })
+        .recordStats()
+        .build(new CacheLoader<LabelSequence, ImmutableFst>() {
+          @Override
+          public ImmutableFst load(LabelSequence key) throws Exception {
+            return compose(key.labels);
+          }
+        });
+  }
+
+  /**
+   * Returns the (possibly cached) result for the given input symbols, which must all be in the inner fst's input
+   * symbols
+   * @param symbols the input sequence
+   * @return the compose result
+   */
+  public ImmutableFst get(List<String> symbols) {
+    int[] labels = new int[symbols.size()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = inputSymbols.get(symbols.get(i));
+    }
+    return get(labels);
+  }
+
+  /**
+   * Returns the (possibly cached) result for the given input labels (ids from the inner fst's input symbols)
+   * @param labels the input sequence; this is copied so can be re-used by the caller
+   * @return the compose result
+   */
+  public ImmutableFst get(int[] labels) {
+    return cache.getUnchecked(new LabelSequence(Arrays.copyOf(labels, labels.length)));
+  }
+
+  /**
+   * The hit, miss, load, and eviction counts of this cache so far
+   * @return
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * The number of cached results
+   * @return
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  private ImmutableFst compose(int[] labels) {
+    MutableFst res = engine.composeSequence(labels);
+    if (nbest > 0 && res.getStartState() != null) {
+      res = NShortestPaths.apply(res, nbest);
+    }
+    if (res.getStartState() == null) {
+      // nothing matched; the immutable fst needs a start state
+      res.setStart(res.newState());
+    }
+    return new ImmutableFst(res);
+  }
+
+  private static int sizeOf(Fst fst) {
+    long size = fst.getStateCount();
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      size += fst.getState(i).getArcCount();
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  private static class LabelSequence {
+
+    private final int[] labels;
+    private final int hash;
+
+    private LabelSequence(int[] labels) {
+      this.labels = labels;
+      this.hash = Arrays.hashCode(labels);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      LabelSequence that = (LabelSequence) o;
+      return hash == that.hash && Arrays.equals(labels, that.labels);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
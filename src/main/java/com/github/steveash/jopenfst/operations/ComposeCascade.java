@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.LazyFst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * N-way composition input o stage1 o stage2 o ... o stageN (e.g. normalizer o lexicon o grammar o LM) without
+ * materializing any of the intermediate results: each stage is a delayed {@link ComposeFst} whose left side is the
+ * delayed compose of the stages before it, so the states of the cascade are (nested) tuples of a state from every
+ * stage, and the states of each intermediate compose are only expanded when the stage after it asks for them. So only
+ * the parts of every stage that are reachable from the input are ever expanded.
+ * <p>
+ * The stages are precomputed (see `Compose.precomputeInner`) once when the cascade is created, so the same cascade can
+ * be applied to many inputs; the output symbols of each stage (and of the input) must have the symbols of the next
+ * stage's input. This is thread safe (each call creates its own delayed composes)
+ *
+ * @author Steve Ash
+ */
+public class ComposeCascade {
+
+  /**
+   * Composes the given fsts from left to right (the first being the input) without materializing the intermediate
+   * results; if you are going to apply the same stages to more than one input then create a `ComposeCascade` instead
+   * @param fsts the fsts to compose (at least two, none of which are modified)
+   * @param semiring the semiring to use in the operation
+   * @return the trimmed result of composing all of them
+   */
+  public static MutableFst compose(List<? extends Fst> fsts, Semiring semiring) {
+    Preconditions.checkArgument(fsts.size() >= 2, "need at least two fsts to compose");
+    return new ComposeCascade(fsts.subList(1, fsts.size()), semiring).compose(fsts.get(0));
+  }
+
+  private final ImmutableList<PrecomputedComposeFst> stages;
+  private final int maxCachedStates;
+
+  /**
+   * @param stages the stages (the right hand sides of the composes, in order) which are not modified
+   * @param semiring the semiring to use in the operations
+   */
+  public ComposeCascade(List<? extends Fst> stages, Semiring semiring) {
+    this(stages, semiring, false, LazyFst.DEFAULT_MAX_CACHED_STATES);
+  }
+
+  /**
+   * @param stages the stages (the right hand sides of the composes, in order) which are not modified
+   * @param semiring the semiring to use in the operations
+   * @param useLookahead if true then each stage is precomputed with its label lookahead, so no stage creates states
+   *                     that the next stage can't match (see `Compose.precomputeInner`)
+   * @param maxCachedStates the maximum number of expanded states that each of the intermediate delayed composes keeps
+   *                        in its cache (see {@link LazyFst})
+   */
+  public ComposeCascade(List<? extends Fst> stages, Semiring semiring, boolean useLookahead, int maxCachedStates) {
+    Preconditions.checkArgument(!stages.isEmpty(), "need at least one stage");
+    ImmutableList.Builder<PrecomputedComposeFst> builder = ImmutableList.builder();
+    for (Fst stage : stages) {
+      builder.add(Compose.precomputeInner(stage, semiring, useLookahead));
+    }
+    this.stages = builder.build();
+    this.maxCachedStates = maxCachedStates;
+  }
+
+  public int getStageCount() {
+    return stages.size();
+  }
+
+  /**
+   * Returns the delayed composition of the input with all of the stages; nothing is expanded until the result's
+   * states are visited
+   * @param input the input (left most) fst which is not modified
+   * @return the delayed fst of input o stage1 o ... o stageN
+   */
+  public ComposeFst composeLazy(Fst input) {
+    input.throwIfInvalid();
+    Fst current = input;
+    ComposeFst composed = null;
+    for (PrecomputedComposeFst stage : stages) {
+      composed = Compose.composeLazy(current, stage, maxCachedStates);
+      current = composed;
+    }
+    return composed;
+  }
+
+  /**
+   * Returns the composition of the input with all of the stages, expanding only the states that are reachable from
+   * the input's start state
+   * @param input the input (left most) fst which is not modified
+   * @return the trimmed result of input o stage1 o ... o stageN
+   */
+  public MutableFst compose(Fst input) {
+    MutableFst res = composeLazy(input).toMutableFst();
+    Connect.apply(res);
+    return res;
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Composes many outer fsts against one shared {@link PrecomputedComposeFst}, e.g. one per request in a service. This
+ * is the same as calling `Compose.composeWithPrecomputed(outer, inner)` for each outer, except that each thread
+ * keeps its compose state table and buffers from one compose to the next (so in steady state they aren't
+ * re-allocated or re-grown), and that batches of outers can be spread over a pool of worker threads. Everything that
+ * only depends on the inner fst (its special labels and the symbol tables of the results) is computed once with the
+ * precomputed fst.
+ * <p>
+ * The outer fsts must use the precomputed fst's input symbols as their output symbols (see
+ * `PrecomputedComposeFst.createNewOuterFst()`) or have the same ids for the same symbols; outers made by
+ * `createNewOuterFst()` (or `composeSequence`) share the precomputed fst's frozen table, so their labels aren't
+ * translated and no symbol table is copied per compose. This is thread safe.
+ *
+ * @author Steve Ash
+ */
+public class ComposeEngine {
+
+  private final PrecomputedComposeFst inner;
+  private final boolean trimOutput;
+  private final ThreadLocal<ComposeFst.Scratch> scratch = new ThreadLocal<ComposeFst.Scratch>() {
+    @Override
+    protected ComposeFst.Scratch initialValue() {
+      return new ComposeFst.Scratch();
+    }
+  };
+
+  /**
+   * Creates an engine whose results are trimmed (like `composeWithPrecomputed`)
+   * @param inner the inner (right hand side) fst of every compose
+   */
+  public ComposeEngine(PrecomputedComposeFst inner) {
+    this(inner, true);
+  }
+
+  /**
+   * @param inner the inner (right hand side) fst of every compose
+   * @param trimOutput if true, then the results will be trimmed before returning
+   */
+  public ComposeEngine(PrecomputedComposeFst inner, boolean trimOutput) {
+    this.inner = inner;
+    this.trimOutput = trimOutput;
+  }
+
+  public PrecomputedComposeFst getInner() {
+    return inner;
+  }
+
+  /**
+   * Computes outer o inner on the calling thread
+   * @param outer the outer fst (which is not modified)
+   * @return the composed fst
+   */
+  public MutableFst compose(Fst outer) {
+    outer.throwIfInvalid();
+    ComposeFst composed = new ComposeFst(outer, inner.getInnerSide(), inner.getMatcher(), inner.getLookahead(),
+        inner.getSemiring(), false, 0, scratch.get());
+    MutableFst res = composed.toMutableFst();
+    if (trimOutput) {
+      Connect.apply(res);
+    }
+    return res;
+  }
+
+  /**
+   * Computes the compose of the linear acceptor of the given symbols (which must all be in the inner fst's input
+   * symbols) with the inner fst on the calling thread
+   * @param symbols the input sequence
+   * @return the composed fst
+   */
+  public MutableFst composeSequence(List<String> symbols) {
+    return compose(makeSequence(symbols));
+  }
+
+  /**
+   * Computes the compose of the linear acceptor of the given labels (which must all be ids of the inner fst's input
+   * symbols) with the inner fst on the calling thread
+   * @param labels the input sequence
+   * @return the composed fst
+   */
+  public MutableFst composeSequence(int[] labels) {
+    return compose(makeSequence(labels));
+  }
+
+  /**
+   * Composes each outer with the inner fst, running them on the given pool; the results are in the same order as
+   * the outers. If any of the composes fails then this throws its exception (after all of them have finished)
+   * @param outers the outer fsts (which are not modified)
+   * @param pool the pool of workers to run the composes on
+   * @return the composed fsts
+   */
+  public List<MutableFst> composeAll(List<? extends Fst> outers, ExecutorService pool) {
+    List<Callable<MutableFst>> tasks = Lists.newArrayListWithCapacity(outers.size());
+    for (final Fst outer : outers) {
+      tasks.add(new Callable<MutableFst>() {
+        @Override
+        public MutableFst call() throws Exception {
+          return compose(outer);
+        }
+      });
+    }
+    return runAll(tasks, pool);
+  }
+
+  /**
+   * Composes the linear acceptor of each symbol sequence with the inner fst, running them on the given pool; the
+   * results are in the same order as the sequences (see `composeAll`)
+   * @param sequences the input sequences
+   * @param pool the pool of workers to run the composes on
+   * @return the composed fsts
+   */
+  public List<MutableFst> composeAllSequences(List<? extends List<String>> sequences, ExecutorService pool) {
+    List<Callable<MutableFst>> tasks = Lists.newArrayListWithCapacity(sequences.size());
+    for (final List<String> sequence : sequences) {
+      tasks.add(new Callable<MutableFst>() {
+        @Override
+        public MutableFst call() throws Exception {
+          return composeSequence(sequence);
+        }
+      });
+    }
+    return runAll(tasks, pool);
+  }
+
+  private static List<MutableFst> runAll(List<Callable<MutableFst>> tasks, ExecutorService pool) {
+    try {
+      List<Future<MutableFst>> futures = pool.invokeAll(tasks);
+      List<MutableFst> results = Lists.newArrayListWithCapacity(futures.size());
+      for (Future<MutableFst> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private MutableFst makeSequence(List<String> symbols) {
+    MutableFst fst = inner.createNewOuterFst();
+    // the outer's input and output symbols are the same (frozen) table
+    int[] labels = new int[symbols.size()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = fst.getInputSymbols().getOrAdd(symbols.get(i));
+    }
+    return addSequence(fst, labels);
+  }
+
+  private MutableFst makeSequence(int[] labels) {
+    return addSequence(inner.createNewOuterFst(), labels);
+  }
+
+  private static MutableFst addSequence(MutableFst fst, int[] labels) {
+    MutableState last = fst.newStartState();
+    for (int label : labels) {
+      MutableState next = fst.newState();
+      fst.addArc(last, label, label, next, fst.getSemiring().one());
+      last = next;
+    }
+    last.setFinalWeight(fst.getSemiring().one());
+    return fst;
+  }
+}
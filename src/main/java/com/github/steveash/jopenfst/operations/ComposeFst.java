@@ -0,0 +1,712 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+import com.github.steveash.jopenfst.AbstractCompactFst;
+import com.github.steveash.jopenfst.ArcCursor;
+import com.github.steveash.jopenfst.ArcMatcher;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.ImmutableSymbolTable;
+import com.github.steveash.jopenfst.LabelReachability;
+import com.github.steveash.jopenfst.LazyFst;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.SymbolTable;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Delayed composition of two FSTs: the states of the result are tuples (q1, q2, f) of a state from fst1, a state
+ * from fst2 and the state of the epsilon filter, which are only discovered and expanded when something asks for
+ * them. State ids are assigned in discovery order, so expanding the states in id order gives the same result (with the
+ * same state ids) as an eager breadth first composition.
+ * <p>
+ * Epsilons are handled with the 3-state epsilon matching filter from Mohri (see {@link Compose}), but the filter is
+ * never built as an FST and neither input is modified: fst1's output epsilons (and an implicit epsilon self loop on
+ * every state of fst1) and fst2's input epsilons (and an implicit self loop on every state of fst2) are recognized
+ * while expanding, and the filter transition is just a function of the filter state and the kind of label. So this
+ * is a single product pass over the unmodified inputs. When fst1 has no output epsilons and fst2 has no input
+ * epsilons (which is cached for compact fsts and is otherwise a quick scan) the filter can't do anything, so the
+ * expansion skips it and the implicit self loops and just matches the arcs directly.
+ * <p>
+ * Arcs match when fst1's output label is the same symbol as fst2's input label; the label ids are translated once up
+ * front if the two symbol tables don't have the same ids. fst2 can also use the special SIGMA, RHO and PHI input
+ * labels (see {@link Fst#SIGMA}) which are matched implicitly, without expanding them to an arc per symbol. The
+ * result uses fst1's input and fst2's output symbols.
+ * <p>
+ * Create these via `Compose.composeLazy(...)`
+ * NOTE: this is not thread safe
+ *
+ * @author Steve Ash
+ */
+public class ComposeFst extends LazyFst {
+
+  static final String EPS1 = "<$$compose$$eps1>";
+  static final String EPS2 = "<$$compose$$eps2>";
+
+  // filter states: 0 = no epsilon pending; 1 = fst2 is moving on epsilons alone; 2 = fst1 is moving on epsilons alone
+  private static final int FILTER_START = 0;
+  private static final int FILTER_EPS1 = 1;
+  private static final int FILTER_EPS2 = 2;
+
+  private final Fst fst1;
+  private final Fst fst2;
+  private final Semiring semiring;
+  private final boolean useSorted;
+  private final boolean seek;
+  private final int[] labelMap;
+  @Nullable
+  private final ArcMatcher matcher2;
+  @Nullable
+  private final LabelReachability lookahead2;
+
+  // epsilon ids in the inputs' own tables
+  private final int inputEps1;
+  private final int outputEps1;
+  private final int inputEps2;
+  private final int outputEps2;
+  // the label (in fst2's input ids) that fst1 "outputs" when it moves on an epsilon (eps2) or stays put (eps1)
+  private final int eps1Label;
+  private final int eps2Label;
+  // special labels in fst2's input (and output) ids, or -1 if fst2 doesn't have them
+  private final boolean hasSpecials;
+  private final int sigmaLabel;
+  private final int rhoLabel;
+  private final int phiLabel;
+  private final int sigmaOutputLabel;
+  private final int rhoOutputLabel;
+  @Nullable
+  private final int[] specialOutputMap;
+  // true if fst1 has no output epsilons and fst2 has no input epsilons, so the filter never leaves its start state
+  private final boolean epsilonFree;
+
+  // maps the (q1, q2, f) tuples to their state index in the composed FST
+  private final ComposeStateTable states;
+
+  private final Expander expander;
+  private final StateSink stateSink = new StateSink();
+
+  /**
+   * @param fst1 the left fst
+   * @param fst2 the right fst
+   * @param matcher2 optional input label matcher over fst2; if present it is used to find the matching arcs in fst2
+   *                 (which then doesn't need to be sorted)
+   * @param lookahead2 optional input label reachability of fst2; if present then product states that can't read any
+   *                   of the labels that fst1 can output next (and so can never reach a final state) aren't created
+   * @param semiring the semiring to use in the operation
+   * @param useSorted if true then the arcs of each result state are ordered by fst1's output (as if fst1 had been
+   *                  sorted by output label) and, if there is no matcher, fst2 must be sorted by input label so that
+   *                  binary search can be used to find the matching arcs
+   * @param maxCachedStates the maximum number of expanded states to cache (see {@link LazyFst})
+   */
+  ComposeFst(Fst fst1, Fst fst2, @Nullable ArcMatcher matcher2, @Nullable LabelReachability lookahead2,
+             Semiring semiring, boolean useSorted, int maxCachedStates) {
+    this(fst1, fst2, matcher2, lookahead2, semiring, useSorted, maxCachedStates, null);
+  }
+
+  /**
+   * Same as the other constructor, but re-uses the state table and buffers of the given scratch (which must not be
+   * in use by any other compose fst that is still being expanded)
+   */
+  ComposeFst(Fst fst1, Fst fst2, @Nullable ArcMatcher matcher2, @Nullable LabelReachability lookahead2,
+             Semiring semiring, boolean useSorted, int maxCachedStates, @Nullable Scratch scratch) {
+    this(fst1, new InnerSide(fst2, null), matcher2, lookahead2, semiring, useSorted, maxCachedStates, scratch);
+  }
+
+  /**
+   * Same as the other constructors, but with the parts of fst2 that don't depend on fst1 already computed (so a
+   * precomputed inner fst doesn't re-derive them, or re-copy its symbol tables, for every compose)
+   */
+  ComposeFst(Fst fst1, InnerSide inner, @Nullable ArcMatcher matcher2, @Nullable LabelReachability lookahead2,
+             Semiring semiring, boolean useSorted, int maxCachedStates, @Nullable Scratch scratch) {
+    super(semiring, inner.outerInputSymbolsWithEps(fst1.getInputSymbols()), inner.outputSymbolsWithEps,
+        maxCachedStates);
+    fst1.throwIfInvalid();
+    this.fst1 = fst1;
+    this.fst2 = inner.fst;
+    this.semiring = semiring;
+    this.useSorted = useSorted;
+    this.seek = useSorted || matcher2 != null;
+    this.labelMap = inner.labelMapFrom(fst1.getOutputSymbols());
+    this.matcher2 = matcher2;
+    this.lookahead2 = lookahead2;
+    this.inputEps1 = fst1.getInputSymbols().get(Fst.EPS);
+    this.outputEps1 = fst1.getOutputSymbols().get(Fst.EPS);
+    this.inputEps2 = inner.inputEps;
+    this.outputEps2 = inner.outputEps;
+    this.eps1Label = inner.eps1Label;
+    this.eps2Label = inner.eps2Label;
+    this.sigmaLabel = inner.sigmaLabel;
+    this.rhoLabel = inner.rhoLabel;
+    this.phiLabel = inner.phiLabel;
+    this.hasSpecials = inner.hasSpecials;
+    this.sigmaOutputLabel = inner.sigmaOutputLabel;
+    this.rhoOutputLabel = inner.rhoOutputLabel;
+    this.specialOutputMap = inner.specialOutputMap;
+    // fst1 is only scanned if fst2 doesn't already rule out the epsilon free expansion
+    this.epsilonFree = !inner.hasInputEpsilons && !hasEpsilons(fst1, false);
+
+    if (scratch != null) {
+      this.states = scratch.states;
+      this.states.clear();
+      this.expander = new Expander(scratch.candidates);
+    } else {
+      this.states = new ComposeStateTable();
+      this.expander = new Expander(new Candidates());
+    }
+
+    states.findOrAdd(fst1.getStartState().getId(), fst2.getStartState().getId(), FILTER_START);
+  }
+
+  private static int labelOrMissing(SymbolTable syms, String symbol) {
+    return syms.contains(symbol) ? syms.get(symbol) : -1;
+  }
+
+  // true if any arc has an input (or output) epsilon; compact fsts remember this, and delayed fsts aren't scanned (as
+  // that would expand them) so they're assumed to have them
+  private static boolean hasEpsilons(Fst fst, boolean input) {
+    if (fst instanceof AbstractCompactFst) {
+      AbstractCompactFst compact = (AbstractCompactFst) fst;
+      return (input ? compact.hasInputEpsilons() : compact.hasOutputEpsilons());
+    }
+    if (fst instanceof LazyFst) {
+      return true;
+    }
+    SymbolTable syms = (input ? fst.getInputSymbols() : fst.getOutputSymbols());
+    if (!syms.contains(Fst.EPS)) {
+      return false;
+    }
+    int eps = syms.get(Fst.EPS);
+    ArcCursor cursor = fst.newArcCursor();
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        if ((input ? cursor.ilabel() : cursor.olabel()) == eps) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // results have always carried the compose epsilon symbols in their tables, so keep them there
+  private static SymbolTable withComposeEps(SymbolTable syms) {
+    if (syms.contains(EPS1) && syms.contains(EPS2)) {
+      return syms;
+    }
+    MutableSymbolTable copy = new MutableSymbolTable(syms);
+    copy.getOrAdd(EPS1);
+    copy.getOrAdd(EPS2);
+    return copy;
+  }
+
+  @Override
+  protected int getStartStateId() {
+    return 0;
+  }
+
+  @Override
+  public int getDiscoveredStateCount() {
+    return states.size();
+  }
+
+  @Override
+  protected double computeFinalWeight(int stateId) {
+    return semiring.times(fst1.getFinalWeight(states.q1(stateId)), fst2.getFinalWeight(states.q2(stateId)));
+  }
+
+  @Override
+  protected void expand(int stateId, ArcSink sink) {
+    stateSink.target = sink;
+    expander.expand(states.q1(stateId), states.q2(stateId), states.filter(stateId), stateSink);
+    stateSink.target = null;
+  }
+
+  // delayed fsts aren't thread safe, so these can't be expanded from multiple threads
+  boolean hasDelayedInput() {
+    return fst1 instanceof LazyFst || fst2 instanceof LazyFst;
+  }
+
+  boolean isEpsilonFree() {
+    return epsilonFree;
+  }
+
+  ComposeStateTable getStateTable() {
+    return states;
+  }
+
+  /**
+   * Creates a new expander (with its own cursors and buffers) for this compose; each thread expanding states needs
+   * its own
+   */
+  Expander newExpander() {
+    return new Expander(new Candidates());
+  }
+
+  /**
+   * The parts of a compose that only depend on fst2 (its epsilon and special labels, and the symbol tables of the
+   * result); a precomputed inner fst keeps one for all of its composes. This is immutable and thread safe
+   */
+  static class InnerSide {
+
+    private final Fst fst;
+    private final SymbolTable inputSymbols;
+    // another table with the same ids as fst2's input symbols that outer fsts share (or null), so that their labels
+    // don't need to be translated and their input symbols don't need to be copied to add the compose epsilons
+    @Nullable
+    private final SymbolTable sharedOuterSymbols;
+    @Nullable
+    private final SymbolTable sharedOuterSymbolsWithEps;
+    private final SymbolTable outputSymbolsWithEps;
+    private final int inputEps;
+    private final int outputEps;
+    private final int eps1Label;
+    private final int eps2Label;
+    private final boolean hasSpecials;
+    private final int sigmaLabel;
+    private final int rhoLabel;
+    private final int phiLabel;
+    private final int sigmaOutputLabel;
+    private final int rhoOutputLabel;
+    @Nullable
+    private final int[] specialOutputMap;
+    private final boolean hasInputEpsilons;
+
+    /**
+     * @param fst2 the inner fst
+     * @param sharedOuterSymbols a table with the same ids as fst2's input symbols that outer fsts will use as their
+     *                           input and output symbols (e.g. `PrecomputedComposeFst.getFstInputSymbolsAsFrozen()`)
+     */
+    InnerSide(Fst fst2, @Nullable SymbolTable sharedOuterSymbols) {
+      fst2.throwIfInvalid();
+      this.fst = fst2;
+      SymbolTable syms = fst2.getInputSymbols();
+      this.inputSymbols = syms;
+      this.sharedOuterSymbols = sharedOuterSymbols;
+      // these are shared by every compose (and are only copied on write by their results) so they must be immutable
+      this.sharedOuterSymbolsWithEps = (sharedOuterSymbols != null ?
+                                        new ImmutableSymbolTable(withComposeEps(sharedOuterSymbols)) : null);
+      this.outputSymbolsWithEps = new ImmutableSymbolTable(withComposeEps(fst2.getOutputSymbols()));
+      this.inputEps = syms.get(Fst.EPS);
+      this.outputEps = fst2.getOutputSymbols().get(Fst.EPS);
+      // if the table has the compose epsilons then use their ids (so that the arc order in sorted mode is the same as
+      // if the fsts had been augmented with them); otherwise they sort after every real label
+      this.eps1Label = syms.contains(EPS1) ? syms.get(EPS1) : Integer.MAX_VALUE - 1;
+      this.eps2Label = syms.contains(EPS2) ? syms.get(EPS2) : Integer.MAX_VALUE;
+      this.sigmaLabel = labelOrMissing(syms, Fst.SIGMA);
+      this.rhoLabel = labelOrMissing(syms, Fst.RHO);
+      this.phiLabel = labelOrMissing(syms, Fst.PHI);
+      this.hasSpecials = sigmaLabel >= 0 || rhoLabel >= 0 || phiLabel >= 0;
+      this.sigmaOutputLabel = labelOrMissing(fst2.getOutputSymbols(), Fst.SIGMA);
+      this.rhoOutputLabel = labelOrMissing(fst2.getOutputSymbols(), Fst.RHO);
+      this.specialOutputMap = (sigmaOutputLabel >= 0 || rhoOutputLabel >= 0 ?
+                               makeLabelMap(syms, fst2.getOutputSymbols()) : null);
+      this.hasInputEpsilons = hasEpsilons(fst2, true);
+    }
+
+    // the map from fst1's output ids to fst2's input ids, or null if they're the same
+    @Nullable
+    private int[] labelMapFrom(SymbolTable outerOutputSymbols) {
+      if (outerOutputSymbols == inputSymbols || outerOutputSymbols == sharedOuterSymbols) {
+        return null;
+      }
+      return makeLabelMap(outerOutputSymbols, inputSymbols);
+    }
+
+    private SymbolTable outerInputSymbolsWithEps(SymbolTable outerInputSymbols) {
+      if (outerInputSymbols == sharedOuterSymbols) {
+        return sharedOuterSymbolsWithEps;
+      }
+      return withComposeEps(outerInputSymbols);
+    }
+  }
+
+  /**
+   * The state table and buffers of a compose, which can be re-used for one compose after another on the same thread
+   * to avoid re-allocating (and re-growing) them every time
+   */
+  static class Scratch {
+
+    private final ComposeStateTable states = new ComposeStateTable();
+    private final Candidates candidates = new Candidates();
+  }
+
+  /**
+   * Receives the arcs of an expanded product state, with the target state as a (q1, q2, f) tuple
+   */
+  interface TupleSink {
+    void add(int ilabel, int olabel, int q1, int q2, int filter, double weight);
+  }
+
+  // assigns ids to the target tuples as they're discovered
+  private class StateSink implements TupleSink {
+
+    private ArcSink target;
+
+    @Override
+    public void add(int ilabel, int olabel, int q1, int q2, int filter, double weight) {
+      target.add(ilabel, olabel, states.findOrAdd(q1, q2, filter), weight);
+    }
+  }
+
+  /**
+   * Computes the outgoing arcs of product states; this only reads the inputs so separate expanders can be used from
+   * separate threads at the same time
+   */
+  class Expander {
+
+    private final ArcCursor c1 = fst1.newArcCursor();
+    private final ArcCursor c2 = (matcher2 != null ? matcher2.newArcCursor() : fst2.newArcCursor());
+    private final ArcCursor lookCursor = fst1.newArcCursor();
+    // pending (fst1 arc, filter transition) pairs of the state being expanded
+    private final Candidates candidates;
+
+    private Expander(Candidates candidates) {
+      this.candidates = candidates;
+    }
+
+    void expand(int q1, int q2, int filter, TupleSink sink) {
+      if (epsilonFree && !useSorted) {
+        expandEpsilonFree(q1, q2, sink);
+        return;
+      }
+      candidates.clear();
+      fst1.arcs(q1, c1);
+      while (c1.next()) {
+        int label;
+        if (c1.olabel() == outputEps1) {
+          label = eps2Label;
+        } else {
+          label = translate(labelMap, c1.olabel());
+          if (label < 0 || label == eps1Label || label == eps2Label) {
+            continue; // fst2 doesn't even have this symbol
+          }
+          if (hasSpecials && (label == sigmaLabel || label == rhoLabel || label == phiLabel)) {
+            continue; // special labels only mean something on fst2's input
+          }
+        }
+        addFiltered(c1.ilabel(), label, c1.weight(), c1.nextStateId(), filter);
+      }
+      if (!epsilonFree) {
+        // fst1 staying put while fst2 moves on an input epsilon
+        addFiltered(inputEps1, eps1Label, semiring.one(), q1, filter);
+      }
+      if (useSorted) {
+        candidates.sortByOutput();
+      }
+
+      for (int i = 0; i < candidates.size; i++) {
+        int k = (useSorted ? candidates.order[i] : i);
+        int label = candidates.filterOut[k];
+        int ilabel = candidates.ilabel[k];
+        double weight = candidates.weight[k];
+        int next1 = candidates.next1[k];
+        int nextFilter = candidates.nextFilter[k];
+        if (label == eps2Label) {
+          // fst2 staying put while fst1 moves on an output epsilon
+          if (canMatch(next1, q2)) {
+            sink.add(ilabel, outputEps2, next1, q2, nextFilter, weight);
+          }
+          continue;
+        }
+        if (label == eps1Label) {
+          // fst1 staying put while fst2 moves on an input epsilon
+          emitArcs(q2, inputEps2, -1, ilabel, weight, next1, nextFilter, sink);
+        } else if (hasSpecials) {
+          emitSpecialMatches(q2, label, ilabel, weight, next1, nextFilter, sink);
+        } else {
+          emitArcs(q2, label, -1, ilabel, weight, next1, nextFilter, sink);
+        }
+      }
+    }
+
+    // with no epsilons there's nothing for the filter to do, so the arcs of fst1 are matched directly against fst2 (in
+    // the same order as the buffered expand would do them) without the candidates or the virtual self loops
+    private void expandEpsilonFree(int q1, int q2, TupleSink sink) {
+      fst1.arcs(q1, c1);
+      while (c1.next()) {
+        int label = translate(labelMap, c1.olabel());
+        if (label < 0 || label == eps1Label || label == eps2Label) {
+          continue;
+        }
+        if (!hasSpecials) {
+          emitArcs(q2, label, -1, c1.ilabel(), c1.weight(), c1.nextStateId(), FILTER_START, sink);
+        } else if (label != sigmaLabel && label != rhoLabel && label != phiLabel) {
+          emitSpecialMatches(q2, label, c1.ilabel(), c1.weight(), c1.nextStateId(), FILTER_START, sink);
+        }
+      }
+    }
+
+    // emits the arcs of fst2's state q2 that match the (real) label, following the special labels: explicit and
+    // SIGMA arcs match; RHO arcs match if there's no explicit arc; and if nothing matches then the PHI arc is
+    // followed (without consuming the label) and we try again from there
+    private void emitSpecialMatches(int q2, int label, int ilabel, double weight, int next1, int nextFilter,
+                                    TupleSink sink) {
+      int state = q2;
+      double phiWeight = weight;
+      // the bound on steps stops us from going around phi cycles forever
+      for (int steps = 0; steps < fst2.getStateCount(); steps++) {
+        int explicit = emitArcs(state, label, -1, ilabel, phiWeight, next1, nextFilter, sink);
+        int matched = explicit + emitArcs(state, sigmaLabel, label, ilabel, phiWeight, next1, nextFilter, sink);
+        if (explicit == 0) {
+          matched += emitArcs(state, rhoLabel, label, ilabel, phiWeight, next1, nextFilter, sink);
+        }
+        if (matched > 0 || !seekArcs(state, phiLabel) || !nextArc(phiLabel)) {
+          return;
+        }
+        phiWeight = semiring.times(phiWeight, c2.weight());
+        state = c2.nextStateId();
+      }
+    }
+
+    // positions c2 before the arcs of state with the given input label (or before all of them if we can't seek);
+    // returns false if we know there aren't any
+    private boolean seekArcs(int state, int label2) {
+      if (label2 < 0) {
+        return false;
+      }
+      fst2.arcs(state, c2);
+      return !seek || c2.seek(label2);
+    }
+
+    // moves c2 to the next arc with the given input label
+    private boolean nextArc(int label2) {
+      while (c2.next()) {
+        if (label2 == c2.ilabel()) {
+          return true;
+        }
+        if (seek) {
+          return false; // once we've passed the matching label there cant be any more
+        }
+      }
+      return false;
+    }
+
+    // emits the arcs of fst2's state with the input label2 (or -1 for epsilons) and returns how many there were
+    // (whether or not the lookahead let them through); specialMatch is the real label when label2 is SIGMA or RHO
+    // (so their outputs are rewritten to it) and -1 for explicit matches
+    private int emitArcs(int state, int label2, int specialMatch, int ilabel, double weight, int next1,
+                         int nextFilter, TupleSink sink) {
+      if (!seekArcs(state, label2)) {
+        return 0;
+      }
+      int count = 0;
+      while (nextArc(label2)) {
+        count += 1;
+        int next2 = c2.nextStateId();
+        if (canMatch(next1, next2)) {
+          sink.add(ilabel, outputFor(c2.olabel(), specialMatch), next1, next2, nextFilter, semiring.times(weight,
+              c2.weight()));
+        }
+      }
+      return count;
+    }
+
+    // SIGMA and RHO outputs of arcs that matched through SIGMA or RHO are rewritten to the matched symbol; explicit
+    // arcs keep their output as is (even if it is SIGMA or RHO)
+    private int outputFor(int olabel2, int specialMatch) {
+      if (specialMatch < 0 || (olabel2 != sigmaOutputLabel && olabel2 != rhoOutputLabel)) {
+        return olabel2;
+      }
+      int rewritten = translate(specialOutputMap, specialMatch);
+      if (rewritten < 0) {
+        throw new IllegalStateException("Cant output the symbol matched by " + Fst.SIGMA + " or " + Fst.RHO +
+                                        " because fst2's output symbols don't have it; input label " + specialMatch);
+      }
+      return rewritten;
+    }
+
+    // the lookahead: false if (q1, q2) can't possibly reach a final state because fst2 can't read anything that fst1
+    // can output next; fst1 output epsilons aren't followed, they're just assumed to match
+    private boolean canMatch(int q1, int q2) {
+      if (lookahead2 == null) {
+        return true;
+      }
+      fst1.arcs(q1, lookCursor);
+      while (lookCursor.next()) {
+        if (lookCursor.olabel() == outputEps1) {
+          return true;
+        }
+        int label = translate(labelMap, lookCursor.olabel());
+        if (label >= 0 && lookahead2.canRead(q2, label)) {
+          return true;
+        }
+      }
+      return semiring.isNotZero(lookCursor.finalWeight()) && lookahead2.canReachFinal(q2);
+    }
+
+    // adds the filter transitions (in the filter's arc order) for an arc of fst1 whose output is label
+    private void addFiltered(int ilabel, int label, double weight, int next1, int filter) {
+      if (label == eps2Label) {
+        if (filter == FILTER_START) {
+          candidates.add(ilabel, label, eps1Label, weight, next1, FILTER_START);
+          candidates.add(ilabel, label, eps2Label, weight, next1, FILTER_EPS2);
+        } else if (filter == FILTER_EPS2) {
+          candidates.add(ilabel, label, eps2Label, weight, next1, FILTER_EPS2);
+        }
+      } else if (label == eps1Label) {
+        if (filter != FILTER_EPS2) {
+          candidates.add(ilabel, label, eps1Label, weight, next1, FILTER_EPS1);
+        }
+      } else {
+        candidates.add(ilabel, label, label, weight, next1, FILTER_START);
+      }
+    }
+  }
+
+  /**
+   * Returns the translation from the ids of `from` to the ids of `to` for the same symbols (with -1 for symbols that
+   * `to` doesn't have), or null if the ids are the same for every symbol (e.g. they're the same table)
+   */
+  @Nullable
+  static int[] makeLabelMap(SymbolTable from, SymbolTable to) {
+    if (FstUtils.symbolTableEquals(from, to)) {
+      return null;
+    }
+    int maxId = -1;
+    for (ObjectIntCursor<String> cursor : from) {
+      maxId = Math.max(maxId, cursor.value);
+    }
+    int[] map = new int[maxId + 1];
+    Arrays.fill(map, -1);
+    for (ObjectIntCursor<String> cursor : from) {
+      if (to.contains(cursor.key)) {
+        map[cursor.value] = to.get(cursor.key);
+      }
+    }
+    return map;
+  }
+
+  static int translate(@Nullable int[] labelMap, int label) {
+    if (labelMap == null) {
+      return label;
+    }
+    return label < labelMap.length ? labelMap[label] : -1;
+  }
+
+  /**
+   * Growable primitive buffer of the (fst1 arc, filter transition) pairs that are waiting to be matched against fst2
+   */
+  private static class Candidates {
+
+    private int size = 0;
+    private int[] ilabel = new int[16];
+    private int[] output1 = new int[16];
+    private int[] filterOut = new int[16];
+    private double[] weight = new double[16];
+    private int[] next1 = new int[16];
+    private int[] nextFilter = new int[16];
+    private int[] order = new int[16];
+    private int[] scratch = new int[16];
+
+    void clear() {
+      size = 0;
+    }
+
+    void add(int ilabel, int output1, int filterOut, double weight, int next1, int nextFilter) {
+      if (size == this.ilabel.length) {
+        int newSize = size * 2;
+        this.ilabel = Arrays.copyOf(this.ilabel, newSize);
+        this.output1 = Arrays.copyOf(this.output1, newSize);
+        this.filterOut = Arrays.copyOf(this.filterOut, newSize);
+        this.weight = Arrays.copyOf(this.weight, newSize);
+        this.next1 = Arrays.copyOf(this.next1, newSize);
+        this.nextFilter = Arrays.copyOf(this.nextFilter, newSize);
+        this.order = new int[newSize];
+        this.scratch = new int[newSize];
+      }
+      this.ilabel[size] = ilabel;
+      this.output1[size] = output1;
+      this.filterOut[size] = filterOut;
+      this.weight[size] = weight;
+      this.next1[size] = next1;
+      this.nextFilter[size] = nextFilter;
+      size += 1;
+    }
+
+    /**
+     * Fills `order` with the candidates stable sorted by (filter output, input, weight, fst1 output, fst1 next
+     * state); this is the order of the arcs of fst1 sorted by output, composed with the filter and then sorted by
+     * output again (which is what composing in sorted mode used to do with the intermediate filtered fst)
+     */
+    void sortByOutput() {
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      mergeSort(0, size);
+    }
+
+    private void mergeSort(int start, int end) {
+      if (end - start < 16) {
+        for (int i = start + 1; i < end; i++) {
+          int k = order[i];
+          int j = i - 1;
+          while (j >= start && compare(order[j], k) > 0) {
+            order[j + 1] = order[j];
+            j -= 1;
+          }
+          order[j + 1] = k;
+        }
+        return;
+      }
+      int mid = (start + end) >>> 1;
+      mergeSort(start, mid);
+      mergeSort(mid, end);
+      System.arraycopy(order, start, scratch, start, end - start);
+      int left = start;
+      int right = mid;
+      int out = start;
+      while (left < mid && right < end) {
+        if (compare(scratch[right], scratch[left]) < 0) {
+          order[out++] = scratch[right++];
+        } else {
+          order[out++] = scratch[left++];
+        }
+      }
+      while (left < mid) {
+        order[out++] = scratch[left++];
+      }
+      while (right < end) {
+        order[out++] = scratch[right++];
+      }
+    }
+
+    private int compare(int a, int b) {
+      int c = Integer.compare(filterOut[a], filterOut[b]);
+      if (c != 0) {
+        return c;
+      }
+      c = Integer.compare(ilabel[a], ilabel[b]);
+      if (c != 0) {
+        return c;
+      }
+      c = Double.compare(weight[a], weight[b]);
+      if (c != 0) {
+        return c;
+      }
+      c = Integer.compare(output1[a], output1[b]);
+      if (c != 0) {
+        return c;
+      }
+      return Integer.compare(next1[a], next1[b]);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+
+import java.util.Arrays;
+
+/**
+ * State table for composition: assigns dense ids (in discovery order) to the (q1, q2, filter) tuples of the product.
+ * Each tuple is packed into a single long key (31 bits for each state id and 2 for the filter state) in a primitive
+ * open addressing map, and the tuples of each id are kept in parallel int arrays; so discovering a state doesn't
+ * allocate anything (besides the occasional growth).
+ * NOTE: this is not thread safe; though `find` can be called from many threads at once as long as nothing is adding
+ *
+ * @author Steve Ash
+ */
+class ComposeStateTable {
+
+  static final int MAX_FILTER_STATE = 3;
+
+  private final LongIntOpenHashMap ids = new LongIntOpenHashMap();
+  private int size = 0;
+  private int[] q1s = new int[16];
+  private int[] q2s = new int[16];
+  private byte[] filters = new byte[16];
+
+  static long pack(int q1, int q2, int filter) {
+    return ((long) q1 << 33) | ((long) q2 << 2) | filter;
+  }
+
+  /**
+   * Returns the id of the given tuple, adding it (with the next id) if it hasn't been seen yet
+   */
+  int findOrAdd(int q1, int q2, int filter) {
+    assert q1 >= 0 && q2 >= 0 && filter >= 0 && filter <= MAX_FILTER_STATE;
+    long key = pack(q1, q2, filter);
+    if (ids.containsKey(key)) {
+      return ids.lget();
+    }
+    int id = size;
+    if (id == q1s.length) {
+      int newSize = id * 2;
+      q1s = Arrays.copyOf(q1s, newSize);
+      q2s = Arrays.copyOf(q2s, newSize);
+      filters = Arrays.copyOf(filters, newSize);
+    }
+    q1s[id] = q1;
+    q2s[id] = q2;
+    filters[id] = (byte) filter;
+    ids.put(key, id);
+    size += 1;
+    return id;
+  }
+
+  /**
+   * Returns the id of the given tuple or -1 if it hasn't been added; this doesn't modify anything
+   */
+  int find(int q1, int q2, int filter) {
+    return ids.getOrDefault(pack(q1, q2, filter), -1);
+  }
+
+  int q1(int id) {
+    return q1s[id];
+  }
+
+  int q2(int id) {
+    return q2s[id];
+  }
+
+  int filter(int id) {
+    return filters[id];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Forgets every state but keeps the allocated space so that the table can be re-used
+   */
+  void clear() {
+    ids.clear();
+    size = 0;
+  }
+}
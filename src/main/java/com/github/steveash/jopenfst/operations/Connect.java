@@ -16,8 +16,10 @@
 
 package com.github.steveash.jopenfst.operations;
 
+import com.carrotsearch.hppc.IntArrayDeque;
 import com.carrotsearch.hppc.IntOpenHashSet;
-import com.github.steveash.jopenfst.MutableArc;
+import com.github.steveash.jopenfst.ArcCursor;
+import com.github.steveash.jopenfst.IncomingStateIndex;
 import com.github.steveash.jopenfst.MutableFst;
 import com.github.steveash.jopenfst.MutableState;
 
@@ -40,12 +42,12 @@ public class Connect {
 
     IntOpenHashSet accessible = new IntOpenHashSet(fst.getStateCount());
     IntOpenHashSet coaccessible = new IntOpenHashSet(fst.getStateCount());
-    dfsForward(fst.getStartState(), accessible);
+    dfsForward(fst, fst.getStartState().getId(), accessible);
     int numStates = fst.getStateCount();
+    IncomingStateIndex incoming = IncomingStateIndex.build(fst);
     for (int i = 0; i < numStates; i++) {
-      MutableState s = fst.getState(i);
-      if (fst.getSemiring().isNotZero(s.getFinalWeight())) {
-        dfsBackward(s, coaccessible);
+      if (fst.getSemiring().isNotZero(fst.getFinalWeight(i))) {
+        dfsBackward(incoming, i, coaccessible);
       }
     }
 
@@ -68,21 +70,35 @@ public class Connect {
     fst.deleteStates(toDelete);
   }
 
-  private static void dfsBackward(MutableState state, IntOpenHashSet coaccessible) {
-    coaccessible.add(state.getId());
-    for (MutableState incoming : state.getIncomingStates()) {
-      if (!coaccessible.contains(incoming.getId())) {
-        dfsBackward(incoming, coaccessible);
+  private static void dfsBackward(IncomingStateIndex incoming, int finalId, IntOpenHashSet coaccessible) {
+    if (!coaccessible.add(finalId)) {
+      return;
+    }
+    IntArrayDeque stack = new IntArrayDeque();
+    stack.addLast(finalId);
+    while (!stack.isEmpty()) {
+      int stateId = stack.removeLast();
+      for (int i = 0; i < incoming.getIncomingCount(stateId); i++) {
+        int inStateId = incoming.getIncomingState(stateId, i);
+        if (coaccessible.add(inStateId)) {
+          stack.addLast(inStateId);
+        }
       }
     }
   }
 
-  private static void dfsForward(MutableState start, IntOpenHashSet accessible) {
-    accessible.add(start.getId());
-    for (MutableArc arc : start.getArcs()) {
-      MutableState nextState = arc.getNextState();
-      if (!accessible.contains(nextState.getId())) {
-        dfsForward(nextState, accessible);
+  private static void dfsForward(MutableFst fst, int startId, IntOpenHashSet accessible) {
+    ArcCursor cursor = fst.newArcCursor();
+    IntArrayDeque stack = new IntArrayDeque();
+    accessible.add(startId);
+    stack.addLast(startId);
+    while (!stack.isEmpty()) {
+      fst.arcs(stack.removeLast(), cursor);
+      while (cursor.next()) {
+        int nextId = cursor.nextStateId();
+        if (accessible.add(nextId)) {
+          stack.addLast(nextId);
+        }
       }
     }
   }
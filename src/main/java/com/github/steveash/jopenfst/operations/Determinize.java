@@ -27,11 +27,13 @@ import com.github.steveash.jopenfst.semiring.Semiring;
 import com.github.steveash.jopenfst.semiring.UnionSemiring;
 import com.github.steveash.jopenfst.semiring.UnionSemiring.UnionMode;
 import com.github.steveash.jopenfst.semiring.UnionSemiring.UnionWeight;
+import com.github.steveash.jopenfst.utils.FstUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
 import org.apache.commons.lang3.tuple.Pair;
 
+import javax.annotation.Nullable;
 import java.util.*;
 
 import static com.github.steveash.jopenfst.semiring.GallicSemiring.SHORTLEX_ORDERING;
@@ -53,12 +55,19 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * <p>
  * Not all FSTs are determinizable: all acyclic FSA/FSTs are, all unweighted FSAs are.
  * </p>
+ * <p>
+ * Acceptors (FSAs) are determinized on primitive weights without the gallic and union semirings (see
+ * DeterminizeAcceptor), which gives the same result much more cheaply.
+ * </p>
  * This implementation differs from OpenFST in a number of ways:
  * <ul>
- * <li>computes the result eagerly (not delayed)</li>
+ * <li>computes the result eagerly (not delayed); see {@link DeterminizeFst} for the delayed version</li>
  * <li>does not offer ability to increment ending epsilon input ids (see OpenFST subsequential_label settings)</li>
- * <li>does not offer a quantization delta for finding 'matching' (fuzzy-)weights</li>
+ * <li>does not quantize residual weights by default (OpenFST uses a delta of 1/1024); a quantization delta can be
+ * given so that subsets whose residuals only differ by floating point noise are the same state</li>
  * </ul>
+ * A weight threshold and a state limit can be given to bound the size of the result (like OpenFst's pruned
+ * determinization); see the four argument constructor.
  * See: M. Mohri, "Finite-State Transducers in Language and Speech Processing", Computational Linguistics, 23:2, 1997.
  */
 public class Determinize {
@@ -78,21 +87,41 @@ public class Determinize {
     DISAMBIGUATE
   }
 
+  public enum StateLimitMode {
+
+    // (default) throw an IllegalStateException once the result would have more than the max number of states
+    FAIL,
+
+    // drop the arcs to any new states once the result has the max number of states; the result is trimmed so it
+    // only accepts (a subset of) the paths of the input
+    TRUNCATE
+  }
+
+  public static final double NO_QUANTIZATION = 0.0;
+
   private final int outputEps = 0; // output EPS is supposed to be EPS but could be configurable in the future
   private final DeterminizeMode mode;
   private final GallicMode gallicMode;
+  private final double delta;
+  @Nullable
+  private final Double weightThreshold;
+  private final int maxStates;
+  private final StateLimitMode stateLimitMode;
 
   // runtime state
   private Semiring semiring;
   private Fst inputFst;
+  private ArcCursor inputCursor;
   private UnionSemiring<GallicWeight, GallicSemiring> unionSemiring;
   private GallicSemiring gallicSemiring;
 
   // the output fst that is being built
   private MutableFst outputFst;
-  // this maps the outputFst's states to the 'tuple' that represents the union of the set of union states (and
-  // residuals that make up the output state)
-  private BiMap<Integer, DetStateTuple> outputStateIdToTuple;
+  // this holds the 'tuple' (the subset of input states and their residuals) that makes up each output state; the
+  // subset ids are the same as the output state ids (except the ones added for the deferred final states)
+  private DeterminizeStateTable stateTable;
+  // scratch space to build the (stateId, residualId) pairs of each target subset
+  private int[] subsetScratch;
 
   /**
    * Determinizes an FSA or FST. For this algorithm, epsilon transitions are treated as regular symbols. This
@@ -106,15 +135,70 @@ public class Determinize {
     return new Determinize().compute(fst);
   }
 
+  /**
+   * Returns the delayed determinization of an FSA or FST in FUNCTIONAL mode; nothing is determinized until the states
+   * of the result are visited (see {@link DeterminizeFst})
+   *
+   * @param fst the fst to determinize; not modified
+   * @return a delayed determinized FST
+   */
+  public static DeterminizeFst applyLazy(Fst fst) {
+    return new DeterminizeFst(fst);
+  }
+
   public Determinize() {
     this(DeterminizeMode.FUNCTIONAL);
   }
 
   public Determinize(DeterminizeMode mode) {
-    this.mode = mode;
+    this(mode, NO_QUANTIZATION);
+  }
+
+  /**
+   * @param mode the determinize mode
+   * @param delta the quantization delta: residual weights are rounded to the nearest multiple of delta before finding
+   *              the subset that they belong to (so residuals that only differ by floating point noise make the same
+   *              state); zero for no quantization
+   */
+  public Determinize(DeterminizeMode mode, double delta) {
+    this(mode, delta, null, Integer.MAX_VALUE, StateLimitMode.FAIL);
+  }
+
+  /**
+   * Determinize that bounds the size of the result
+   *
+   * @param mode the determinize mode
+   * @param weightThreshold if not null then only the paths whose weight is within this threshold of the best path's
+   *                        weight (i.e. not worse than best times threshold) are kept; the states are expanded best
+   *                        first and the result is trimmed. This is only exact if the semiring has the path property
+   *                        and weights don't get better along a path (e.g. tropical with non-negative weights); an
+   *                        input with an arc or final weight that is better than one throws an
+   *                        IllegalArgumentException
+   * @param maxStates the maximum number of states in the result, including the states that emit the output labels
+   *                  left over at final states in transducers
+   * @param stateLimitMode what to do once the result has maxStates states
+   */
+  public Determinize(DeterminizeMode mode, @Nullable Double weightThreshold, int maxStates,
+                     StateLimitMode stateLimitMode) {
+    this(mode, NO_QUANTIZATION, weightThreshold, maxStates, stateLimitMode);
+  }
+
+  /**
+   * Determinize that quantizes residual weights and bounds the size of the result; see the other constructors for the
+   * parameters
+   */
+  public Determinize(DeterminizeMode mode, double delta, @Nullable Double weightThreshold, int maxStates,
+                     StateLimitMode stateLimitMode) {
+    Preconditions.checkArgument(delta >= 0, "delta must not be negative", delta);
+    Preconditions.checkArgument(maxStates > 0, "maxStates must be positive", maxStates);
+    this.mode = checkNotNull(mode);
     this.gallicMode = (mode == DeterminizeMode.DISAMBIGUATE ?
       GallicMode.MIN_GALLIC :
       GallicMode.RESTRICT_GALLIC);
+    this.delta = delta;
+    this.weightThreshold = weightThreshold;
+    this.maxStates = maxStates;
+    this.stateLimitMode = checkNotNull(stateLimitMode);
   }
 
   /**
@@ -125,69 +209,175 @@ public class Determinize {
    */
   public MutableFst compute(final Fst fst) {
     fst.throwIfInvalid();
+    if (FstUtils.isAcceptor(fst)) {
+      // acceptors have no output strings to delay so they don't need any of the gallic machinery
+      return DeterminizeAcceptor.apply(fst, mode, delta, newPruner(fst));
+    }
+    return computeWithGallic(fst);
+  }
 
-    // init for this run of compute
-    this.semiring = fst.getSemiring();
-    this.gallicSemiring = new GallicSemiring(this.semiring, this.gallicMode);
-    this.unionSemiring = makeUnionRing(semiring, gallicSemiring, mode);
-    this.inputFst = fst;
+  // the general construction over gallic (output string x weight) residuals, which works for acceptors too
+  @VisibleForTesting
+  MutableFst computeWithGallic(final Fst fst) {
+    init(fst);
     this.outputFst = MutableFst.emptyWithCopyOfSymbols(fst);
+    DeterminizePruner pruner = newPruner(fst);
 
-    this.outputStateIdToTuple = HashBiMap.create();
-    // workQueue holds the pending work of determinizing the input fst
-    Deque<DetStateTuple> workQueue = new LinkedList<>();
     // finalQueue holds the pending work of expanding out the final paths (handled by the FactorFst in the
     // open fst implementation)
     Deque<DetElement> finalQueue = new LinkedList<>();
 
     // start the algorithm by starting with the input start state
     MutableState initialOutState = outputFst.newStartState();
-    DetElement initialElement = new DetElement(fst.getStartState().getId(),
-      GallicWeight.createEmptyLabels(semiring.one()));
-    DetStateTuple initialTuple = new DetStateTuple(initialElement);
-    workQueue.addLast(initialTuple);
-    this.outputStateIdToTuple.put(initialOutState.getId(), initialTuple);
-
-    // process all of the input states via the work queue
-    while (!workQueue.isEmpty()) {
-      DetStateTuple entry = workQueue.removeFirst();
-      MutableState outStateForTuple = getOutputStateForStateTuple(entry);
-
-      Collection<DetArcWork> arcWorks = groupByInputLabel(entry);
-      arcWorks.forEach(this::normalizeArcWork);
-
+    int initialId = addStartSubset();
+    Preconditions.checkState(initialId == initialOutState.getId(), "start state should be the first subset");
+    initialOutState.setFinalWeight(computeFinalWeight(initialId, finalQueue));
+    pruner.start(pruner.isPruning() ? subsetFuture(pruner, initialId) : semiring.zero());
+
+    // process all of the subsets in the order that the pruner gives them (which is the order that they're discovered
+    // unless there is a weight threshold)
+    int subsetId;
+    while ((subsetId = pruner.next(stateTable.size())) >= 0) {
+      MutableState outStateForTuple = outputFst.getState(subsetId);
+
+      Collection<DetArcWork> arcWorks = computeArcWorks(subsetId);
       for (DetArcWork arcWork : arcWorks) {
-        DetStateTuple targetTuple = new DetStateTuple(arcWork.pendingElements);
-        if (!this.outputStateIdToTuple.inverse().containsKey(targetTuple)) {
-          // we've never seen this tuple before so new state + enqueue the work
+        double arcWeight = semiring.zero();
+        double targetFuture = semiring.zero();
+        if (pruner.isPruning()) {
+          arcWeight = bestWeight(arcWork.computedDivisor);
+          targetFuture = elementsFuture(pruner, arcWork.pendingElements);
+          if (!pruner.withinThreshold(subsetId, arcWeight, targetFuture)) {
+            continue;
+          }
+        }
+        int nextId = stateTable.size();
+        int targetId;
+        if (pruner.isFull(nextId)) {
+          targetId = findSubset(arcWork.pendingElements);
+          if (targetId < 0) {
+            pruner.dropNewState();
+            continue;
+          }
+        } else {
+          targetId = findOrAddSubset(arcWork.pendingElements);
+        }
+        pruner.reached(subsetId, targetId, arcWeight, targetFuture);
+        if (targetId == nextId) {
+          // we've never seen this tuple before so new state (which is enqueued by being in the table)
           MutableState newOutState = outputFst.newState();
-          this.outputStateIdToTuple.put(newOutState.getId(), targetTuple);
-          newOutState.setFinalWeight(computeFinalWeight(newOutState.getId(), targetTuple, finalQueue));
-          workQueue.addLast(targetTuple);
+          Preconditions.checkState(newOutState.getId() == targetId, "output states should match subset ids");
+          newOutState.setFinalWeight(computeFinalWeight(targetId, finalQueue));
         }
-        MutableState targetOutState = getOutputStateForStateTuple(targetTuple);
+        MutableState targetOutState = outputFst.getState(targetId);
         // the computed divisor is a 'legal' arc meaning that it only has zero or one substring; though there
         // might be multiple entries if we're in non_functional mode
         UnionWeight<GallicWeight> unionWeight = arcWork.computedDivisor;
         for (GallicWeight gallicWeight : unionWeight.getWeights()) {
-          Preconditions.checkState(gallicSemiring.isNotZero(gallicWeight), "gallic weight zero computed from group by",
-            gallicWeight);
-          int oLabel = this.outputEps;
-          if (!gallicWeight.getLabels().isEmpty()) {
-            Preconditions.checkState(gallicWeight.getLabels().size() == 1,
-              "cant gave gallic arc weight with more than a single symbol", gallicWeight);
-            oLabel = gallicWeight.getLabels().get(0);
-          }
-          outputFst.addArc(outStateForTuple, arcWork.inputLabel, oLabel, targetOutState, gallicWeight.getWeight());
+          outputFst.addArc(outStateForTuple, arcWork.inputLabel, arcOutputLabel(gallicWeight), targetOutState,
+            gallicWeight.getWeight());
         }
       }
     }
 
     // we might've deferred some final state work that needs to be expanded
-    expandDeferredFinalStates(finalQueue);
+    expandDeferredFinalStates(finalQueue, pruner);
+    if (pruner.isLimited()) {
+      // some arcs were dropped so there can be dead ends
+      Connect.apply(outputFst);
+    }
     return outputFst;
   }
 
+  private DeterminizePruner newPruner(Fst fst) {
+    double threshold = (weightThreshold != null ? weightThreshold : fst.getSemiring().zero());
+    return new DeterminizePruner(fst, threshold, maxStates, stateLimitMode == StateLimitMode.TRUNCATE);
+  }
+
+  // the best weight (in the natural order) of the given union weight
+  private double bestWeight(UnionWeight<GallicWeight> weight) {
+    double best = semiring.zero();
+    for (GallicWeight gallicWeight : weight.getWeights()) {
+      if (semiring.naturalLess(gallicWeight.getWeight(), best)) {
+        best = gallicWeight.getWeight();
+      }
+    }
+    return best;
+  }
+
+  private double subsetFuture(DeterminizePruner pruner, int subsetId) {
+    double future = semiring.zero();
+    for (int i = 0; i < stateTable.elementCount(subsetId); i++) {
+      double residualWeight = bestWeight(stateTable.residual(subsetId, i));
+      future = pruner.addToFuture(future, stateTable.stateId(subsetId, i), residualWeight);
+    }
+    return future;
+  }
+
+  private double elementsFuture(DeterminizePruner pruner, List<DetElement> elements) {
+    double future = semiring.zero();
+    for (DetElement element : elements) {
+      future = pruner.addToFuture(future, element.inputStateId, bestWeight(element.residual));
+    }
+    return future;
+  }
+
+  // sets up the runtime state to determinize the given fst; after this the subsets can be expanded one at a time
+  // (which is how the delayed DeterminizeFst uses this)
+  void init(final Fst fst) {
+    fst.throwIfInvalid();
+    this.semiring = fst.getSemiring();
+    this.gallicSemiring = new GallicSemiring(this.semiring, this.gallicMode);
+    this.unionSemiring = makeUnionRing(semiring, gallicSemiring, mode);
+    this.inputFst = fst;
+    this.inputCursor = fst.newArcCursor();
+    this.stateTable = new DeterminizeStateTable();
+    this.subsetScratch = new int[16];
+  }
+
+  // adds the subset of the input's start state (with no residual) which is always the first subset
+  int addStartSubset() {
+    subsetScratch[0] = inputFst.getStartState().getId();
+    subsetScratch[1] = stateTable.internResidual(
+      UnionWeight.createSingle(GallicWeight.createEmptyLabels(semiring.one())));
+    return stateTable.findOrAdd(subsetScratch, 2);
+  }
+
+  // the grouped and normalized arcs leaving the given subset, one per input label
+  Collection<DetArcWork> computeArcWorks(final int subsetId) {
+    Collection<DetArcWork> arcWorks = groupByInputLabel(subsetId);
+    arcWorks.forEach(this::normalizeArcWork);
+    return arcWorks;
+  }
+
+  // the output label of a determinized arc with the given (legal) gallic weight
+  int arcOutputLabel(final GallicWeight gallicWeight) {
+    Preconditions.checkState(gallicSemiring.isNotZero(gallicWeight), "gallic weight zero computed from group by",
+      gallicWeight);
+    if (gallicWeight.getLabels().isEmpty()) {
+      return this.outputEps;
+    }
+    Preconditions.checkState(gallicWeight.getLabels().size() == 1,
+      "cant gave gallic arc weight with more than a single symbol", gallicWeight);
+    return gallicWeight.getLabels().get(0);
+  }
+
+  DeterminizeStateTable getStateTable() {
+    return stateTable;
+  }
+
+  GallicSemiring getGallicSemiring() {
+    return gallicSemiring;
+  }
+
+  UnionSemiring<GallicWeight, GallicSemiring> getUnionSemiring() {
+    return unionSemiring;
+  }
+
+  int getOutputEps() {
+    return outputEps;
+  }
+
   private static UnionSemiring<GallicWeight, GallicSemiring> makeUnionRing(Semiring semiring,
                                                                            GallicSemiring gallicSemiring,
                                                                            DeterminizeMode mode) {
@@ -219,19 +409,20 @@ public class Determinize {
 
   // for a particular state tuple (which is equivalent to an output state), group by input labels across all
   // input states in the residset, and just create pending (possibly duplicate) input residuals for the target states
-  private Collection<DetArcWork> groupByInputLabel(final DetStateTuple detStateTuple) {
+  private Collection<DetArcWork> groupByInputLabel(final int subsetId) {
     Map<Integer, DetArcWork> inputLabelToWork = Maps.newHashMap();
-    for (DetElement detElement : detStateTuple.getElements()) {
-      State inputState = getInputStateForId(detElement.getInputStateId());
-      for (Arc inputArc : inputState.getArcs()) {
+    for (int i = 0; i < stateTable.elementCount(subsetId); i++) {
+      UnionWeight<GallicWeight> residual = stateTable.residual(subsetId, i);
+      ArcCursor cursor = this.inputFst.arcs(stateTable.stateId(subsetId, i), this.inputCursor);
+      while (cursor.next()) {
 
         UnionWeight<GallicWeight> inputArcAsUnion = UnionWeight.createSingle(
-          GallicWeight.createSingleLabel(inputArc.getOlabel(), inputArc.getWeight())
+          GallicWeight.createSingleLabel(cursor.olabel(), cursor.weight())
         );
-        DetElement pendingElement = new DetElement(inputArc.getNextState().getId(),
-          this.unionSemiring.times(detElement.getResidual(), inputArcAsUnion));
+        DetElement pendingElement = new DetElement(cursor.nextStateId(),
+          this.unionSemiring.times(residual, inputArcAsUnion));
 
-        DetArcWork work = inputLabelToWork.computeIfAbsent(inputArc.getIlabel(),
+        DetArcWork work = inputLabelToWork.computeIfAbsent(cursor.ilabel(),
           iLabel -> new DetArcWork(iLabel, this.unionSemiring.zero()));
         work.pendingElements.add(pendingElement);
       }
@@ -239,6 +430,47 @@ public class Determinize {
     return inputLabelToWork.values();
   }
 
+  // the normalized elements are sorted by state id without duplicates, so each residual just needs to be interned
+  // to make the subset's key
+  int findOrAddSubset(final List<DetElement> elements) {
+    return stateTable.findOrAdd(subsetScratch, fillSubsetScratch(elements));
+  }
+
+  // like findOrAddSubset but returns -1 instead of adding the subset; this is used once the state limit is reached
+  // so it doesn't intern any residuals either (a residual that was never interned can't be in any subset)
+  private int findSubset(final List<DetElement> elements) {
+    int length = ensureSubsetScratch(elements.size());
+    for (int i = 0; i < elements.size(); i++) {
+      DetElement element = elements.get(i);
+      int residualId = stateTable.findResidual(element.residual);
+      if (residualId < 0) {
+        return -1;
+      }
+      subsetScratch[i * 2] = element.inputStateId;
+      subsetScratch[(i * 2) + 1] = residualId;
+    }
+    return stateTable.find(subsetScratch, length);
+  }
+
+  private int fillSubsetScratch(final List<DetElement> elements) {
+    int length = ensureSubsetScratch(elements.size());
+    for (int i = 0; i < elements.size(); i++) {
+      DetElement element = elements.get(i);
+      subsetScratch[i * 2] = element.inputStateId;
+      subsetScratch[(i * 2) + 1] = stateTable.internResidual(element.residual);
+    }
+    return length;
+  }
+
+  // returns the length of the (stateId, residualId) pairs of a subset with the given number of elements
+  private int ensureSubsetScratch(int elementCount) {
+    int length = elementCount * 2;
+    if (subsetScratch.length < length) {
+      subsetScratch = new int[Math.max(length, subsetScratch.length * 2)];
+    }
+    return length;
+  }
+
   // each arcWork may have duplicate states in the pending work (because groupBy doesn't dedup), normalize these
   // and compute new resulting arc weights
   private void normalizeArcWork(final DetArcWork arcWork) {
@@ -265,9 +497,35 @@ public class Determinize {
     for (int i = 0; i < arcWork.pendingElements.size(); i++) {
       DetElement currentElement = arcWork.pendingElements.get(i);
       UnionWeight<GallicWeight> divided = unionSemiring.divide(currentElement.residual, arcWork.computedDivisor);
-      arcWork.pendingElements.set(i, currentElement.withResidual(divided));
-      // we aren't quantizing anything in jopenfst but we would want to quantize here if we add that in the future
+      // quantize so that residuals that only differ by floating point noise make the same subset
+      arcWork.pendingElements.set(i, currentElement.withResidual(quantize(divided)));
+    }
+  }
+
+  private UnionWeight<GallicWeight> quantize(UnionWeight<GallicWeight> residual) {
+    if (delta == NO_QUANTIZATION || unionSemiring.isZero(residual)) {
+      return residual;
+    }
+    List<GallicWeight> quantized = Lists.newArrayListWithCapacity(residual.size());
+    for (GallicWeight gallicWeight : residual.getWeights()) {
+      if (gallicSemiring.isZero(gallicWeight)) {
+        quantized.add(gallicWeight);
+      } else {
+        quantized.add(GallicWeight.create(gallicWeight.getLabels(), quantize(gallicWeight.getWeight(), delta)));
+      }
+    }
+    return UnionWeight.createFromList(quantized);
+  }
+
+  /**
+   * Rounds the weight to the nearest multiple of delta (like OpenFST's Quantize); infinite weights (and any weight if
+   * delta is zero) are returned as is
+   */
+  static double quantize(double weight, double delta) {
+    if (delta == NO_QUANTIZATION || Double.isInfinite(weight) || Double.isNaN(weight)) {
+      return weight;
     }
+    return Math.floor((weight / delta) + 0.5) * delta;
   }
 
   // computes the new final weight for an output state in the determinized FST; to do this
@@ -276,18 +534,8 @@ public class Determinize {
   // we might end up with a final weight that still has output symbols in the residual, in which case we can't make
   // _this_ new outState a final state, and instead we queue it into a separate queue for later expansion
   private double computeFinalWeight(final int outputStateId,
-                                    final DetStateTuple targetTuple,
                                     Deque<DetElement> finalQueue) {
-    UnionWeight<GallicWeight> result = this.unionSemiring.zero();
-    for (DetElement detElement : targetTuple.getElements()) {
-      State inputState = this.getInputStateForId(detElement.inputStateId);
-      if (this.semiring.isZero(inputState.getFinalWeight())) {
-        continue; // not final so it wont contribute
-      }
-      UnionWeight<GallicWeight> origFinal = UnionWeight.createSingle(GallicWeight.createEmptyLabels(
-        inputState.getFinalWeight()));
-      result = this.unionSemiring.plus(result, this.unionSemiring.times(detElement.residual, origFinal));
-    }
+    UnionWeight<GallicWeight> result = computeFinalResidual(outputStateId);
     if (this.unionSemiring.isZero(result)) {
       return this.semiring.zero();
     }
@@ -302,10 +550,27 @@ public class Determinize {
     return this.semiring.zero(); // since we're deferring this weight can't be a final weight
   }
 
+  // the sum of the residuals of the final input states in the subset times their final weights (union zero if none
+  // of them are final); this is the final weight of the subset's output state if it has no labels left to emit
+  UnionWeight<GallicWeight> computeFinalResidual(final int subsetId) {
+    UnionWeight<GallicWeight> result = this.unionSemiring.zero();
+    for (int i = 0; i < stateTable.elementCount(subsetId); i++) {
+      double inputFinalWeight = this.inputFst.getFinalWeight(stateTable.stateId(subsetId, i));
+      if (this.semiring.isZero(inputFinalWeight)) {
+        continue; // not final so it wont contribute
+      }
+      UnionWeight<GallicWeight> origFinal = UnionWeight.createSingle(GallicWeight.createEmptyLabels(
+        inputFinalWeight));
+      result = this.unionSemiring.plus(result,
+        this.unionSemiring.times(stateTable.residual(subsetId, i), origFinal));
+    }
+    return result;
+  }
+
   // we have some paths to expand, which is the case when we've pushed some common divisor labels earlier in the
   // automata and now we just have residual output labels to emit. We emit <eps>:oLabel arcs for each (pushing any
-  // residual primitive weight early in the path)
-  private void expandDeferredFinalStates(Deque<DetElement> finalQueue) {
+  // residual primitive weight early in the path). These states count against the state limit like the subsets do
+  private void expandDeferredFinalStates(Deque<DetElement> finalQueue, DeterminizePruner pruner) {
     HashBiMap<Integer, GallicWeight> outputStateIdToFinalSuffix = HashBiMap.create();
     while (!finalQueue.isEmpty()) {
       DetElement element = finalQueue.removeFirst();
@@ -316,6 +581,11 @@ public class Determinize {
         GallicWeight suffix = factorized.getRight();
         if (!outputStateIdToFinalSuffix.inverse().containsKey(suffix)) {
           // we don't have a synthetic state for this suffix yet
+          if (pruner.isFull(outputFst.getStateCount())) {
+            // this path can't be finished (so it's trimmed if truncating)
+            pruner.dropNewState();
+            continue;
+          }
           MutableState newOutputState = outputFst.newState();
           outputStateIdToFinalSuffix.put(newOutputState.getId(), suffix);
           if (suffix.getLabels().isEmpty()) {
@@ -339,20 +609,10 @@ public class Determinize {
     }
   }
 
-  private MutableState getOutputStateForStateTuple(final DetStateTuple stateTuple) {
-    int outputStateId = checkNotNull(this.outputStateIdToTuple.inverse().get(stateTuple),
-      "no output state exists for state tuple", stateTuple);
-    return checkNotNull(this.outputFst.getState(outputStateId), "no result state for id", outputStateId);
-  }
-
-  private State getInputStateForId(final int inputStateId) {
-    return checkNotNull(this.inputFst.getState(inputStateId), "no input state for id", inputStateId);
-  }
-
   /**
    * Holder of work to compute a new determinized arc
    */
-  private static class DetArcWork {
+  static class DetArcWork {
 
     // input label for this particular arc-in-progress
     final int inputLabel;
@@ -371,50 +631,6 @@ public class Determinize {
     }
   }
 
-  /**
-   * A set of residuals, which together form the content of one output state in the determinized automata;
-   * NOTE DeterminizeStateTuple is the name from openfst
-   */
-  @VisibleForTesting
-  static class DetStateTuple {
-
-    private final LinkedHashSet<DetElement> elements;
-
-    DetStateTuple(DetElement singleElement) {
-      this(Sets.newLinkedHashSet(Collections.singletonList(singleElement)));
-    }
-
-    DetStateTuple(List<DetElement> elementsAsList) {
-      this(Sets.newLinkedHashSet(elementsAsList));
-    }
-
-    DetStateTuple(final LinkedHashSet<DetElement> elements) {
-      this.elements = elements;
-    }
-
-    LinkedHashSet<DetElement> getElements() {
-      return elements;
-    }
-
-    @Override
-    public boolean equals(final Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
-      DetStateTuple that = (DetStateTuple) o;
-      return Objects.equals(elements, that.elements);
-    }
-
-    @Override
-    public int hashCode() {
-      return Objects.hash(elements);
-    }
-
-    @Override
-    public String toString() {
-      return "ResidualSet{" + elements + '}';
-    }
-  }
-
   /**
    * Encapsulates the input state + any residual left for that path; the natural ordering is only based on
    * state ids
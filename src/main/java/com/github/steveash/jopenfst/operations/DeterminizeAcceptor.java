@@ -0,0 +1,363 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+import com.github.steveash.jopenfst.ArcCursor;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.operations.Determinize.DeterminizeMode;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Determinization of acceptors (every arc has the same input and output label) without the gallic and union weights:
+ * an acceptor has no output strings to delay so every residual is just a weight, and the subsets are (stateId,
+ * residual) pairs of primitives. This does the same operations (in the same order) on the primitive weights as the
+ * gallic construction in {@link Determinize} does on the gallic weights, so the results are identical.
+ * <p>
+ * Unweighted acceptors (every arc weight is one and every final weight is zero or one) where one plus one is one (e.g.
+ * tropical) skip the weights altogether: every residual is one so the subsets are just sets of states, and the target
+ * states of each label are collected with a bitset.
+ *
+ * @author Steve Ash
+ */
+class DeterminizeAcceptor {
+
+  /**
+   * Returns true if every arc of the fst has a weight of one, every final weight is zero or one, and one plus one is
+   * one (so that every residual of the determinization is one)
+   */
+  static boolean isUnweighted(Fst fst) {
+    Semiring semiring = fst.getSemiring();
+    double one = semiring.one();
+    if (!isSame(semiring.plus(one, one), one) || !isSame(semiring.divide(one, one), one)) {
+      return false;
+    }
+    ArcCursor cursor = fst.newArcCursor();
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      double finalWeight = fst.getFinalWeight(i);
+      if (!isSame(finalWeight, one) && !isSame(finalWeight, semiring.zero())) {
+        return false;
+      }
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        if (!isSame(cursor.weight(), one)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Determinizes the given acceptor (see {@link FstUtils#isAcceptor})
+   * @param fst the acceptor to determinize; not modified
+   * @param mode the determinize mode which (for acceptors) only changes how duplicate paths to the same state are
+   *             merged: DISAMBIGUATE keeps the min while the others plus them
+   * @return the determinized acceptor
+   */
+  static MutableFst apply(Fst fst, DeterminizeMode mode) {
+    return apply(fst, mode, Determinize.NO_QUANTIZATION,
+      new DeterminizePruner(fst, fst.getSemiring().zero(), Integer.MAX_VALUE, false));
+  }
+
+  /**
+   * Determinizes the given acceptor (see {@link FstUtils#isAcceptor}) quantizing the residuals with the given delta
+   * (see {@link Determinize#quantize}) and with the weight threshold and state limit of the given pruner
+   */
+  static MutableFst apply(Fst fst, DeterminizeMode mode, double delta, DeterminizePruner pruner) {
+    return new DeterminizeAcceptor(fst, mode, delta, isUnweighted(fst), pruner).compute();
+  }
+
+  private final Fst inputFst;
+  private final Semiring semiring;
+  private final boolean keepMin;
+  private final double delta;
+  private final boolean unweighted;
+  private final MutableFst outputFst;
+  private final DeterminizePruner pruner;
+  private final DeterminizeStateTable stateTable = new DeterminizeStateTable();
+  // residual weights are interned by their bits (which is the same equality as the gallic residuals)
+  private final LongIntOpenHashMap residualIds = new LongIntOpenHashMap();
+  private final DoubleArrayList residuals = new DoubleArrayList();
+
+  // the arcs leaving the subset being expanded: (label, next state, weight times residual)
+  private final IntArrayList labels = new IntArrayList();
+  private final IntArrayList nexts = new IntArrayList();
+  private final DoubleArrayList weights = new DoubleArrayList();
+  private long[] sortKeys = new long[16];
+  private long[] groupKeys = new long[16];
+  // the (stateId, residualId) pairs of the target subset being built, and the merged weights of its pairs
+  private int[] subset = new int[16];
+  private final DoubleArrayList pendingWeights = new DoubleArrayList();
+  private final BitSet seenTargets = new BitSet();
+  private final IntArrayList distinctTargets = new IntArrayList();
+
+  private DeterminizeAcceptor(Fst inputFst, DeterminizeMode mode, double delta, boolean unweighted,
+                              DeterminizePruner pruner) {
+    this.inputFst = inputFst;
+    this.semiring = inputFst.getSemiring();
+    this.keepMin = (mode == DeterminizeMode.DISAMBIGUATE);
+    this.delta = delta;
+    this.unweighted = unweighted;
+    this.outputFst = MutableFst.emptyWithCopyOfSymbols(inputFst);
+    this.pruner = pruner;
+  }
+
+  private MutableFst compute() {
+    inputFst.throwIfInvalid();
+    MutableState initialOutState = outputFst.newStartState();
+    subset[0] = inputFst.getStartState().getId();
+    subset[1] = internResidual(semiring.one());
+    stateTable.findOrAdd(subset, 2);
+    initialOutState.setFinalWeight(computeFinalWeight(0));
+    pruner.start(pruner.isPruning() ? subsetFuture(0) : semiring.zero());
+
+    ArcCursor cursor = inputFst.newArcCursor();
+    // the subsets are expanded in the order the pruner gives them (which is the order they're discovered unless there
+    // is a weight threshold) and their ids are the output state ids
+    int subsetId;
+    while ((subsetId = pruner.next(stateTable.size())) >= 0) {
+      gatherArcs(subsetId, cursor);
+      int arcCount = labels.size();
+      if (sortKeys.length < arcCount) {
+        sortKeys = new long[Math.max(arcCount, sortKeys.length * 2)];
+        groupKeys = new long[sortKeys.length];
+      }
+      // group by label keeping the gather order within each label
+      for (int i = 0; i < arcCount; i++) {
+        sortKeys[i] = ((long) labels.get(i) << 32) | i;
+      }
+      Arrays.sort(sortKeys, 0, arcCount);
+      MutableState outState = outputFst.getState(subsetId);
+      int start = 0;
+      while (start < arcCount) {
+        int label = labels.get((int) sortKeys[start]);
+        int end = start + 1;
+        while (end < arcCount && labels.get((int) sortKeys[end]) == label) {
+          end += 1;
+        }
+        if (unweighted) {
+          addUnweightedArc(outState, label, start, end);
+        } else {
+          addWeightedArc(outState, label, start, end);
+        }
+        start = end;
+      }
+    }
+    if (pruner.isLimited()) {
+      // some arcs were dropped so there can be dead ends
+      Connect.apply(outputFst);
+    }
+    return outputFst;
+  }
+
+  private double subsetFuture(int subsetId) {
+    double future = semiring.zero();
+    for (int i = 0; i < stateTable.elementCount(subsetId); i++) {
+      double residual = residuals.get(stateTable.residualId(subsetId, i));
+      future = pruner.addToFuture(future, stateTable.stateId(subsetId, i), residual);
+    }
+    return future;
+  }
+
+  private void gatherArcs(int subsetId, ArcCursor cursor) {
+    labels.clear();
+    nexts.clear();
+    weights.clear();
+    for (int i = 0; i < stateTable.elementCount(subsetId); i++) {
+      double residual = residuals.get(stateTable.residualId(subsetId, i));
+      inputFst.arcs(stateTable.stateId(subsetId, i), cursor);
+      while (cursor.next()) {
+        labels.add(cursor.ilabel());
+        nexts.add(cursor.nextStateId());
+        weights.add(unweighted ? residual : semiring.times(residual, cursor.weight()));
+      }
+    }
+  }
+
+  // the arcs sortKeys[start, end) all have the given label; they're sorted by next state (keeping their order for
+  // each next state) to sum up the divisor and merge the duplicates just like the gallic normalize does
+  private void addWeightedArc(MutableState outState, int label, int start, int end) {
+    for (int i = start; i < end; i++) {
+      int index = (int) sortKeys[i];
+      groupKeys[i] = ((long) nexts.get(index) << 32) | index;
+    }
+    Arrays.sort(groupKeys, start, end);
+    double divisor = semiring.zero();
+    pendingWeights.clear();
+    int count = 0;
+    for (int i = start; i < end; i++) {
+      int index = (int) groupKeys[i];
+      double weight = weights.get(index);
+      divisor = semiring.plus(divisor, weight);
+      int next = nexts.get(index);
+      if (count > 0 && subset[(count - 1) * 2] == next) {
+        // merge the duplicate into the last one
+        pendingWeights.set(count - 1, merge(pendingWeights.get(count - 1), weight));
+      } else {
+        ensureSubsetCapacity(count + 1);
+        subset[count * 2] = next;
+        pendingWeights.add(weight);
+        count += 1;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      double residual = semiring.divide(pendingWeights.get(i), divisor);
+      pendingWeights.set(i, Determinize.quantize(residual, delta));
+    }
+    addArc(outState, label, count, divisor, pendingWeights);
+  }
+
+  private void addUnweightedArc(MutableState outState, int label, int start, int end) {
+    distinctTargets.clear();
+    for (int i = start; i < end; i++) {
+      int next = nexts.get((int) sortKeys[i]);
+      if (!seenTargets.get(next)) {
+        seenTargets.set(next);
+        distinctTargets.add(next);
+      }
+    }
+    int count = distinctTargets.size();
+    int[] targets = distinctTargets.buffer;
+    Arrays.sort(targets, 0, count);
+    ensureSubsetCapacity(count);
+    int one = residualIds.get(Double.doubleToLongBits(semiring.one()));
+    for (int i = 0; i < count; i++) {
+      seenTargets.clear(targets[i]);
+      subset[i * 2] = targets[i];
+      subset[(i * 2) + 1] = one;
+    }
+    addArc(outState, label, count, semiring.one(), null);
+  }
+
+  // adds the arc to the target subset (the first count pairs of the subset scratch), making its state if it's new;
+  // unless the pruner drops it. If pendingResiduals is given then the subset scratch only has the state ids so far
+  // and these are the residuals that go with them; they're only interned if the subset can be added (so the residuals
+  // of the arcs that are dropped at the state limit don't pile up)
+  private void addArc(MutableState outState, int label, int count, double weight,
+                      @Nullable DoubleArrayList pendingResiduals) {
+    int sourceId = outState.getId();
+    double targetFuture = semiring.zero();
+    if (pruner.isPruning()) {
+      for (int i = 0; i < count; i++) {
+        double residual = (pendingResiduals != null ? pendingResiduals.get(i) : residuals.get(subset[(i * 2) + 1]));
+        targetFuture = pruner.addToFuture(targetFuture, subset[i * 2], residual);
+      }
+      if (!pruner.withinThreshold(sourceId, weight, targetFuture)) {
+        return;
+      }
+    }
+    int nextId = stateTable.size();
+    int targetId;
+    if (pruner.isFull(nextId)) {
+      targetId = (fillResidualIds(count, pendingResiduals, false) ? stateTable.find(subset, count * 2) : -1);
+      if (targetId < 0) {
+        pruner.dropNewState();
+        return;
+      }
+    } else {
+      fillResidualIds(count, pendingResiduals, true);
+      targetId = stateTable.findOrAdd(subset, count * 2);
+    }
+    pruner.reached(sourceId, targetId, weight, targetFuture);
+    if (targetId == nextId) {
+      MutableState newOutState = outputFst.newState();
+      assert newOutState.getId() == targetId;
+      newOutState.setFinalWeight(computeFinalWeight(targetId));
+    }
+    outputFst.addArc(outState, label, label, outputFst.getState(targetId), weight);
+  }
+
+  private double computeFinalWeight(int subsetId) {
+    double result = semiring.zero();
+    boolean any = false;
+    for (int i = 0; i < stateTable.elementCount(subsetId); i++) {
+      double inputFinalWeight = inputFst.getFinalWeight(stateTable.stateId(subsetId, i));
+      if (semiring.isZero(inputFinalWeight)) {
+        continue;
+      }
+      double weight = semiring.times(residuals.get(stateTable.residualId(subsetId, i)), inputFinalWeight);
+      result = (any ? merge(result, weight) : weight);
+      any = true;
+    }
+    return result;
+  }
+
+  private double merge(double a, double b) {
+    if (keepMin) {
+      return semiring.naturalLess(a, b) ? a : b;
+    }
+    return semiring.plus(a, b);
+  }
+
+  // puts the ids of the given residuals (if any) in the subset scratch; returns false if one of them hasn't been
+  // interned (and intern is false), in which case there can't be a subset with it
+  private boolean fillResidualIds(int count, @Nullable DoubleArrayList pendingResiduals, boolean intern) {
+    if (pendingResiduals == null) {
+      return true;
+    }
+    for (int i = 0; i < count; i++) {
+      double residual = pendingResiduals.get(i);
+      int residualId = (intern ? internResidual(residual) : findResidual(residual));
+      if (residualId < 0) {
+        return false;
+      }
+      subset[(i * 2) + 1] = residualId;
+    }
+    return true;
+  }
+
+  private int internResidual(double residual) {
+    long bits = Double.doubleToLongBits(residual);
+    if (residualIds.containsKey(bits)) {
+      return residualIds.lget();
+    }
+    int id = residuals.size();
+    residuals.add(residual);
+    residualIds.put(bits, id);
+    return id;
+  }
+
+  // like internResidual but returns -1 instead of adding the residual
+  private int findResidual(double residual) {
+    long bits = Double.doubleToLongBits(residual);
+    if (residualIds.containsKey(bits)) {
+      return residualIds.lget();
+    }
+    return -1;
+  }
+
+  private void ensureSubsetCapacity(int pairs) {
+    if (subset.length < pairs * 2) {
+      subset = Arrays.copyOf(subset, Math.max(pairs * 2, subset.length * 2));
+    }
+  }
+
+  private static boolean isSame(double a, double b) {
+    return Double.compare(a, b) == 0;
+  }
+}
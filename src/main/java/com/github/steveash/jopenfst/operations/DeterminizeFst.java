@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.LazyFst;
+import com.github.steveash.jopenfst.operations.Determinize.DetArcWork;
+import com.github.steveash.jopenfst.operations.Determinize.DeterminizeMode;
+import com.github.steveash.jopenfst.semiring.GallicSemiring.GallicWeight;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.semiring.UnionSemiring.UnionWeight;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Ordering;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+
+/**
+ * Delayed (on-the-fly) determinization: the states and arcs of the determinized fst are computed only when they are
+ * visited, so a traversal that only looks at part of the result (e.g. {@link NShortestPaths} from the start state)
+ * never pays for the subsets that it doesn't reach, even when the full determinization would blow up. The expanded
+ * states are cached up to `maxCachedStates` (see {@link LazyFst}) but the subsets that have been discovered are
+ * always kept (as their ids are the state ids).
+ * <p>
+ * This accepts the same input and modes as {@link Determinize} and produces an equivalent fst, though the state ids
+ * differ when there are final residuals left to emit: the states that emit them are discovered as they're reached
+ * instead of after everything else. In FUNCTIONAL mode a non-functional input throws when the offending state is
+ * expanded (instead of up front). The arcs of each state are sorted by input label.
+ * <p>
+ * NOTE: this is not thread safe; the input fst must not be modified while this is in use
+ *
+ * @author Steve Ash
+ */
+public class DeterminizeFst extends LazyFst {
+
+  // the stateId in the subset of a state that only emits the remaining labels of a final residual (the residualId
+  // being that final residual)
+  private static final int SUFFIX_STATE = -1;
+
+  private static final Ordering<DetArcWork> BY_INPUT_LABEL = new Ordering<DetArcWork>() {
+    @Override
+    public int compare(DetArcWork left, DetArcWork right) {
+      return Integer.compare(left.inputLabel, right.inputLabel);
+    }
+  };
+
+  private final Determinize determinize;
+  private final DeterminizeStateTable states;
+  private final Semiring semiring;
+  private final DoubleArrayList finalWeights = new DoubleArrayList();
+  private final int[] suffixScratch = new int[2];
+
+  public DeterminizeFst(Fst fst) {
+    this(fst, DeterminizeMode.FUNCTIONAL);
+  }
+
+  public DeterminizeFst(Fst fst, DeterminizeMode mode) {
+    this(fst, mode, DEFAULT_MAX_CACHED_STATES);
+  }
+
+  /**
+   * @param fst the fst to determinize; not modified
+   * @param mode what to do if the input is non-functional (see {@link Determinize})
+   * @param maxCachedStates the maximum number of expanded states to keep cached (see {@link LazyFst})
+   */
+  public DeterminizeFst(Fst fst, DeterminizeMode mode, int maxCachedStates) {
+    this(fst, mode, Determinize.NO_QUANTIZATION, maxCachedStates);
+  }
+
+  /**
+   * @param fst the fst to determinize; not modified
+   * @param mode what to do if the input is non-functional (see {@link Determinize})
+   * @param delta the quantization delta for the residual weights, or zero for none (see {@link Determinize})
+   * @param maxCachedStates the maximum number of expanded states to keep cached (see {@link LazyFst})
+   */
+  public DeterminizeFst(Fst fst, DeterminizeMode mode, double delta, int maxCachedStates) {
+    super(fst.getSemiring(), fst.getInputSymbols(), fst.getOutputSymbols(), maxCachedStates);
+    this.determinize = new Determinize(mode, delta);
+    this.determinize.init(fst);
+    this.states = determinize.getStateTable();
+    this.semiring = fst.getSemiring();
+    int startId = determinize.addStartSubset();
+    discovered(startId);
+  }
+
+  @Override
+  protected int getStartStateId() {
+    return 0;
+  }
+
+  @Override
+  public int getDiscoveredStateCount() {
+    return states.size();
+  }
+
+  @Override
+  protected double computeFinalWeight(int stateId) {
+    return finalWeights.get(stateId);
+  }
+
+  @Override
+  protected void expand(int stateId, ArcSink sink) {
+    if (states.stateId(stateId, 0) == SUFFIX_STATE) {
+      GallicWeight suffix = states.residual(stateId, 0).get(0);
+      if (!suffix.getLabels().isEmpty()) {
+        addFinalArc(suffix, sink);
+      }
+      return;
+    }
+    // the final residual arcs are all epsilon input so they go first to keep the arcs sorted
+    UnionWeight<GallicWeight> finalResidual = determinize.computeFinalResidual(stateId);
+    if (!isFinalWeightOnly(finalResidual)) {
+      for (GallicWeight gallicWeight : finalResidual.getWeights()) {
+        addFinalArc(gallicWeight, sink);
+      }
+    }
+    List<DetArcWork> arcWorks = BY_INPUT_LABEL.sortedCopy(determinize.computeArcWorks(stateId));
+    for (DetArcWork arcWork : arcWorks) {
+      int targetId = discovered(determinize.findOrAddSubset(arcWork.pendingElements));
+      for (GallicWeight gallicWeight : arcWork.computedDivisor.getWeights()) {
+        sink.add(arcWork.inputLabel, determinize.arcOutputLabel(gallicWeight), targetId, gallicWeight.getWeight());
+      }
+    }
+  }
+
+  // emits the first label of the given final residual on an epsilon input arc to the state for the rest of it
+  private void addFinalArc(GallicWeight gallicWeight, ArcSink sink) {
+    Pair<GallicWeight, GallicWeight> factorized = determinize.getGallicSemiring().factorize(gallicWeight);
+    GallicWeight prefix = factorized.getLeft();
+    Preconditions.checkArgument(prefix.getLabels().size() == 1, "prefix size should be 1", prefix);
+    suffixScratch[0] = SUFFIX_STATE;
+    suffixScratch[1] = states.internResidual(UnionWeight.createSingle(factorized.getRight()));
+    int targetId = discovered(states.findOrAdd(suffixScratch, 2));
+    sink.add(determinize.getOutputEps(), prefix.getLabels().get(0), targetId, prefix.getWeight());
+  }
+
+  // computes the final weight of newly discovered states
+  private int discovered(int stateId) {
+    if (stateId == finalWeights.size()) {
+      finalWeights.add(computeDiscoveredFinalWeight(stateId));
+    }
+    return stateId;
+  }
+
+  private double computeDiscoveredFinalWeight(int stateId) {
+    if (states.stateId(stateId, 0) == SUFFIX_STATE) {
+      GallicWeight suffix = states.residual(stateId, 0).get(0);
+      return (suffix.getLabels().isEmpty() ? suffix.getWeight() : semiring.zero());
+    }
+    UnionWeight<GallicWeight> finalResidual = determinize.computeFinalResidual(stateId);
+    if (determinize.getUnionSemiring().isZero(finalResidual)) {
+      return semiring.zero();
+    }
+    if (isFinalWeightOnly(finalResidual)) {
+      return finalResidual.get(0).getWeight();
+    }
+    // there are still labels to emit so this isn't final; the arcs to emit them are added when it's expanded
+    return semiring.zero();
+  }
+
+  // true if the final residual is zero or just a weight (so there are no labels left to emit)
+  private boolean isFinalWeightOnly(UnionWeight<GallicWeight> finalResidual) {
+    return determinize.getUnionSemiring().isZero(finalResidual) ||
+           (finalResidual.size() == 1 && finalResidual.get(0).getLabels().isEmpty());
+  }
+}
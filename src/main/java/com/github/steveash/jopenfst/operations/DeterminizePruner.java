@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayDeque;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.IncomingStateIndex;
+import com.github.steveash.jopenfst.IndexWeight;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.collect.MinMaxPriorityQueue;
+import com.google.common.collect.Ordering;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Decides the order that the subsets of a determinization are expanded in, and which of them are kept, for the
+ * weight threshold and state limit of {@link Determinize}:
+ * <ul>
+ *   <li>without a weight threshold the subsets are expanded in the order they're discovered (like the unpruned
+ *   determinization)</li>
+ *   <li>with a weight threshold the subsets are expanded best first by the weight of the best path through them (the
+ *   distance from the start times the subset's future weight, which is the best of its residuals times the distance
+ *   from its input state to a final state); an arc to a subset is dropped if the best path through it is worse than
+ *   the threshold times the best path of the input, and the search stops once the next subset is</li>
+ *   <li>once there are `maxStates` states, finding another subset (or, for transducers, another state to emit the
+ *   output labels left over at a final state) either throws or (if truncating) drops the arc</li>
+ * </ul>
+ * Like OpenFst's pruned determinization, the pruning is only exact if the semiring has the path property and the
+ * weights don't get better along a path (e.g. non negative tropical weights); with a weight threshold an input with
+ * an arc or final weight that is better than one throws an IllegalArgumentException
+ *
+ * @author Steve Ash
+ */
+class DeterminizePruner {
+
+  private final Semiring semiring;
+  private final boolean pruning;
+  private final int maxStates;
+  private final boolean truncate;
+  private double[] distanceToFinal;
+  private double limit;
+  private final DoubleArrayList forward = new DoubleArrayList();
+  private final DoubleArrayList future = new DoubleArrayList();
+  private final BitSet expanded = new BitSet();
+  private final MinMaxPriorityQueue<IndexWeight> queue;
+  private int nextInOrder = 0;
+  private boolean limited = false;
+
+  /**
+   * @param fst the input fst being determinized
+   * @param weightThreshold the weight threshold, or semiring zero for no pruning by weight
+   * @param maxStates the maximum number of determinized states
+   * @param truncate if true then arcs to new states are dropped once there are `maxStates`; if false then it throws
+   */
+  DeterminizePruner(Fst fst, double weightThreshold, int maxStates, boolean truncate) {
+    this.semiring = fst.getSemiring();
+    this.pruning = semiring.isNotZero(weightThreshold);
+    this.maxStates = maxStates;
+    this.truncate = truncate;
+    if (pruning) {
+      this.distanceToFinal = distanceToFinal(fst);
+      this.limit = semiring.times(distanceToFinal[fst.getStartState().getId()], weightThreshold);
+    }
+    this.queue = MinMaxPriorityQueue.orderedBy(new Ordering<IndexWeight>() {
+      @Override
+      public int compare(IndexWeight left, IndexWeight right) {
+        if (semiring.naturalLess(left.getWeight(), right.getWeight())) {
+          return -1;
+        }
+        if (semiring.naturalLess(right.getWeight(), left.getWeight())) {
+          return +1;
+        }
+        return 0;
+      }
+    }).create();
+  }
+
+  boolean isPruning() {
+    return pruning;
+  }
+
+  /**
+   * Returns true if any subsets or arcs were dropped (so the result should be trimmed)
+   */
+  boolean isLimited() {
+    return limited;
+  }
+
+  /**
+   * Folds one (input state, residual weight) element of a subset into the subset's future weight, which starts as
+   * semiring zero and is the best of its elements; this is only needed if pruning
+   */
+  double addToFuture(double subsetFuture, int inputStateId, double residualWeight) {
+    double candidate = semiring.times(residualWeight, distanceToFinal[inputStateId]);
+    return (semiring.naturalLess(candidate, subsetFuture) ? candidate : subsetFuture);
+  }
+
+  /**
+   * Called for the start subset which must be the first one
+   */
+  void start(double startFuture) {
+    forward.add(semiring.one());
+    future.add(startFuture);
+    queue.add(new IndexWeight(0, semiring.times(semiring.one(), startFuture)));
+  }
+
+  /**
+   * Returns the id of the next subset to expand or -1 if there are no more to expand
+   * @param subsetCount the number of subsets that have been found so far
+   */
+  int next(int subsetCount) {
+    if (!pruning) {
+      return (nextInOrder < subsetCount ? nextInOrder++ : -1);
+    }
+    while (!queue.isEmpty()) {
+      IndexWeight entry = queue.removeFirst();
+      int id = entry.getIndex();
+      // subsets are queued again when a better path to them is found, so skip the stale entries
+      if (expanded.get(id) || entry.getWeight() != semiring.times(forward.get(id), future.get(id))) {
+        continue;
+      }
+      if (semiring.naturalLess(limit, entry.getWeight())) {
+        // everything left is worse than the threshold
+        limited = true;
+        return -1;
+      }
+      expanded.set(id);
+      return id;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns true if the arc from the source subset (with the given weight) to a subset with the given future weight
+   * should be kept; the target future is only used if pruning
+   */
+  boolean withinThreshold(int sourceId, double arcWeight, double targetFuture) {
+    if (!pruning) {
+      return true;
+    }
+    double pathWeight = semiring.times(semiring.times(forward.get(sourceId), arcWeight), targetFuture);
+    if (semiring.naturalLess(limit, pathWeight)) {
+      limited = true;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if there are already `maxStates` states, in which case an arc to a state that hasn't been added yet
+   * has to be dropped (see `dropNewState`)
+   */
+  boolean isFull(int stateCount) {
+    return stateCount >= maxStates;
+  }
+
+  /**
+   * Called instead of adding a new state once this is full; throws unless this is truncating
+   */
+  void dropNewState() {
+    if (!truncate) {
+      throw new IllegalStateException("Determinize exceeded the limit of " + maxStates + " states; the input might " +
+                                      "not be determinizable or it might need a weight threshold");
+    }
+    limited = true;
+  }
+
+  /**
+   * Called after a kept arc from the source subset to the target subset (which is a new subset if its id is the
+   * number of subsets that this has seen)
+   */
+  void reached(int sourceId, int targetId, double arcWeight, double targetFuture) {
+    if (!pruning) {
+      return;
+    }
+    if (targetId == forward.size()) {
+      forward.add(semiring.zero());
+      future.add(targetFuture);
+    }
+    double distance = semiring.times(forward.get(sourceId), arcWeight);
+    if (!expanded.get(targetId) && semiring.naturalLess(distance, forward.get(targetId))) {
+      forward.set(targetId, distance);
+      queue.add(new IndexWeight(targetId, semiring.times(distance, future.get(targetId))));
+    }
+  }
+
+  // the best (in the natural order) distance from each state to a final state, by relaxing the reversed arcs from the
+  // final states; weights that get better along a path would make this loop forever on a cycle (and the pruning is
+  // wrong for them anyway) so they're rejected
+  private static double[] distanceToFinal(Fst fst) {
+    Semiring semiring = fst.getSemiring();
+    int stateCount = fst.getStateCount();
+    IncomingStateIndex incoming = IncomingStateIndex.buildWithBestWeights(fst);
+    double[] d = new double[stateCount];
+    Arrays.fill(d, semiring.zero());
+    IntArrayDeque work = new IntArrayDeque();
+    BitSet queued = new BitSet(stateCount);
+    for (int i = 0; i < stateCount; i++) {
+      double finalWeight = fst.getFinalWeight(i);
+      if (semiring.isNotZero(finalWeight)) {
+        checkNotImproving(semiring, finalWeight);
+        d[i] = finalWeight;
+        work.addLast(i);
+        queued.set(i);
+      }
+      for (int j = 0; j < incoming.getIncomingCount(i); j++) {
+        checkNotImproving(semiring, incoming.getIncomingWeight(i, j));
+      }
+    }
+    while (!work.isEmpty()) {
+      int state = work.removeFirst();
+      queued.clear(state);
+      for (int i = 0; i < incoming.getIncomingCount(state); i++) {
+        int source = incoming.getIncomingState(state, i);
+        double candidate = semiring.times(incoming.getIncomingWeight(state, i), d[state]);
+        if (semiring.naturalLess(candidate, d[source])) {
+          d[source] = candidate;
+          if (!queued.get(source)) {
+            work.addLast(source);
+            queued.set(source);
+          }
+        }
+      }
+    }
+    return d;
+  }
+
+  private static void checkNotImproving(Semiring semiring, double weight) {
+    if (semiring.naturalLess(weight, semiring.one())) {
+      throw new IllegalArgumentException("Determinize with a weight threshold needs weights that don't improve along " +
+                                         "a path but found " + weight);
+    }
+  }
+}
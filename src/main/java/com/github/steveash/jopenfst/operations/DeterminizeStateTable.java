@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
+import com.carrotsearch.hppc.hash.MurmurHash3;
+import com.github.steveash.jopenfst.semiring.GallicSemiring.GallicWeight;
+import com.github.steveash.jopenfst.semiring.UnionSemiring.UnionWeight;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Subset table for determinization: assigns dense ids (in discovery order) to the subsets of (input state, residual)
+ * pairs that make up the states of the determinized result.
+ * Residuals are interned once into dense residual ids, so a subset is just a sorted array of (stateId, residualId)
+ * int pairs; the pairs of all of the subsets are kept in one flat int array with a precomputed hash per subset, and
+ * subsets are found with an open addressing table over the subset ids. So finding a subset hashes each residual once
+ * (to intern it) and then only compares ints, instead of hashing and comparing the nested weight collections.
+ * NOTE: this is not thread safe
+ *
+ * @author Steve Ash
+ */
+class DeterminizeStateTable {
+
+  private final ObjectIntOpenHashMap<UnionWeight<GallicWeight>> residualIds = new ObjectIntOpenHashMap<>();
+  private final ArrayList<UnionWeight<GallicWeight>> residuals = Lists.newArrayList();
+
+  private int size = 0;
+  // the pairs of subset i are pairs[starts[i]] until pairs[starts[i + 1]]
+  private int[] starts = new int[17];
+  private int[] hashes = new int[16];
+  private int[] pairs = new int[64];
+  private int pairCount = 0;
+  // open addressing table of subset id + 1 (zero being empty), the length is always a power of two
+  private int[] slots = new int[32];
+
+  /**
+   * Returns the id of the given residual, adding it (with the next id) if it hasn't been seen yet; residuals are
+   * compared with their equals (i.e. exactly) so callers that want fuzzy matching should canonicalize the residual
+   * before interning it
+   */
+  int internResidual(UnionWeight<GallicWeight> residual) {
+    if (residualIds.containsKey(residual)) {
+      return residualIds.lget();
+    }
+    int id = residuals.size();
+    residuals.add(residual);
+    residualIds.put(residual, id);
+    return id;
+  }
+
+  /**
+   * Returns the id of the given residual (like `internResidual`) or -1 if it hasn't been interned; this doesn't modify
+   * anything
+   */
+  int findResidual(UnionWeight<GallicWeight> residual) {
+    if (residualIds.containsKey(residual)) {
+      return residualIds.lget();
+    }
+    return -1;
+  }
+
+  UnionWeight<GallicWeight> residualForId(int residualId) {
+    return residuals.get(residualId);
+  }
+
+  /**
+   * Returns the id of the subset given by the first `length` ints of `subset`, which are (stateId, residualId) pairs
+   * sorted by stateId (with no duplicate stateIds); adds it (with the next id) if it hasn't been seen yet. The given
+   * array is copied so the caller can re-use it
+   */
+  int findOrAdd(int[] subset, int length) {
+    assert length % 2 == 0;
+    int hash = hash(subset, length);
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      int candidate = slots[slot] - 1;
+      if (hashes[candidate] == hash && subsetEquals(candidate, subset, length)) {
+        return candidate;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int id = size;
+    if (id == hashes.length) {
+      int newSize = id * 2;
+      hashes = Arrays.copyOf(hashes, newSize);
+      starts = Arrays.copyOf(starts, newSize + 1);
+    }
+    if (pairCount + length > pairs.length) {
+      pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, pairCount + length));
+    }
+    System.arraycopy(subset, 0, pairs, pairCount, length);
+    pairCount += length;
+    starts[id + 1] = pairCount;
+    hashes[id] = hash;
+    slots[slot] = id + 1;
+    size += 1;
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return id;
+  }
+
+  /**
+   * Returns the id of the given subset (like `findOrAdd`) or -1 if it hasn't been added; this doesn't modify anything
+   */
+  int find(int[] subset, int length) {
+    int hash = hash(subset, length);
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      int candidate = slots[slot] - 1;
+      if (hashes[candidate] == hash && subsetEquals(candidate, subset, length)) {
+        return candidate;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of (stateId, residualId) pairs in the given subset
+   */
+  int elementCount(int id) {
+    return (starts[id + 1] - starts[id]) / 2;
+  }
+
+  int stateId(int id, int index) {
+    return pairs[starts[id] + (index * 2)];
+  }
+
+  int residualId(int id, int index) {
+    return pairs[starts[id] + (index * 2) + 1];
+  }
+
+  UnionWeight<GallicWeight> residual(int id, int index) {
+    return residuals.get(residualId(id, index));
+  }
+
+  int size() {
+    return size;
+  }
+
+  int residualCount() {
+    return residuals.size();
+  }
+
+  private boolean subsetEquals(int id, int[] subset, int length) {
+    int start = starts[id];
+    if (starts[id + 1] - start != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (pairs[start + i] != subset[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash(int newLength) {
+    int[] newSlots = new int[newLength];
+    int mask = newLength - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = hashes[id] & mask;
+      while (newSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      newSlots[slot] = id + 1;
+    }
+    slots = newSlots;
+  }
+
+  private static int hash(int[] subset, int length) {
+    int hash = length;
+    for (int i = 0; i < length; i++) {
+      hash = (31 * hash) + subset[i];
+    }
+    return MurmurHash3.hash(hash);
+  }
+}
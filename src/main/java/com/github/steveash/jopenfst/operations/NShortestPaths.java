@@ -16,21 +16,20 @@
 
 package com.github.steveash.jopenfst.operations;
 
-import com.carrotsearch.hppc.IntObjectOpenHashMap;
+import com.carrotsearch.hppc.IntArrayDeque;
+import com.carrotsearch.hppc.IntIntOpenHashMap;
 import com.carrotsearch.hppc.IntOpenHashSet;
-import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.ArcCursor;
 import com.github.steveash.jopenfst.Fst;
 import com.github.steveash.jopenfst.IndexWeight;
 import com.github.steveash.jopenfst.MutableFst;
 import com.github.steveash.jopenfst.MutableState;
-import com.github.steveash.jopenfst.State;
 import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.MinMaxPriorityQueue;
 import com.google.common.collect.Ordering;
 
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * N-shortest paths operation.
@@ -38,10 +37,17 @@ import java.util.LinkedList;
  * See: M. Mohri, M. Riley, "An Efficient Algorithm for the n-best-strings problem", Proceedings of the International
  * Conference on Spoken Language Processing 2002 (ICSLP ’02).
  *
+ * For delayed fsts (like {@link ComposeFst}) `applyLazy` skips the shortest distance heuristic (which would force the
+ * expansion of the whole fst) and instead does a plain best first search that only expands the states it visits; that
+ * is only correct for some semirings and weights (see `applyLazy`) so it is never chosen automatically.
+ *
  * @author John Salatas jsalatas@users.sourceforge.net
  */
 public class NShortestPaths {
 
+  // index of the virtual single final state in the lazy search
+  private static final int SUPER_FINAL = -1;
+
   /**
    * Calculates the shortest distances from each state to the final.
    *
@@ -65,36 +71,33 @@ public class NShortestPaths {
       r[i] = semiring.zero();
     }
 
-    IntObjectOpenHashMap<State> stateMap = new IntObjectOpenHashMap<>();
-    Deque<Integer> queue = new LinkedList<>();
+    IntArrayDeque queue = new IntArrayDeque();
     IntOpenHashSet enqueuedStateIds = new IntOpenHashSet();
 
-    queue.addLast(reversed.getStartState().getId());
-    stateMap.put(reversed.getStartState().getId(), reversed.getStartState());
+    int startId = reversed.getStartState().getId();
+    queue.addLast(startId);
 
-    d[reversed.getStartState().getId()] = semiring.one();
-    r[reversed.getStartState().getId()] = semiring.one();
+    d[startId] = semiring.one();
+    r[startId] = semiring.one();
 
+    ArcCursor cursor = reversed.newArcCursor();
     while (!queue.isEmpty()) {
       int thisStateId = queue.removeFirst();
       enqueuedStateIds.remove(thisStateId);
-      State thisState = stateMap.get(thisStateId);
-      double rnew = r[thisState.getId()];
-      r[thisState.getId()] = semiring.zero();
-
-      for (int i = 0; i < thisState.getArcCount(); i++) {
-        Arc arc = thisState.getArc(i);
-        State nextState = arc.getNextState();
-        double dnext = d[arc.getNextState().getId()];
-        double dnextnew = semiring.plus(dnext, semiring.times(rnew, arc.getWeight()));
+      double rnew = r[thisStateId];
+      r[thisStateId] = semiring.zero();
+
+      reversed.arcs(thisStateId, cursor);
+      while (cursor.next()) {
+        int nextStateId = cursor.nextStateId();
+        double dnext = d[nextStateId];
+        double dnextnew = semiring.plus(dnext, semiring.times(rnew, cursor.weight()));
         if (dnext != dnextnew) {
-          d[arc.getNextState().getId()] = dnextnew;
-          r[arc.getNextState().getId()] = semiring.plus(r[arc.getNextState().getId()], semiring.times(rnew, arc.getWeight()));
-          int nextStateId = nextState.getId();
+          d[nextStateId] = dnextnew;
+          r[nextStateId] = semiring.plus(r[nextStateId], semiring.times(rnew, cursor.weight()));
           if (!enqueuedStateIds.contains(nextStateId)) {
             queue.addLast(nextStateId);
             enqueuedStateIds.add(nextStateId);
-            stateMap.put(nextStateId, nextState);
           }
         }
       }
@@ -142,17 +145,17 @@ public class NShortestPaths {
     // source -> res id
     HashMap<IndexWeight, Integer> stateMap = new HashMap<>(copy.getStateCount());
 
-    State start = copy.getStartState();
-    IndexWeight first = new IndexWeight(start.getId(), semiring.one());
+    IndexWeight first = new IndexWeight(copy.getStartState().getId(), semiring.one());
     qq.add(first);
     previous.put(first, null);
 
+    ArcCursor cursor = copy.newArcCursor();
     while (!qq.isEmpty()) {
       IndexWeight pair = qq.removeFirst();
-      State prevOld = copy.getState(pair.getIndex());
+      int stateIndex = pair.getIndex();
       double pairWeight = pair.getWeight();
 
-      MutableState resNext = new MutableState(prevOld.getFinalWeight());
+      MutableState resNext = new MutableState(copy.getFinalWeight(stateIndex));
       res.addState(resNext);
       stateMap.put(pair, resNext.getId());
       IndexWeight prevEntry = previous.get(pair);
@@ -162,29 +165,129 @@ public class NShortestPaths {
       } else {
         // add the incoming arc from previous to current
         MutableState previousStateNew = res.getState(stateMap.get(prevEntry));
-        State previousOldState = copy.getState(prevEntry.getIndex());
-        int numArcs = previousOldState.getArcCount();
-        for (int j = 0; j < numArcs; j++) {
-          Arc a = previousOldState.getArc(j);
-          if (a.getNextState().getId() == prevOld.getId()) {
-            res.addArc(previousStateNew, a.getIlabel(), a.getOlabel(), resNext, a.getWeight());
+        copy.arcs(prevEntry.getIndex(), cursor);
+        while (cursor.next()) {
+          if (cursor.nextStateId() == stateIndex) {
+            res.addArc(previousStateNew, cursor.ilabel(), cursor.olabel(), resNext, cursor.weight());
           }
         }
       }
 
-      int stateIndex = prevOld.getId();
       r[stateIndex]++;
 
-      if ((r[stateIndex] == topk) && (res.getSemiring().isNotZero(prevOld.getFinalWeight()))) {
+      if ((r[stateIndex] == topk) && (res.getSemiring().isNotZero(copy.getFinalWeight(stateIndex)))) {
         break;
       }
 
       if (r[stateIndex] <= topk) {
-        int numArcs = prevOld.getArcCount();
-        for (int j = 0; j < numArcs; j++) {
-          Arc a = prevOld.getArc(j);
-          double cnew = semiring.times(pairWeight, a.getWeight());
-          IndexWeight next = new IndexWeight(a.getNextState().getId(), cnew);
+        copy.arcs(stateIndex, cursor);
+        while (cursor.next()) {
+          double cnew = semiring.times(pairWeight, cursor.weight());
+          IndexWeight next = new IndexWeight(cursor.nextStateId(), cnew);
+          previous.put(next, pair);
+          qq.add(next);
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Calculates the n-best shortest paths with a plain best first search (without the shortest distance heuristic of
+   * `apply`) so that only the states that the search visits are looked at; for a delayed fst (like {@link ComposeFst}
+   * or {@link DeterminizeFst}) this means only those states are ever expanded.
+   * <p>
+   * This is only correct if the semiring has the path property (e.g. tropical, not log) and no weight is better than
+   * one (in the natural order) so weights never improve along a path (e.g. no negative tropical weights). It throws an
+   * IllegalArgumentException if the semiring isn't idempotent or if it visits an arc or final weight that is better
+   * than one, but it can't check the weights that it never visits, so it can silently return the wrong paths for such
+   * inputs. Use `apply` otherwise.
+   * <p>
+   * The result is the same shape as `apply` (which runs on a copy of the fst that was extended to have a single final
+   * state): this treats the final weights as epsilon arcs to a virtual super final state. The result can have dead
+   * ends from the search (use {@link Connect} to trim them).
+   *
+   * @param fst  the fst to calculate the nbest shortest paths
+   * @param topk number of best paths to return
+   * @return an fst containing the n-best shortest paths
+   */
+  public static MutableFst applyLazy(Fst fst, int topk) {
+    fst.throwIfInvalid();
+    final Semiring semiring = fst.getSemiring();
+    Preconditions.checkArgument(semiring.plus(semiring.one(), semiring.one()) == semiring.one(),
+        "applyLazy needs a semiring with the path property; use apply", semiring);
+    MutableFst res = MutableFst.emptyWithCopyOfSymbols(fst);
+    int epsILabel = fst.getInputSymbols().get(Fst.EPS);
+    int epsOLabel = fst.getOutputSymbols().get(Fst.EPS);
+
+    MinMaxPriorityQueue<IndexWeight> qq = MinMaxPriorityQueue.orderedBy(new Ordering<IndexWeight>() {
+      @Override
+      public int compare(IndexWeight left, IndexWeight right) {
+        if (semiring.naturalLess(left.getWeight(), right.getWeight())) {
+          return -1;
+        }
+        if (semiring.naturalLess(right.getWeight(), left.getWeight())) {
+          return +1;
+        }
+        return 0;
+      }
+    }).create();
+    HashMap<IndexWeight, IndexWeight> previous = new HashMap<>();
+    // source -> res id
+    HashMap<IndexWeight, Integer> stateMap = new HashMap<>();
+    IntIntOpenHashMap r = new IntIntOpenHashMap();
+
+    IndexWeight first = new IndexWeight(fst.getStartState().getId(), semiring.one());
+    qq.add(first);
+    previous.put(first, null);
+
+    ArcCursor cursor = fst.newArcCursor();
+    while (!qq.isEmpty()) {
+      IndexWeight pair = qq.removeFirst();
+      int stateIndex = pair.getIndex();
+      double pairWeight = pair.getWeight();
+      boolean isSuperFinal = (stateIndex == SUPER_FINAL);
+
+      MutableState resNext = new MutableState(isSuperFinal ? semiring.one() : semiring.zero());
+      res.addState(resNext);
+      stateMap.put(pair, resNext.getId());
+      IndexWeight prevEntry = previous.get(pair);
+      if (prevEntry == null) {
+        // this is the start state
+        res.setStart(resNext);
+      } else {
+        // add the incoming arc from previous to current
+        MutableState previousStateNew = res.getState(stateMap.get(prevEntry));
+        if (isSuperFinal) {
+          res.addArc(previousStateNew, epsILabel, epsOLabel, resNext, fst.getFinalWeight(prevEntry.getIndex()));
+        } else {
+          fst.arcs(prevEntry.getIndex(), cursor);
+          while (cursor.next()) {
+            if (cursor.nextStateId() == stateIndex) {
+              res.addArc(previousStateNew, cursor.ilabel(), cursor.olabel(), resNext, cursor.weight());
+            }
+          }
+        }
+      }
+
+      int count = r.putOrAdd(stateIndex, 1, 1);
+      if (count == topk && isSuperFinal) {
+        break;
+      }
+
+      if (count <= topk && !isSuperFinal) {
+        fst.arcs(stateIndex, cursor);
+        while (cursor.next()) {
+          checkNotImproving(semiring, cursor.weight());
+          double cnew = semiring.times(pairWeight, cursor.weight());
+          IndexWeight next = new IndexWeight(cursor.nextStateId(), cnew);
+          previous.put(next, pair);
+          qq.add(next);
+        }
+        double finalWeight = fst.getFinalWeight(stateIndex);
+        if (semiring.isNotZero(finalWeight)) {
+          checkNotImproving(semiring, finalWeight);
+          IndexWeight next = new IndexWeight(SUPER_FINAL, semiring.times(pairWeight, finalWeight));
           previous.put(next, pair);
           qq.add(next);
         }
@@ -192,4 +295,12 @@ public class NShortestPaths {
     }
     return res;
   }
+
+  // the best first search can stop at a path that a later (better than one) weight would beat
+  private static void checkNotImproving(Semiring semiring, double weight) {
+    if (semiring.naturalLess(weight, semiring.one())) {
+      throw new IllegalArgumentException("applyLazy needs weights that don't improve along a path but found " + weight
+                                         + "; use apply");
+    }
+  }
 }
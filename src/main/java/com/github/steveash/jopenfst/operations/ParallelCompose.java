@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Eager composition that expands the product one breadth first level at a time, with the states of each level split
+ * into chunks that are expanded in parallel on a fork join pool. The expensive part (walking the arcs of both fsts and
+ * matching them) happens in parallel, with targets that are already in the state table resolved by the workers
+ * (the table is read only while they run); then the new targets are numbered on the calling thread by walking the
+ * chunks in state order. Since the sequential compose also expands states in id order, this numbers the states in
+ * exactly the same way, so the result is identical to the sequential result.
+ * <p>
+ * The inputs of the compose are only read, so they must not be modified while this runs (and they can't be delayed
+ * fsts, which aren't thread safe)
+ *
+ * @author Steve Ash
+ */
+class ParallelCompose {
+
+  /**
+   * Chunks of a level will have at least this many states (so smaller levels are just expanded on the calling thread)
+   */
+  static final int MIN_CHUNK_STATES = 64;
+
+  // how many chunks to make per worker, to even out the load since states differ a lot in their arc counts
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  /**
+   * Expands the whole compose into a new mutable fst, with the same state ids as `compose.toMutableFst()`
+   */
+  static MutableFst expand(ComposeFst compose, ForkJoinPool pool) {
+    Preconditions.checkArgument(!compose.hasDelayedInput(), "cant compose delayed fsts in parallel");
+    ComposeStateTable states = compose.getStateTable();
+    MutableFst res = new MutableFst(compose.getSemiring(),
+        FstUtils.symbolTableEffectiveCopy(compose.getInputSymbols()),
+        FstUtils.symbolTableEffectiveCopy(compose.getOutputSymbols()));
+    int levelStart = 0;
+    while (levelStart < states.size()) {
+      int levelEnd = states.size();
+      int chunkSize = Math.max(MIN_CHUNK_STATES,
+          (levelEnd - levelStart + pool.getParallelism() * CHUNKS_PER_THREAD - 1) /
+          (pool.getParallelism() * CHUNKS_PER_THREAD));
+      final List<Chunk> chunks = Lists.newArrayList();
+      for (int start = levelStart; start < levelEnd; start += chunkSize) {
+        chunks.add(new Chunk(compose, start, Math.min(start + chunkSize, levelEnd)));
+      }
+      if (chunks.size() == 1) {
+        chunks.get(0).compute();
+      } else {
+        pool.invoke(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            ForkJoinTask.invokeAll(chunks);
+          }
+        });
+      }
+      for (Chunk chunk : chunks) {
+        chunk.addTo(res, states);
+      }
+      levelStart = levelEnd;
+    }
+    res.setStart(res.getState(0));
+    return res;
+  }
+
+  private static MutableState getOrNewState(MutableFst res, ComposeFst compose, int id) {
+    while (res.getStateCount() <= id) {
+      res.newState(compose.getFinalWeight(res.getStateCount()));
+    }
+    return res.getState(id);
+  }
+
+  /**
+   * The expanded arcs of a contiguous range of states; targets are either their state id (if they were already known)
+   * or -1 and their (q1, q2, f) tuple
+   */
+  private static class Chunk extends RecursiveAction implements ComposeFst.TupleSink {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ComposeFst compose;
+    private final int start;
+    private final int end;
+    // arcs of state start + i are [arcStarts[i], arcStarts[i + 1])
+    private final int[] arcStarts;
+    private int size = 0;
+    private int[] ilabels = new int[64];
+    private int[] olabels = new int[64];
+    private double[] weights = new double[64];
+    private int[] targets = new int[64];
+    private int[] q1s = new int[64];
+    private int[] q2s = new int[64];
+    private int[] filters = new int[64];
+
+    private Chunk(ComposeFst compose, int start, int end) {
+      this.compose = compose;
+      this.start = start;
+      this.end = end;
+      this.arcStarts = new int[end - start + 1];
+    }
+
+    @Override
+    protected void compute() {
+      ComposeStateTable states = compose.getStateTable();
+      ComposeFst.Expander expander = compose.newExpander();
+      for (int i = start; i < end; i++) {
+        arcStarts[i - start] = size;
+        expander.expand(states.q1(i), states.q2(i), states.filter(i), this);
+      }
+      arcStarts[end - start] = size;
+    }
+
+    @Override
+    public void add(int ilabel, int olabel, int q1, int q2, int filter, double weight) {
+      if (size == ilabels.length) {
+        int newSize = size * 2;
+        ilabels = Arrays.copyOf(ilabels, newSize);
+        olabels = Arrays.copyOf(olabels, newSize);
+        weights = Arrays.copyOf(weights, newSize);
+        targets = Arrays.copyOf(targets, newSize);
+        q1s = Arrays.copyOf(q1s, newSize);
+        q2s = Arrays.copyOf(q2s, newSize);
+        filters = Arrays.copyOf(filters, newSize);
+      }
+      ilabels[size] = ilabel;
+      olabels[size] = olabel;
+      weights[size] = weight;
+      targets[size] = compose.getStateTable().find(q1, q2, filter);
+      q1s[size] = q1;
+      q2s[size] = q2;
+      filters[size] = filter;
+      size += 1;
+    }
+
+    // numbers any new targets (in the same order the sequential compose would) and adds the arcs to the result
+    void addTo(MutableFst res, ComposeStateTable states) {
+      for (int i = start; i < end; i++) {
+        MutableState state = getOrNewState(res, compose, i);
+        for (int j = arcStarts[i - start]; j < arcStarts[i - start + 1]; j++) {
+          int target = targets[j];
+          if (target < 0) {
+            target = states.findOrAdd(q1s[j], q2s[j], filters[j]);
+          }
+          res.addArc(state, ilabels[j], olabels[j], getOrNewState(res, compose, target), weights[j]);
+        }
+      }
+    }
+  }
+}
@@ -16,53 +16,61 @@
 
 package com.github.steveash.jopenfst.operations;
 
+import com.github.steveash.jopenfst.ArcMatcher;
+import com.github.steveash.jopenfst.CompactFst;
 import com.github.steveash.jopenfst.FrozenSymbolTable;
-import com.github.steveash.jopenfst.ImmutableFst;
+import com.github.steveash.jopenfst.LabelReachability;
 import com.github.steveash.jopenfst.MutableFst;
 import com.github.steveash.jopenfst.semiring.Semiring;
 
+import javax.annotation.Nullable;
+
 /**
- * If you have a large FST that you are frequently using in compose operations, you can precompute it to apply the
- * necessary mutating transformations that are used (for epsilon handling for example) to avoid expensive runtime
- * copies
+ * If you have a large FST that you are frequently using in compose operations, you can precompute it once to
+ * avoid expensive runtime copies. The precomputed inner FST is held (sorted by input label) in its {@link CompactFst}
+ * form to keep large models small on the heap, along with an input label {@link ArcMatcher} so that compose can jump
+ * straight to the matching arcs of high fan-out states (and optionally its {@link LabelReachability} for lookahead)
  * @author Steve Ash
  */
 public class PrecomputedComposeFst {
 
   private final Semiring semiring;
-  private final String eps1;
-  private final String eps2;
-  private final ImmutableFst precomputed;
+  private final CompactFst precomputed;
   private final FrozenSymbolTable inputSyms;
-  private final ImmutableFst filterFst;
+  private final ArcMatcher matcher;
+  @Nullable
+  private final LabelReachability lookahead;
+  private final ComposeFst.InnerSide innerSide;
 
-  PrecomputedComposeFst(String eps1, String eps2, ImmutableFst precomputed, Semiring semiring, ImmutableFst filterFst) {
-    this.eps1 = eps1;
-    this.eps2 = eps2;
+  PrecomputedComposeFst(CompactFst precomputed, Semiring semiring, @Nullable LabelReachability lookahead) {
     this.precomputed = precomputed;
     this.semiring = semiring;
     this.inputSyms = new FrozenSymbolTable(precomputed.getInputSymbols());
-    this.filterFst = filterFst;
+    this.matcher = ArcMatcher.forInput(precomputed);
+    this.lookahead = lookahead;
+    this.innerSide = new ComposeFst.InnerSide(precomputed, inputSyms);
   }
 
-  ImmutableFst getFst() {
+  CompactFst getFst() {
     return precomputed;
   }
 
-  String getEps1() {
-    return eps1;
+  ArcMatcher getMatcher() {
+    return matcher;
   }
 
-  String getEps2() {
-    return eps2;
+  @Nullable
+  LabelReachability getLookahead() {
+    return lookahead;
   }
 
-  Semiring getSemiring() {
-    return semiring;
+  // the compose setup that only depends on this inner fst, which is computed once here for all of the composes
+  ComposeFst.InnerSide getInnerSide() {
+    return innerSide;
   }
 
-  ImmutableFst getFilterFst() {
-    return filterFst;
+  Semiring getSemiring() {
+    return semiring;
   }
 
   /**
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntDoubleOpenHashMap;
+import com.github.steveash.jopenfst.IndexWeight;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MinMaxPriorityQueue;
+import com.google.common.collect.Ordering;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Eager composition that bounds the size of the result: the product is expanded best first (in the natural order of
+ * the semiring, by the distance from the start), and
+ * <ul>
+ *   <li>a product state (q1, q2) is pruned if its distance is worse than `beam` times the best distance to any
+ *   product state with the same outer state q1 (e.g. for a linear outer, the best partial path that has read the same
+ *   prefix of the input); and the search stops once the next state is worse than `beam` times the best complete
+ *   path found so far,</li>
+ *   <li>no new states are added once there are `maxStates`, and the search stops once there are `maxArcs` arcs</li>
+ * </ul>
+ * Since the search is best first, hitting a limit keeps the states with the best distances from the start (which
+ * isn't necessarily the best complete path); if no final state was reached before then, the (trimmed) result is just
+ * empty. The distances are only exact if the semiring has the path property and the weights don't get better along a
+ * path (e.g. non negative tropical weights); otherwise the pruning is just a heuristic
+ *
+ * @author Steve Ash
+ */
+class PrunedCompose {
+
+  /**
+   * Expands the compose into a new (untrimmed) mutable fst, within the given limits
+   * @param compose the compose to expand (which must not have been expanded yet)
+   * @param beam the beam weight (semiring.zero() for no beam)
+   * @param maxStates the maximum number of states in the result
+   * @param maxArcs the maximum number of arcs in the result
+   */
+  static MutableFst expand(ComposeFst compose, double beam, int maxStates, int maxArcs) {
+    Preconditions.checkArgument(maxStates > 0, "maxStates must be positive");
+    Preconditions.checkArgument(maxArcs >= 0, "maxArcs cant be negative");
+    final Semiring semiring = compose.getSemiring();
+    ComposeStateTable states = compose.getStateTable();
+    Preconditions.checkState(states.size() == 1, "the compose has already been expanded");
+    MutableFst res = new MutableFst(semiring, FstUtils.symbolTableEffectiveCopy(compose.getInputSymbols()),
+        FstUtils.symbolTableEffectiveCopy(compose.getOutputSymbols()));
+    res.setStart(res.newState(compose.getFinalWeight(0)));
+
+    Arcs arcs = new Arcs();
+    ComposeFst.Expander expander = compose.newExpander();
+    DoubleArrayList distance = new DoubleArrayList();
+    distance.add(semiring.one());
+    // best distance to any product state by its outer state
+    IntDoubleOpenHashMap bestByOuter = new IntDoubleOpenHashMap();
+    bestByOuter.put(states.q1(0), semiring.one());
+    double bestFinal = semiring.zero();
+    BitSet expanded = new BitSet();
+    int arcCount = 0;
+
+    MinMaxPriorityQueue<IndexWeight> queue = MinMaxPriorityQueue.orderedBy(new Ordering<IndexWeight>() {
+      @Override
+      public int compare(IndexWeight left, IndexWeight right) {
+        if (semiring.naturalLess(left.getWeight(), right.getWeight())) {
+          return -1;
+        }
+        if (semiring.naturalLess(right.getWeight(), left.getWeight())) {
+          return +1;
+        }
+        return 0;
+      }
+    }).create();
+    queue.add(new IndexWeight(0, semiring.one()));
+
+    search:
+    while (!queue.isEmpty()) {
+      IndexWeight entry = queue.removeFirst();
+      int id = entry.getIndex();
+      double d = entry.getWeight();
+      // states are queued again when a better path to them is found, so skip the stale entries
+      if (expanded.get(id) || d != distance.get(id)) {
+        continue;
+      }
+      if (semiring.naturalLess(semiring.times(bestFinal, beam), d)) {
+        // everything left in the queue is worse than this
+        break;
+      }
+      expanded.set(id);
+      MutableState state = res.getState(id);
+      double pathWeight = semiring.times(d, state.getFinalWeight());
+      if (semiring.naturalLess(pathWeight, bestFinal)) {
+        bestFinal = pathWeight;
+      }
+
+      arcs.clear();
+      expander.expand(states.q1(id), states.q2(id), states.filter(id), arcs);
+      for (int i = 0; i < arcs.size; i++) {
+        if (arcCount >= maxArcs) {
+          break search;
+        }
+        double nextDistance = semiring.times(d, arcs.weights[i]);
+        int q1 = arcs.q1s[i];
+        double bestOuter = bestByOuter.getOrDefault(q1, semiring.zero());
+        if (semiring.naturalLess(semiring.times(bestOuter, beam), nextDistance)) {
+          continue;
+        }
+        int target = states.find(q1, arcs.q2s[i], arcs.filters[i]);
+        if (target < 0) {
+          if (states.size() >= maxStates) {
+            continue;
+          }
+          target = states.findOrAdd(q1, arcs.q2s[i], arcs.filters[i]);
+          res.newState(compose.getFinalWeight(target));
+          distance.add(semiring.zero());
+        }
+        if (semiring.naturalLess(nextDistance, bestOuter)) {
+          bestByOuter.put(q1, nextDistance);
+        }
+        if (!expanded.get(target) && semiring.naturalLess(nextDistance, distance.get(target))) {
+          distance.set(target, nextDistance);
+          queue.add(new IndexWeight(target, nextDistance));
+        }
+        res.addArc(state, arcs.ilabels[i], arcs.olabels[i], res.getState(target), arcs.weights[i]);
+        arcCount += 1;
+      }
+    }
+    return res;
+  }
+
+  // the expanded arcs of one state
+  private static class Arcs implements ComposeFst.TupleSink {
+
+    private int size = 0;
+    private int[] ilabels = new int[16];
+    private int[] olabels = new int[16];
+    private double[] weights = new double[16];
+    private int[] q1s = new int[16];
+    private int[] q2s = new int[16];
+    private int[] filters = new int[16];
+
+    @Override
+    public void add(int ilabel, int olabel, int q1, int q2, int filter, double weight) {
+      if (size == ilabels.length) {
+        int newSize = size * 2;
+        ilabels = Arrays.copyOf(ilabels, newSize);
+        olabels = Arrays.copyOf(olabels, newSize);
+        weights = Arrays.copyOf(weights, newSize);
+        q1s = Arrays.copyOf(q1s, newSize);
+        q2s = Arrays.copyOf(q2s, newSize);
+        filters = Arrays.copyOf(filters, newSize);
+      }
+      ilabels[size] = ilabel;
+      olabels[size] = olabel;
+      weights[size] = weight;
+      q1s[size] = q1;
+      q2s[size] = q2;
+      filters[size] = filter;
+      size += 1;
+    }
+
+    void clear() {
+      size = 0;
+    }
+  }
+}
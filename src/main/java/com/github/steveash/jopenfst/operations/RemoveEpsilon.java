@@ -16,11 +16,10 @@
 
 package com.github.steveash.jopenfst.operations;
 
-import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.ArcCursor;
 import com.github.steveash.jopenfst.Fst;
 import com.github.steveash.jopenfst.MutableFst;
 import com.github.steveash.jopenfst.MutableState;
-import com.github.steveash.jopenfst.State;
 import com.github.steveash.jopenfst.semiring.Semiring;
 import com.google.common.base.Preconditions;
 
@@ -52,32 +51,34 @@ public class RemoveEpsilon {
     @SuppressWarnings("unchecked")
     HashMap<Integer,Double>[] closure = new HashMap[fst.getStateCount()];
     MutableState[] oldToNewStateMap = new MutableState[fst.getStateCount()];
-    State[] newToOldStateMap = new State[fst.getStateCount()];
+    int[] newToOldStateMap = new int[fst.getStateCount()];
     initResultStates(fst, result, oldToNewStateMap, newToOldStateMap);
-    addNonEpsilonArcs(fst, result, iEps, oEps, closure, oldToNewStateMap);
+    ArcCursor cursor = fst.newArcCursor();
+    addNonEpsilonArcs(fst, result, iEps, oEps, closure, oldToNewStateMap, cursor);
 
     // augment fst with arcs generated from epsilon moves.
     for (int i = 0; i < result.getStateCount(); i++) {
       MutableState state = result.getState(i);
-      State oldState = newToOldStateMap[state.getId()];
-      if (closure[oldState.getId()] == null) {
+      int oldStateId = newToOldStateMap[state.getId()];
+      if (closure[oldStateId] == null) {
         continue;
       }
-      for (Integer pathFinalStateIndex : closure[oldState.getId()].keySet()) {
-        State closureState = fst.getState(pathFinalStateIndex);
-        if (semiring.isNotZero(closureState.getFinalWeight())) {
-          Double prevWeight = getPathWeight(oldState, closureState, closure);
-          Preconditions.checkNotNull(prevWeight, "problem with prev weight on closure from %s", oldState);
-          state.setFinalWeight(semiring.plus(state.getFinalWeight(), semiring.times(prevWeight, closureState.getFinalWeight())));
+      for (Integer pathFinalStateIndex : closure[oldStateId].keySet()) {
+        int closureStateId = pathFinalStateIndex;
+        double closureFinalWeight = fst.getFinalWeight(closureStateId);
+        if (semiring.isNotZero(closureFinalWeight)) {
+          Double prevWeight = getPathWeight(oldStateId, closureStateId, closure);
+          Preconditions.checkNotNull(prevWeight, "problem with prev weight on closure from %s", oldStateId);
+          state.setFinalWeight(semiring.plus(state.getFinalWeight(), semiring.times(prevWeight, closureFinalWeight)));
         }
-        for (int j = 0; j < closureState.getArcCount(); j++) {
-          Arc arc = closureState.getArc(j);
-          if ((arc.getIlabel() != iEps) || (arc.getOlabel() != oEps)) {
-            Double pathWeight = getPathWeight(oldState, closureState, closure);
-            Preconditions.checkNotNull(pathWeight, "problem with prev weight on closure from %s", oldState);
-            double newWeight = semiring.times(arc.getWeight(), pathWeight);
-            MutableState nextState = oldToNewStateMap[arc.getNextState().getId()];
-            result.addArc(state, arc.getIlabel(), arc.getOlabel(), nextState, newWeight);
+        fst.arcs(closureStateId, cursor);
+        while (cursor.next()) {
+          if ((cursor.ilabel() != iEps) || (cursor.olabel() != oEps)) {
+            Double pathWeight = getPathWeight(oldStateId, closureStateId, closure);
+            Preconditions.checkNotNull(pathWeight, "problem with prev weight on closure from %s", oldStateId);
+            double newWeight = semiring.times(cursor.weight(), pathWeight);
+            MutableState nextState = oldToNewStateMap[cursor.nextStateId()];
+            result.addArc(state, cursor.ilabel(), cursor.olabel(), nextState, newWeight);
           }
         }
       }
@@ -89,35 +90,35 @@ public class RemoveEpsilon {
     return result;
   }
 
-  private static void addNonEpsilonArcs(Fst fst, MutableFst result, int iEps, int oEps, HashMap<Integer,Double>[] closure, MutableState[] oldToNewStateMap) {
+  private static void addNonEpsilonArcs(Fst fst, MutableFst result, int iEps, int oEps, HashMap<Integer,Double>[] closure,
+                                        MutableState[] oldToNewStateMap, ArcCursor cursor) {
     for (int i = 0; i < fst.getStateCount(); i++) {
-      State state = fst.getState(i);
       // Add non-epsilon arcs
-      MutableState newState = oldToNewStateMap[state.getId()];
-      for (int j = 0; j < state.getArcCount(); j++) {
-        Arc arc = state.getArc(j);
-        if ((arc.getIlabel() != iEps) || (arc.getOlabel() != oEps)) {
-          MutableState resNextState = oldToNewStateMap[arc.getNextState().getId()];
-          result.addArc(newState, arc.getIlabel(), arc.getOlabel(), resNextState, arc.getWeight());
+      MutableState newState = oldToNewStateMap[i];
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        if ((cursor.ilabel() != iEps) || (cursor.olabel() != oEps)) {
+          MutableState resNextState = oldToNewStateMap[cursor.nextStateId()];
+          result.addArc(newState, cursor.ilabel(), cursor.olabel(), resNextState, cursor.weight());
         }
       }
 
       // Compute epsilon closure
-      if (closure[state.getId()] == null) {
-        calculateClosure(fst, state, closure, fst.getSemiring(), iEps, oEps);
+      if (closure[i] == null) {
+        calculateClosure(fst, i, closure, fst.getSemiring(), iEps, oEps);
       }
     }
   }
 
-  private static void initResultStates(Fst fst, MutableFst res, MutableState[] oldToNewStateMap, State[] newToOldStateMap) {
+  private static void initResultStates(Fst fst, MutableFst res, MutableState[] oldToNewStateMap, int[] newToOldStateMap) {
+    int startId = fst.getStartState().getId();
     for (int i = 0; i < fst.getStateCount(); i++) {
-      State state = fst.getState(i);
       // Add non-epsilon arcs
       MutableState newState = res.newState();
-      newState.setFinalWeight(state.getFinalWeight());
-      oldToNewStateMap[state.getId()] = newState;
-      newToOldStateMap[newState.getId()] = state;
-      if (newState.getId() == fst.getStartState().getId()) {
+      newState.setFinalWeight(fst.getFinalWeight(i));
+      oldToNewStateMap[i] = newState;
+      newToOldStateMap[newState.getId()] = i;
+      if (newState.getId() == startId) {
         res.setStart(newState);
       }
     }
@@ -126,24 +127,25 @@ public class RemoveEpsilon {
   /**
    * Put a new state in the epsilon closure
    */
-  private static void put(State fromState, State toState, double weight, HashMap<Integer,Double>[] closure) {
-    HashMap<Integer,Double> maybe = closure[fromState.getId()];
+  private static void put(int fromStateId, int toStateId, double weight, HashMap<Integer,Double>[] closure) {
+    HashMap<Integer,Double> maybe = closure[fromStateId];
     if (maybe == null) {
       maybe = new HashMap<Integer,Double>();
-      closure[fromState.getId()] = maybe;
+      closure[fromStateId] = maybe;
     }
-    maybe.put(toState.getId(), weight);
+    maybe.put(toStateId, weight);
   }
 
   /**
    * Add a state in the epsilon closure
    */
-  private static void add(State fromState, State toState, double weight, HashMap<Integer,Double>[] closure, Semiring semiring) {
-    Double old = getPathWeight(fromState, toState, closure);
+  private static void add(int fromStateId, int toStateId, double weight, HashMap<Integer,Double>[] closure,
+                          Semiring semiring) {
+    Double old = getPathWeight(fromStateId, toStateId, closure);
     if (old == null) {
-      put(fromState, toState, weight, closure);
+      put(fromStateId, toStateId, weight, closure);
     } else {
-      put(fromState, toState, semiring.plus(weight, old), closure);
+      put(fromStateId, toStateId, semiring.plus(weight, old), closure);
     }
 
   }
@@ -151,28 +153,29 @@ public class RemoveEpsilon {
   /**
    * Calculate the epsilon closure
    */
-  private static void calculateClosure(Fst fst, State state, HashMap<Integer,Double>[] closure, Semiring semiring, int iEps, int oEps) {
+  private static void calculateClosure(Fst fst, int stateId, HashMap<Integer,Double>[] closure, Semiring semiring,
+                                       int iEps, int oEps) {
 
-    for (int j = 0; j < state.getArcCount(); j++) {
-      Arc arc = state.getArc(j);
-      if ((arc.getIlabel() != iEps) || (arc.getOlabel() != oEps)) {
+    // this recurses, so each level needs its own cursor
+    ArcCursor cursor = fst.arcs(stateId, fst.newArcCursor());
+    while (cursor.next()) {
+      if ((cursor.ilabel() != iEps) || (cursor.olabel() != oEps)) {
         continue;
       }
-      int nextStateId = arc.getNextState().getId();
+      int nextStateId = cursor.nextStateId();
       if (closure[nextStateId] == null) {
-        calculateClosure(fst, arc.getNextState(), closure, semiring, iEps, oEps);
+        calculateClosure(fst, nextStateId, closure, semiring, iEps, oEps);
       }
       HashMap<Integer,Double> closureEntry = closure[nextStateId];
       if (closureEntry != null) {
         for (Integer pathFinalStateIndex : closureEntry.keySet()) {
-          State pathFinalState = fst.getState(pathFinalStateIndex);
-          Double prevPathWeight = getPathWeight(arc.getNextState(), pathFinalState, closure);
-          Preconditions.checkNotNull(prevPathWeight, "prev arc %s never set in closure", arc);
-          double newPathWeight = semiring.times(prevPathWeight, arc.getWeight());
-          add(state, pathFinalState, newPathWeight, closure, semiring);
+          Double prevPathWeight = getPathWeight(nextStateId, pathFinalStateIndex, closure);
+          Preconditions.checkNotNull(prevPathWeight, "prev arc to %s never set in closure", nextStateId);
+          double newPathWeight = semiring.times(prevPathWeight, cursor.weight());
+          add(stateId, pathFinalStateIndex, newPathWeight, closure, semiring);
         }
       }
-      add(state, arc.getNextState(), arc.getWeight(), closure, semiring);
+      add(stateId, nextStateId, cursor.weight(), closure, semiring);
     }
   }
 
@@ -180,9 +183,9 @@ public class RemoveEpsilon {
    * Get an epsilon path's cost in epsilon closure
    */
   @Nullable
-  private static Double getPathWeight(State inState, State outState, HashMap<Integer,Double>[] closure) {
-    if (closure[inState.getId()] != null) {
-      return closure[inState.getId()].get(outState.getId());
+  private static Double getPathWeight(int inStateId, int outStateId, HashMap<Integer,Double>[] closure) {
+    if (closure[inStateId] != null) {
+      return closure[inStateId].get(outStateId);
     }
     return null;
   }
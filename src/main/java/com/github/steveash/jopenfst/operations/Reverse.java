@@ -16,7 +16,7 @@
 
 package com.github.steveash.jopenfst.operations;
 
-import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.ArcCursor;
 import com.github.steveash.jopenfst.Fst;
 import com.github.steveash.jopenfst.MutableFst;
 import com.github.steveash.jopenfst.MutableState;
@@ -48,14 +48,14 @@ public class Reverse {
     result.setOutputSymbolsAsCopy(fst.getOutputSymbols());
     MutableState[] stateMap = initStateMap(fst, semiring, result);
 
+    ArcCursor cursor = fst.newArcCursor();
     for (int i = 0; i < fst.getStateCount(); i++) {
-      State oldState = fst.getState(i);
-      MutableState newState = stateMap[oldState.getId()];
-      for (int j = 0; j < oldState.getArcCount(); j++) {
-        Arc oldArc = oldState.getArc(j);
-        MutableState newNextState = stateMap[oldArc.getNextState().getId()];
-        double newWeight = semiring.reverse(oldArc.getWeight());
-        result.addArc(newNextState, oldArc.getIlabel(), oldArc.getOlabel(), newState, newWeight);
+      MutableState newState = stateMap[i];
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        MutableState newNextState = stateMap[cursor.nextStateId()];
+        double newWeight = semiring.reverse(cursor.weight());
+        result.addArc(newNextState, cursor.ilabel(), cursor.olabel(), newState, newWeight);
       }
     }
     return result;
@@ -18,6 +18,7 @@ package com.github.steveash.jopenfst.utils;
 
 import com.carrotsearch.hppc.cursors.ObjectIntCursor;
 import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.ArcCursor;
 import com.github.steveash.jopenfst.FrozenSymbolTable;
 import com.github.steveash.jopenfst.Fst;
 import com.github.steveash.jopenfst.ImmutableSymbolTable;
@@ -254,6 +255,24 @@ public class FstUtils {
     return true;
   }
 
+  /**
+   * Returns true if every arc of the fst has the same input and output label
+   * @param fst
+   * @return
+   */
+  public static boolean isAcceptor(Fst fst) {
+    ArcCursor cursor = fst.newArcCursor();
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        if (cursor.ilabel() != cursor.olabel()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   /**
    * Returns an "effective" copy of the given symbol table which might be a unioned symbol
    * table that is just a mutable filter on top of a backing table which is treated as
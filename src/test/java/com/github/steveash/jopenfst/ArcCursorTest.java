@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.operations.ArcSort;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class ArcCursorTest {
+
+  private static MutableFst makeFst() {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState s0 = fst.newStartState();
+    MutableState s1 = fst.newState();
+    MutableState s2 = fst.newState();
+    s2.setFinalWeight(0.0);
+    fst.addArc(s1, "a", "A", s2, 5.0);
+    fst.addArc(s1, "b", "B", s2, 5.0);
+    fst.addArc(s1, "c", "C", s2, 5.0);
+    fst.addArc(s0, "c", "C", s1, 3.0);
+    fst.addArc(s0, "a", "A", s1, 1.0);
+    fst.addArc(s0, "b", "B", s2, 2.0);
+    fst.addArc(s0, "a", "X", s2, 4.0);
+    fst.addArc(s2, "b", "B", s2, 6.0);
+    ArcSort.sortByInput(fst);
+    return fst;
+  }
+
+  @Test
+  public void shouldIterateSameArcsAsStates() throws Exception {
+    MutableFst fst = makeFst();
+    assertCursorMatchesStates(fst);
+    assertCursorMatchesStates(new ImmutableFst(fst));
+    assertCursorMatchesStates(CompactFst.copyFrom(fst));
+  }
+
+  @Test
+  public void shouldSeekToFirstMatchingLabel() throws Exception {
+    MutableFst fst = makeFst();
+    assertSeek(fst);
+    assertSeek(new ImmutableFst(fst));
+    assertSeek(CompactFst.copyFrom(fst));
+  }
+
+  private static void assertCursorMatchesStates(Fst fst) {
+    ArcCursor cursor = fst.newArcCursor();
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      State state = fst.getState(i);
+      fst.arcs(i, cursor);
+      assertEquals(i, cursor.stateId());
+      assertEquals(state.getArcCount(), cursor.arcCount());
+      assertEquals(state.getFinalWeight(), cursor.finalWeight(), 0.0);
+      assertEquals(state.getFinalWeight(), fst.getFinalWeight(i), 0.0);
+      for (int j = 0; j < state.getArcCount(); j++) {
+        Arc arc = state.getArc(j);
+        assertTrue(cursor.next());
+        assertEquals(arc.getIlabel(), cursor.ilabel());
+        assertEquals(arc.getOlabel(), cursor.olabel());
+        assertEquals(arc.getWeight(), cursor.weight(), 0.0);
+        assertEquals(arc.getNextState().getId(), cursor.nextStateId());
+      }
+      assertFalse(cursor.next());
+    }
+  }
+
+  private static void assertSeek(Fst fst) {
+    int a = fst.getInputSymbols().get("a");
+    int b = fst.getInputSymbols().get("b");
+    int c = fst.getInputSymbols().get("c");
+    ArcCursor cursor = fst.arcs(0, fst.newArcCursor());
+
+    assertTrue(cursor.seek(a));
+    assertTrue(cursor.next());
+    assertEquals(a, cursor.ilabel());
+    assertTrue(cursor.next());
+    assertEquals(a, cursor.ilabel());
+    assertTrue(cursor.next());
+    assertEquals(b, cursor.ilabel());
+
+    assertTrue(cursor.seek(c));
+    assertTrue(cursor.next());
+    assertEquals(c, cursor.ilabel());
+    assertFalse(cursor.next());
+
+    fst.arcs(2, cursor);
+    assertFalse(cursor.seek(a));
+    assertTrue(cursor.next());
+    assertEquals(b, cursor.ilabel());
+    assertFalse(cursor.seek(c));
+    assertFalse(cursor.next());
+  }
+}
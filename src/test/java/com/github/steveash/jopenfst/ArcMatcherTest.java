@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author Steve Ash
+ */
+public class ArcMatcherTest {
+
+  private static final int SMALL = 0;
+  private static final int DENSE = 1;
+  private static final int SPARSE = 2;
+
+  // state 0 is small, state 1 has a dense label range and state 2 has a huge sparse label range; all unsorted
+  private static CompactFst makeFst() {
+    Random rand = new Random(0xBEEF);
+    CompactMutableFst fst = new CompactMutableFst(TropicalSemiring.INSTANCE);
+    fst.newStartState();
+    fst.newState();
+    fst.newState(0.0);
+    for (int i = 0; i < 10; i++) {
+      fst.addArc(SMALL, rand.nextInt(5), i, DENSE, i);
+    }
+    for (int i = 0; i < 500; i++) {
+      fst.addArc(DENSE, 10 + rand.nextInt(300), i, SPARSE, i);
+    }
+    for (int i = 0; i < 500; i++) {
+      fst.addArc(SPARSE, 1 + rand.nextInt(100) * 100_000, i, SMALL, i);
+    }
+    return fst.toCompactFst();
+  }
+
+  @Test
+  public void shouldMatchSameArcsAsLinearScan() throws Exception {
+    CompactFst fst = makeFst();
+    ArcMatcher matcher = ArcMatcher.forInput(fst);
+    ArcCursor matches = matcher.newArcCursor();
+    ArcCursor scan = fst.newArcCursor();
+    for (int s = 0; s < fst.getStateCount(); s++) {
+      IntArrayList labels = new IntArrayList();
+      fst.arcs(s, scan);
+      while (scan.next()) {
+        labels.add(scan.ilabel());
+        labels.add(scan.ilabel() + 1);
+      }
+      labels.add(-1);
+      labels.add(Integer.MAX_VALUE - 1);
+      for (int i = 0; i < labels.size(); i++) {
+        int label = labels.get(i);
+        // matches must be all of the arcs with the label in their original order
+        IntArrayList expected = new IntArrayList();
+        fst.arcs(s, scan);
+        while (scan.next()) {
+          if (scan.ilabel() == label) {
+            expected.add(scan.olabel());
+          }
+        }
+        matcher.getFst().arcs(s, matches);
+        assertEquals(!expected.isEmpty(), matches.seek(label));
+        IntArrayList actual = new IntArrayList();
+        while (matches.next()) {
+          assertEquals(label, matches.ilabel());
+          actual.add(matches.olabel());
+        }
+        assertEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void shouldIterateAllArcsInOriginalOrder() throws Exception {
+    CompactFst fst = makeFst();
+    ArcCursor matches = ArcMatcher.forOutput(fst).newArcCursor();
+    ArcCursor scan = fst.newArcCursor();
+    for (int s = 0; s < fst.getStateCount(); s++) {
+      fst.arcs(s, scan);
+      fst.arcs(s, matches);
+      assertEquals(scan.arcCount(), matches.arcCount());
+      while (scan.next()) {
+        matches.next();
+        assertEquals(scan.ilabel(), matches.ilabel());
+        assertEquals(scan.olabel(), matches.olabel());
+        assertEquals(scan.nextStateId(), matches.nextStateId());
+        assertEquals(scan.weight(), matches.weight(), 0.0);
+      }
+      assertFalse(matches.next());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.operations.Compose;
+import com.github.steveash.jopenfst.operations.Determinize;
+import com.github.steveash.jopenfst.operations.NShortestPaths;
+import com.github.steveash.jopenfst.operations.PrecomputedComposeFst;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class CompactFstTest {
+
+  @Test
+  public void shouldCopyMutableAndImmutable() throws Exception {
+    MutableFst fst = Convert.importFst("data/tests/algorithms/compose/A", TropicalSemiring.INSTANCE);
+    CompactFst compact = CompactFst.copyFrom(fst);
+    assertEquals(4, compact.getStateCount());
+    assertEquals(6, compact.getArcCount());
+    assertTrue(FstUtils.fstEquals(fst, compact, FstUtils.LOG_REPORTER));
+
+    CompactFst compact2 = CompactFst.copyFrom(new ImmutableFst(fst));
+    assertTrue(FstUtils.fstEquals(compact, compact2, FstUtils.LOG_REPORTER));
+    assertEquals(compact.hashCode(), compact2.hashCode());
+    assertTrue(FstUtils.fstEquals(fst, MutableFst.copyFrom(compact), FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void shouldNavigateArcs() throws Exception {
+    MutableFst fst = Convert.importFst("data/tests/algorithms/compose/A", TropicalSemiring.INSTANCE);
+    CompactFst compact = CompactFst.copyFrom(fst);
+    CompactFst.CompactState s1 = compact.getState(1);
+    assertEquals(3, s1.getArcCount());
+    CompactFst.CompactArc arc = s1.getArc(2);
+    assertEquals(3, arc.getNextStateId());
+    assertEquals(0.4, arc.getWeight(), 0.0001);
+    assertEquals(fst.getState(3), arc.getNextState());
+    assertEquals(0.7, compact.getState(3).getFinalWeight(), 0.0001);
+  }
+
+  @Test
+  public void shouldComposeWithCompactInner() throws Exception {
+    MutableFst fstA = Convert.importFst("data/tests/algorithms/compose2/A", TropicalSemiring.INSTANCE);
+    MutableFst fstB = Convert.importFst("data/tests/algorithms/compose2/B", TropicalSemiring.INSTANCE);
+    MutableFst composed = Convert.importFst("data/tests/algorithms/compose2/expected",
+        TropicalSemiring.INSTANCE);
+
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(CompactFst.copyFrom(fstB), TropicalSemiring.INSTANCE);
+    Fst fstComposed = Compose.composeWithPrecomputed(fstA, precomputed);
+    assertTrue(FstUtils.fstEquals(composed, fstComposed, 0.1, FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void shouldDeterminizeAndShortestPath() throws Exception {
+    MutableFst fst = Convert.importFst("data/tests/algorithms/shortestpath/A", TropicalSemiring.INSTANCE);
+    MutableFst nsp = Convert.importFst("data/tests/algorithms/shortestpath/nsp", TropicalSemiring.INSTANCE);
+
+    MutableFst detFst = Determinize.apply(CompactFst.copyFrom(fst));
+    assertTrue(FstUtils.fstEquals(Determinize.apply(fst), detFst, FstUtils.LOG_REPORTER));
+    Fst fstNsp = NShortestPaths.apply(CompactFst.copyFrom(detFst), 6);
+    assertTrue(FstUtils.fstEquals(nsp, fstNsp, FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void shouldFindEpsilons() throws Exception {
+    CompactFst compact = CompactFst.copyFrom(Convert.importFst("data/tests/algorithms/composeeps/A",
+        TropicalSemiring.INSTANCE));
+    assertFalse(compact.hasInputEpsilons());
+    assertTrue(compact.hasOutputEpsilons());
+    // the second calls read the cached answers
+    assertFalse(compact.hasInputEpsilons());
+    assertTrue(compact.hasOutputEpsilons());
+
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState start = fst.newStartState();
+    fst.addArc(start, "a", Fst.EPS, fst.newState(0.0), 1.0);
+    compact = CompactFst.copyFrom(fst);
+    assertFalse(compact.hasInputEpsilons());
+    assertTrue(compact.hasOutputEpsilons());
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.operations.Determinize;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class CompactMutableFstTest {
+
+  private static CompactMutableFst copyOf(Fst fst) {
+    CompactMutableFst copy = new CompactMutableFst(fst.getSemiring(),
+        new MutableSymbolTable(fst.getInputSymbols()), new MutableSymbolTable(fst.getOutputSymbols()));
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      copy.newState(fst.getFinalWeight(i));
+    }
+    copy.setStart(fst.getStartState().getId());
+    ArcCursor cursor = fst.newArcCursor();
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      fst.arcs(i, cursor);
+      while (cursor.next()) {
+        copy.addArc(i, cursor.ilabel(), cursor.olabel(), cursor.nextStateId(), cursor.weight());
+      }
+    }
+    return copy;
+  }
+
+  @Test
+  public void shouldBuildSameAsMutable() throws Exception {
+    MutableFst fst = Convert.importFst("data/tests/algorithms/determinize/A", TropicalSemiring.INSTANCE);
+    CompactMutableFst built = copyOf(fst);
+    assertEquals(fst.getStateCount(), built.getStateCount());
+    assertTrue(FstUtils.fstEquals(fst, built, FstUtils.LOG_REPORTER));
+    assertTrue(FstUtils.fstEquals(Determinize.apply(fst), Determinize.apply(built), FstUtils.LOG_REPORTER));
+
+    CompactFst compact = built.toCompactFst();
+    assertEquals(built.getArcCount(), compact.getArcCount());
+    assertTrue(FstUtils.fstEquals(fst, compact, FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void shouldBuildWithStateSymbols() throws Exception {
+    CompactMutableFst fst = new CompactMutableFst(TropicalSemiring.INSTANCE);
+    fst.useStateSymbols();
+    fst.newStartState("<start>");
+    fst.addArc("<start>", "a", "A", "one", 1.0);
+    fst.addArc("<start>", "b", "B", "one", 1.5);
+    fst.addArc("one", "b", "B", "two", 2.0);
+    fst.addArc("two", "c", "C", "one", 3.0);
+    fst.setFinalWeight(fst.getState("two").getId(), 0.5);
+
+    assertEquals(3, fst.getStateCount());
+    assertEquals(4, fst.getArcCount());
+    assertEquals(2, fst.getArcCount(0));
+    assertEquals(0.5, fst.getState("two").getFinalWeight(), 0.0001);
+    assertEquals(3.0, fst.getState("two").getArc(0).getWeight(), 0.0001);
+
+    CompactFst compact = fst.toCompactFst();
+    assertTrue(FstUtils.fstEquals(fst, compact, FstUtils.LOG_REPORTER));
+    assertEquals(2, compact.getState("two").getId());
+  }
+
+  @Test
+  public void shouldBuildIncomingStatesLazily() throws Exception {
+    CompactMutableFst fst = new CompactMutableFst(TropicalSemiring.INSTANCE);
+    int s0 = fst.newStartState();
+    int s1 = fst.newState();
+    int s2 = fst.newState(0.0);
+    fst.addArc(s0, "a", "A", s1, 1.0);
+    fst.addArc(s0, "b", "B", s1, 1.0);
+    fst.addArc(s1, "c", "C", s2, 1.0);
+    fst.addArc(s2, "c", "C", s1, 1.0);
+
+    IncomingStateIndex incoming = fst.getIncomingStates();
+    assertEquals(0, incoming.getIncomingCount(s0));
+    assertEquals(2, incoming.getIncomingCount(s1));
+    assertEquals(s0, incoming.getIncomingState(s1, 0));
+    assertEquals(s2, incoming.getIncomingState(s1, 1));
+    assertEquals(1, incoming.getIncomingCount(s2));
+
+    fst.addArc(s2, "a", "A", s0, 1.0);
+    incoming = fst.getIncomingStates();
+    assertEquals(1, incoming.getIncomingCount(s0));
+    assertEquals(s2, incoming.getIncomingState(s0, 0));
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Steve Ash
+ */
+public class IncomingStateIndexTest {
+
+  @Test
+  public void shouldKeepTheBestWeightOfParallelArcs() throws Exception {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState s0 = fst.newStartState();
+    MutableState s1 = fst.newState();
+    MutableState s2 = fst.newState(0.0);
+    fst.addArc(s0, "a", "a", s2, 3.0);
+    fst.addArc(s1, "b", "b", s2, 2.0);
+    fst.addArc(s0, "c", "c", s2, 1.0);
+    fst.addArc(s0, "d", "d", s2, 4.0);
+
+    IncomingStateIndex incoming = IncomingStateIndex.buildWithBestWeights(fst);
+    assertEquals(2, incoming.getIncomingCount(s2.getId()));
+    assertEquals(0, incoming.getIncomingState(s2.getId(), 0));
+    assertEquals(1.0, incoming.getIncomingWeight(s2.getId(), 0), 0.0);
+    assertEquals(1, incoming.getIncomingState(s2.getId(), 1));
+    assertEquals(2.0, incoming.getIncomingWeight(s2.getId(), 1), 0.0);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldOnlyHaveWeightsIfAsked() throws Exception {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState s0 = fst.newStartState();
+    fst.addArc(s0, "a", "a", fst.newState(0.0), 1.0);
+    IncomingStateIndex.build(fst).getIncomingWeight(1, 0);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class LabelReachabilityTest {
+
+  @Test
+  public void shouldFollowInputEpsilons() throws Exception {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState s0 = fst.newStartState();
+    MutableState s1 = fst.newState();
+    MutableState s2 = fst.newState();
+    MutableState s3 = fst.newState();
+    s3.setFinalWeight(0.0);
+    fst.addArc(s0, "a", "x", s1, 1.0);
+    fst.addArc(s0, "<eps>", "y", s1, 1.0);
+    fst.addArc(s1, "c", "x", s2, 1.0);
+    fst.addArc(s1, "b", "x", s2, 1.0);
+    fst.addArc(s1, "b", "y", s3, 1.0);
+    fst.addArc(s2, "<eps>", "<eps>", s3, 1.0);
+    fst.addArc(s2, "<eps>", "x", s1, 1.0); // epsilon cycle through s1
+    fst.addArc(s3, "d", "x", s3, 1.0);
+
+    LabelReachability reach = LabelReachability.forInput(fst);
+    int a = fst.getInputSymbols().get("a");
+    int b = fst.getInputSymbols().get("b");
+    int c = fst.getInputSymbols().get("c");
+    int d = fst.getInputSymbols().get("d");
+
+    assertTrue(reach.canRead(0, a));
+    assertTrue(reach.canRead(0, b));
+    assertTrue(reach.canRead(0, c));
+    assertFalse(reach.canRead(0, d));
+    assertFalse(reach.canReachFinal(0));
+    assertEquals(3, reach.getReadableCount(0));
+
+    assertFalse(reach.canRead(1, a));
+    assertEquals(2, reach.getReadableCount(1));
+    assertFalse(reach.canReachFinal(1));
+
+    assertTrue(reach.canRead(2, b));
+    assertTrue(reach.canRead(2, c));
+    assertTrue(reach.canRead(2, d));
+    assertFalse(reach.canRead(2, a));
+    assertTrue(reach.canReachFinal(2));
+
+    assertEquals(1, reach.getReadableCount(3));
+    assertTrue(reach.canRead(3, d));
+    assertFalse(reach.canRead(3, d + 1));
+    assertTrue(reach.canReachFinal(3));
+  }
+
+  @Test
+  public void shouldReadAnythingThroughSpecialLabels() throws Exception {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState s0 = fst.newStartState();
+    MutableState s1 = fst.newState();
+    MutableState s2 = fst.newState(0.0);
+    fst.addArc(s0, "<eps>", "x", s1, 1.0);
+    fst.addArc(s0, "a", "x", s2, 1.0);
+    fst.addArc(s1, Fst.PHI, "<eps>", s2, 1.0);
+    fst.addArc(s2, "b", "x", s2, 1.0);
+
+    LabelReachability reach = LabelReachability.forInput(fst);
+    int c = fst.getInputSymbols().getOrAdd("c");
+    assertTrue(reach.canReadAnything(0));
+    assertTrue(reach.canRead(0, c));
+    assertTrue(reach.canReadAnything(1));
+    assertFalse(reach.canReadAnything(2));
+    assertFalse(reach.canRead(2, c));
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Steve Ash
+ */
+public class LazyFstTest {
+
+  @Test
+  public void shouldEvictTheLeastRecentlyUsedState() throws Exception {
+    final int[] expansions = new int[4];
+    // a chain 0 -> 1 -> 2 -> 3 that counts how many times each state is expanded
+    LazyFst fst = new LazyFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(), new MutableSymbolTable(), 2) {
+      @Override
+      protected int getStartStateId() {
+        return 0;
+      }
+
+      @Override
+      public int getDiscoveredStateCount() {
+        return expansions.length;
+      }
+
+      @Override
+      protected double computeFinalWeight(int stateId) {
+        return (stateId == expansions.length - 1 ? 0.0 : Double.POSITIVE_INFINITY);
+      }
+
+      @Override
+      protected void expand(int stateId, ArcSink sink) {
+        expansions[stateId] += 1;
+        if (stateId < expansions.length - 1) {
+          sink.add(1, 1, stateId + 1, 1.0);
+        }
+      }
+    };
+    ArcCursor cursor = fst.newArcCursor();
+    fst.arcs(0, cursor);
+    fst.arcs(1, cursor);
+    // using 0 again makes 1 the least recently used, so that's the one that expanding 2 evicts
+    fst.arcs(0, cursor);
+    fst.arcs(2, cursor);
+    fst.arcs(0, cursor);
+    assertEquals(1, expansions[0]);
+    // now 2 is the least recently used, so expanding 1 again evicts it
+    fst.arcs(1, cursor);
+    assertEquals(2, expansions[1]);
+    fst.arcs(0, cursor);
+    fst.arcs(2, cursor);
+    assertEquals(1, expansions[0]);
+    assertEquals(2, expansions[2]);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst;
+
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.operations.Determinize;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class MappedFstTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void shouldRoundTripThroughMappedFile() throws Exception {
+    MutableFst fst = Convert.importFst("data/tests/algorithms/determinize/A", TropicalSemiring.INSTANCE);
+    File file = folder.newFile("a.mapped.fst");
+    FstInputOutput.writeFstToMappedFile(fst, file);
+
+    MappedFst mapped = FstInputOutput.readFstFromMappedFile(file);
+    assertEquals(fst.getStateCount(), mapped.getStateCount());
+    assertTrue(FstUtils.fstEquals(fst, mapped, FstUtils.LOG_REPORTER));
+    assertTrue(FstUtils.fstEquals(Determinize.apply(fst), Determinize.apply(mapped), FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void shouldRoundTripStateSymbols() throws Exception {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    fst.useStateSymbols();
+    fst.newStartState("<start>");
+    fst.addArc("<start>", "a", "A", "one", 1.0);
+    fst.addArc("one", "b", "B", "two", 2.0);
+    fst.getState("two").setFinalWeight(0.5);
+    File file = folder.newFile("b.mapped.fst");
+    FstInputOutput.writeFstToMappedFile(fst, file);
+
+    MappedFst mapped = FstInputOutput.readFstFromMappedFile(file);
+    assertTrue(FstUtils.fstEquals(fst, mapped, FstUtils.LOG_REPORTER));
+    assertEquals(0.5, mapped.getState("two").getFinalWeight(), 0.0001);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectObjectStreamFormat() throws Exception {
+    MutableFst fst = Convert.importFst("data/tests/algorithms/determinize/A", TropicalSemiring.INSTANCE);
+    File file = folder.newFile("c.fst");
+    FstInputOutput.writeFstToBinaryFile(fst, file);
+    FstInputOutput.readFstFromMappedFile(file);
+  }
+}
@@ -26,6 +26,8 @@ import java.util.ArrayList;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -155,6 +157,35 @@ public class MutableFstTest {
     assertEquals(204, rs2.getArc(0).getOlabel());
   }
 
+  @Test
+  @SuppressWarnings("deprecation")
+  public void shouldComputeDeprecatedIncomingStates() throws Exception {
+    MutableFst fst = createStateSymbolFst();
+    MutableState a = fst.getState("_A");
+    MutableState c = fst.getState("_C");
+    fst.addArc("<start>", "c", "C", "_C", 2.0);
+    fst.addArc("_C", "c", "C", "_C", 1.0);
+
+    assertEquals(Lists.newArrayList(fst.getStartState()), Lists.newArrayList(a.getIncomingStates()));
+    // the self loop isn't included
+    assertEquals(Lists.newArrayList(fst.getStartState(), fst.getState("_B")),
+        Lists.newArrayList(c.getIncomingStates()));
+  }
+
+  @Test
+  public void shouldReuseTheIncomingIndexUntilTheFstChanges() throws Exception {
+    MutableFst fst = createStateSymbolFst();
+    MutableState a = fst.getState("_A");
+    IncomingStateIndex index = fst.getIncomingIndex();
+    assertSame(index, fst.getIncomingIndex());
+    assertEquals(Lists.newArrayList(fst.getStartState()), Lists.newArrayList(a.getIncomingStates()));
+
+    fst.addArc("_C", "a", "A", "_A", 1.0);
+    assertNotSame(index, fst.getIncomingIndex());
+    assertEquals(Lists.newArrayList(fst.getStartState(), fst.getState("_C")),
+        Lists.newArrayList(a.getIncomingStates()));
+  }
+
   private MutableFst createStateSymbolFst() {
     MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
     fst.useStateSymbols();
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.ImmutableFst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class ComposeCacheTest {
+
+  private static final List<String> CARDOG = ImmutableList.of("c", "a", "r", "d", "o", "g");
+  private static final List<String> CAT = ImmutableList.of("c", "a", "t");
+
+  private PrecomputedComposeFst precomputed;
+
+  @Before
+  public void setUp() throws Exception {
+    MutableFst lexicon = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState start = lexicon.newStartState();
+    for (String word : new String[]{"cat", "car", "dog"}) {
+      MutableState last = start;
+      for (int i = 0; i < word.length(); i++) {
+        MutableState next = lexicon.newState();
+        lexicon.addArc(last, word.substring(i, i + 1), (i == 0 ? word : Fst.EPS), next, 1.0);
+        last = next;
+      }
+      last.setFinalWeight(0.0);
+      lexicon.addArc(last, Fst.EPS, Fst.EPS, start, 0.5);
+    }
+    precomputed = Compose.precomputeInner(lexicon, TropicalSemiring.INSTANCE);
+  }
+
+  @Test
+  public void shouldCacheResults() throws Exception {
+    ComposeCache cache = new ComposeCache(precomputed, 10000);
+    ImmutableFst first = cache.get(CARDOG);
+    assertTrue(FstUtils.fstEquals(new ComposeEngine(precomputed).composeSequence(CARDOG), first,
+        FstUtils.LOG_REPORTER));
+    assertSame(first, cache.get(CARDOG));
+    int[] labels = new int[CARDOG.size()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = precomputed.getFstInputSymbolsAsFrozen().get(CARDOG.get(i));
+    }
+    assertSame(first, cache.get(labels));
+    cache.get(CAT);
+
+    assertEquals(2, cache.getStats().hitCount());
+    assertEquals(2, cache.getStats().missCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void shouldCacheNBest() throws Exception {
+    ComposeCache cache = new ComposeCache(precomputed, 10000, 1);
+    MutableFst expected = NShortestPaths.apply(new ComposeEngine(precomputed).composeSequence(CARDOG), 1);
+    assertTrue(FstUtils.fstEquals(expected, cache.get(CARDOG), FstUtils.LOG_REPORTER));
+
+    // cad doesn't match anything
+    ImmutableFst none = cache.get(ImmutableList.of("c", "a", "d"));
+    for (int i = 0; i < none.getStateCount(); i++) {
+      assertFalse(TropicalSemiring.INSTANCE.isNotZero(none.getState(i).getFinalWeight()));
+    }
+  }
+
+  @Test
+  public void shouldEvictByWeight() throws Exception {
+    // only room for about one result
+    ComposeCache cache = new ComposeCache(precomputed, 20);
+    cache.get(CARDOG);
+    cache.get(CAT);
+    cache.get(CARDOG);
+    assertTrue(cache.getStats().evictionCount() > 0);
+    assertTrue(cache.size() <= 1);
+  }
+}
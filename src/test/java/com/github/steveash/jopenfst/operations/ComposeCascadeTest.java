@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.State;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class ComposeCascadeTest {
+
+  private static final TropicalSemiring RING = TropicalSemiring.INSTANCE;
+
+  @Test
+  public void shouldComposeSameAsEagerChain() throws Exception {
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd(Fst.EPS);
+    for (int i = 0; i < 8; i++) {
+      syms.getOrAdd("s" + i);
+    }
+    int labelCount = syms.size();
+    // the eager chain needs the outputs of each compose to have the same symbols as the next input
+    syms.getOrAdd(ComposeFst.EPS1);
+    syms.getOrAdd(ComposeFst.EPS2);
+    Random rand = new Random(0xC0DE);
+    int nonEmpty = 0;
+    for (int trial = 0; trial < 20; trial++) {
+      MutableFst input = randomFst(rand, syms, labelCount, 5, 3);
+      MutableFst stage1 = randomFst(rand, syms, labelCount, 6, 6);
+      MutableFst stage2 = randomFst(rand, syms, labelCount, 6, 6);
+      MutableFst stage3 = randomFst(rand, syms, labelCount, 5, 5);
+
+      MutableFst eager = Compose.compose(Compose.compose(Compose.compose(input, stage1, RING), stage2, RING),
+          stage3, RING);
+      MutableFst cascade = ComposeCascade.compose(ImmutableList.of(input, stage1, stage2, stage3), RING);
+      // the intermediates aren't trimmed in the cascade so the ids can differ, but the trimmed result is the same
+      assertEquals(eager.getStateCount(), cascade.getStateCount());
+      assertEquals(arcCount(eager), arcCount(cascade));
+      if (eager.getStateCount() > 1) {
+        assertEquals(bestWeight(eager), bestWeight(cascade), 0.0001);
+        nonEmpty += 1;
+      }
+    }
+    assertTrue(nonEmpty >= 3);
+  }
+
+  @Test
+  public void shouldOnlyExpandReachable() throws Exception {
+    // a lexicon of words then a stage that maps some words to tags
+    MutableFst lexicon = new MutableFst(RING);
+    lexicon.getInputSymbols().getOrAdd(Fst.EPS);
+    MutableState start = lexicon.newStartState();
+    for (String word : new String[]{"cat", "car", "dog", "cab"}) {
+      MutableState last = start;
+      for (int i = 0; i < word.length(); i++) {
+        MutableState next = lexicon.newState();
+        lexicon.addArc(last, word.substring(i, i + 1), (i == 0 ? word : Fst.EPS), next, 1.0);
+        last = next;
+      }
+      last.setFinalWeight(0.0);
+    }
+    MutableSymbolTable tags = new MutableSymbolTable();
+    tags.getOrAdd(Fst.EPS);
+    MutableFst tagger = new MutableFst(RING, new MutableSymbolTable(lexicon.getOutputSymbols()), tags);
+    MutableState tagStart = tagger.newStartState();
+    tagStart.setFinalWeight(0.0);
+    tagger.addArc(tagStart, "cat", "ANIMAL", tagStart, 0.0);
+    tagger.addArc(tagStart, "dog", "ANIMAL", tagStart, 0.0);
+    tagger.addArc(tagStart, "car", "VEHICLE", tagStart, 0.0);
+    tagger.addArc(tagStart, "cab", "VEHICLE", tagStart, 0.0);
+    ComposeCascade cascade = new ComposeCascade(ImmutableList.of(lexicon, tagger), RING);
+    assertEquals(2, cascade.getStageCount());
+
+    MutableFst input = new MutableFst(RING, new MutableSymbolTable(lexicon.getInputSymbols()),
+        new MutableSymbolTable(lexicon.getInputSymbols()));
+    MutableState last = input.newStartState();
+    for (String c : new String[]{"d", "o", "g"}) {
+      MutableState next = input.newState();
+      input.addArc(last, c, c, next, 0.0);
+      last = next;
+    }
+    last.setFinalWeight(0.0);
+
+    ComposeFst lazy = cascade.composeLazy(input);
+    assertEquals(1, lazy.getDiscoveredStateCount());
+    MutableFst result = lazy.toMutableFst();
+    // only the dog branch of the lexicon is ever reached
+    assertTrue(result.getStateCount() < lexicon.getStateCount());
+    Connect.apply(result);
+    assertEquals(1.0 * 3, bestWeight(result), 0.0001);
+    assertEquals(result.getStateCount(), cascade.compose(input).getStateCount());
+  }
+
+  private static int arcCount(Fst fst) {
+    int count = 0;
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      count += fst.getState(i).getArcCount();
+    }
+    return count;
+  }
+
+  // the n-best result with n = 1 is a single path
+  private static double bestWeight(Fst fst) {
+    MutableFst best = NShortestPaths.apply(fst, 1);
+    double weight = RING.one();
+    State state = best.getStartState();
+    while (state.getArcCount() > 0) {
+      weight = RING.times(weight, state.getArc(0).getWeight());
+      state = state.getArc(0).getNextState();
+    }
+    return RING.times(weight, state.getFinalWeight());
+  }
+
+  private static MutableFst randomFst(Random rand, MutableSymbolTable syms, int labelCount, int states,
+                                      int arcsPerState) {
+    MutableFst fst = new MutableFst(RING, new MutableSymbolTable(syms), new MutableSymbolTable(syms));
+    fst.newStartState();
+    for (int i = 1; i < states; i++) {
+      fst.newState(rand.nextInt(2) == 0 ? rand.nextDouble() : RING.zero());
+    }
+    for (int i = 0; i < states; i++) {
+      MutableState state = fst.getState(i);
+      for (int j = 0; j < arcsPerState; j++) {
+        fst.addArc(state, rand.nextInt(labelCount), rand.nextInt(labelCount), fst.getState(rand.nextInt(states)),
+            rand.nextDouble());
+      }
+    }
+    return fst;
+  }
+}
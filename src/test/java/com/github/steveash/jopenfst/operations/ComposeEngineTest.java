@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class ComposeEngineTest {
+
+  private static final String[] DIRS = new String[]{"compose", "compose2", "composeeps"};
+
+  private static MutableFst load(String dir, String name) {
+    return Convert.importFst("data/tests/algorithms/" + dir + "/" + name, TropicalSemiring.INSTANCE);
+  }
+
+  @Test
+  public void shouldComposeSameAsPrecomputed() throws Exception {
+    for (String dir : DIRS) {
+      PrecomputedComposeFst precomputed = Compose.precomputeInner(load(dir, "B"), TropicalSemiring.INSTANCE);
+      MutableFst fstA = load(dir, "A");
+      MutableFst expected = Compose.composeWithPrecomputed(fstA, precomputed);
+      ComposeEngine engine = new ComposeEngine(precomputed);
+      // the second time through re-uses the state table and buffers of the first
+      for (int i = 0; i < 3; i++) {
+        assertTrue(dir, FstUtils.fstEquals(expected, engine.compose(fstA), FstUtils.LOG_REPORTER));
+      }
+    }
+  }
+
+  @Test
+  public void shouldComposeAllInOrder() throws Exception {
+    List<Fst> outers = Lists.newArrayList();
+    List<MutableFst> expected = Lists.newArrayList();
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(load("compose", "B"), TropicalSemiring.INSTANCE);
+    MutableFst fstA = load("compose", "A");
+    for (int i = 0; i < 20; i++) {
+      // alternate between a big and a trivial outer so that a mix up in the order would show
+      if (i % 2 == 0) {
+        outers.add(fstA);
+        expected.add(Compose.composeWithPrecomputed(fstA, precomputed));
+      } else {
+        MutableFst empty = precomputed.createNewOuterFst();
+        empty.newStartState().setFinalWeight(0.0);
+        outers.add(empty);
+        expected.add(Compose.composeWithPrecomputed(empty, precomputed));
+      }
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<MutableFst> actual = new ComposeEngine(precomputed).composeAll(outers, pool);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertTrue(FstUtils.fstEquals(expected.get(i), actual.get(i), FstUtils.LOG_REPORTER));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldNotShareSymbolsBetweenResults() throws Exception {
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(load("compose", "B"), TropicalSemiring.INSTANCE);
+    ComposeEngine engine = new ComposeEngine(precomputed);
+    MutableFst outer = precomputed.createNewOuterFst();
+    outer.newStartState().setFinalWeight(0.0);
+    MutableFst first = engine.compose(outer);
+    MutableFst second = engine.compose(outer);
+
+    // the results are built over the same (immutable) tables so adding to one mustn't show up in the other
+    first.getInputSymbols().getOrAdd("<only-in-first>");
+    first.getOutputSymbols().getOrAdd("<only-in-first>");
+    assertFalse(second.getInputSymbols().contains("<only-in-first>"));
+    assertFalse(second.getOutputSymbols().contains("<only-in-first>"));
+    assertFalse(engine.compose(outer).getOutputSymbols().contains("<only-in-first>"));
+  }
+
+  @Test
+  public void shouldComposeSequences() throws Exception {
+    MutableFst lexicon = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState start = lexicon.newStartState();
+    for (String word : new String[]{"cat", "car", "dog"}) {
+      MutableState last = start;
+      for (int i = 0; i < word.length(); i++) {
+        MutableState next = lexicon.newState();
+        lexicon.addArc(last, word.substring(i, i + 1), (i == 0 ? word : Fst.EPS), next, 1.0);
+        last = next;
+      }
+      last.setFinalWeight(0.0);
+      lexicon.addArc(last, Fst.EPS, Fst.EPS, start, 0.5);
+    }
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(lexicon, TropicalSemiring.INSTANCE);
+    ComposeEngine engine = new ComposeEngine(precomputed);
+
+    List<List<String>> sequences = ImmutableList.<List<String>>of(
+        ImmutableList.of("c", "a", "r", "d", "o", "g"),
+        ImmutableList.of("d", "o", "g"),
+        ImmutableList.of("c", "a", "d"));
+    List<MutableFst> expected = Lists.newArrayList();
+    for (List<String> sequence : sequences) {
+      MutableFst input = precomputed.createNewOuterFst();
+      MutableState last = input.newStartState();
+      for (String c : sequence) {
+        MutableState next = input.newState();
+        input.addArc(last, c, c, next, 0.0);
+        last = next;
+      }
+      last.setFinalWeight(0.0);
+      expected.add(Compose.composeWithPrecomputed(input, precomputed));
+      assertTrue(FstUtils.fstEquals(expected.get(expected.size() - 1), engine.composeSequence(sequence),
+          FstUtils.LOG_REPORTER));
+    }
+    // cad isn't in the lexicon so trimming leaves at most the start
+    assertTrue(expected.get(2).getStateCount() <= 1);
+
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      List<MutableFst> actual = engine.composeAllSequences(sequences, pool);
+      for (int i = 0; i < expected.size(); i++) {
+        assertTrue(FstUtils.fstEquals(expected.get(i), actual.get(i), FstUtils.LOG_REPORTER));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
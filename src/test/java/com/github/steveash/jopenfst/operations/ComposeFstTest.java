@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.State;
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class ComposeFstTest {
+
+  private static final String[] DIRS = {"compose", "compose2", "composeeps"};
+
+  private static MutableFst load(String dir, String name) {
+    return Convert.importFst("data/tests/algorithms/" + dir + "/" + name, TropicalSemiring.INSTANCE);
+  }
+
+  @Test
+  public void shouldExpandSameAsEagerCompose() throws Exception {
+    for (String dir : DIRS) {
+      PrecomputedComposeFst precomputed = Compose.precomputeInner(load(dir, "B"), TropicalSemiring.INSTANCE);
+      MutableFst eager = Compose.composeWithPrecomputed(load(dir, "A"), precomputed, false, false);
+
+      ComposeFst lazy = Compose.composeLazy(load(dir, "A"), precomputed);
+      assertTrue(FstUtils.fstEquals(eager, lazy.toMutableFst(), FstUtils.LOG_REPORTER));
+
+      // tiny cache so that states are evicted and re-expanded while we walk it
+      ComposeFst lazyTiny = Compose.composeLazy(load(dir, "A"), precomputed, 2);
+      assertTrue(FstUtils.fstEquals(eager, lazyTiny, FstUtils.LOG_REPORTER));
+    }
+  }
+
+  @Test
+  public void shouldOnlyExpandVisitedStates() throws Exception {
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(load("compose", "B"), TropicalSemiring.INSTANCE);
+    ComposeFst lazy = Compose.composeLazy(load("compose", "A"), precomputed);
+    assertEquals(1, lazy.getDiscoveredStateCount());
+    assertTrue(lazy.getStartState().getArcCount() > 0);
+    int discovered = lazy.getDiscoveredStateCount();
+    assertTrue(discovered > 1);
+    assertTrue(discovered < lazy.getStateCount());
+  }
+
+  @Test
+  public void shouldFindSameShortestPathsLazily() throws Exception {
+    for (String dir : DIRS) {
+      PrecomputedComposeFst precomputed = Compose.precomputeInner(load(dir, "B"), TropicalSemiring.INSTANCE);
+      MutableFst eager = NShortestPaths.apply(Compose.composeWithPrecomputed(load(dir, "A"), precomputed), 3);
+      MutableFst lazy = NShortestPaths.applyLazy(Compose.composeLazy(load(dir, "A"), precomputed), 3);
+      assertEquals(dir, paths(eager), paths(lazy));
+    }
+  }
+
+  @Test
+  public void shouldComposeSameWithLookahead() throws Exception {
+    for (String dir : DIRS) {
+      MutableFst fstB = load(dir, "B");
+      PrecomputedComposeFst plain = Compose.precomputeInner(fstB, TropicalSemiring.INSTANCE);
+      PrecomputedComposeFst lookahead = Compose.precomputeInner(fstB, TropicalSemiring.INSTANCE, true);
+      MutableFst expected = Compose.composeWithPrecomputed(load(dir, "A"), plain);
+      MutableFst actual = Compose.composeWithPrecomputed(load(dir, "A"), lookahead);
+      assertEquals(dir, expected.getStateCount(), actual.getStateCount());
+      assertEquals(dir, paths(NShortestPaths.apply(expected, 5)), paths(NShortestPaths.apply(actual, 5)));
+    }
+  }
+
+  @Test
+  public void shouldNotCreateDeadEndStatesWithLookahead() throws Exception {
+    // lexicon of spellings -> words, which isn't determinized so each word is its own branch from the start
+    MutableFst lexicon = new MutableFst(TropicalSemiring.INSTANCE);
+    MutableState start = lexicon.newStartState();
+    for (String word : new String[]{"cat", "car", "cart", "dog", "cab"}) {
+      MutableState last = start;
+      for (int i = 0; i < word.length(); i++) {
+        MutableState next = lexicon.newState();
+        lexicon.addArc(last, word.substring(i, i + 1), (i == 0 ? word : Fst.EPS), next, 1.0);
+        last = next;
+      }
+      last.setFinalWeight(0.0);
+      lexicon.addArc(last, Fst.EPS, Fst.EPS, start, 0.5);
+    }
+    PrecomputedComposeFst plain = Compose.precomputeInner(lexicon, TropicalSemiring.INSTANCE);
+    PrecomputedComposeFst lookahead = Compose.precomputeInner(lexicon, TropicalSemiring.INSTANCE, true);
+
+    MutableFst input = plain.createNewOuterFst();
+    MutableState last = input.newStartState();
+    for (String c : new String[]{"c", "a", "r", "c", "a", "b"}) {
+      MutableState next = input.newState();
+      input.addArc(last, c, c, next, 0.0);
+      last = next;
+    }
+    last.setFinalWeight(0.0);
+
+    MutableFst untrimmedPlain = Compose.composeWithPrecomputed(input, plain, false, false);
+    MutableFst untrimmedLookahead = Compose.composeWithPrecomputed(input, lookahead, false, false);
+    assertTrue(untrimmedLookahead.getStateCount() < untrimmedPlain.getStateCount());
+
+    MutableFst expected = Compose.composeWithPrecomputed(input, plain);
+    MutableFst actual = Compose.composeWithPrecomputed(input, lookahead);
+    assertEquals(expected.getStateCount(), actual.getStateCount());
+    assertEquals(paths(expected), paths(actual));
+    assertEquals(Lists.newArrayList(" c:car a:<eps> r:<eps> c:cab a:<eps> b:<eps> / 6.500"),
+        paths(actual));
+  }
+
+  // the n-best results are trees, so just list out each path
+  private static List<String> paths(Fst fst) {
+    List<String> results = Lists.newArrayList();
+    addPaths(fst, fst.getStartState(), "", fst.getSemiring().one(), results);
+    Collections.sort(results);
+    return results;
+  }
+
+  private static void addPaths(Fst fst, State state, String prefix, double weight, List<String> results) {
+    Semiring semiring = fst.getSemiring();
+    if (semiring.isNotZero(state.getFinalWeight())) {
+      double total = semiring.times(weight, state.getFinalWeight());
+      results.add(prefix + " / " + String.format("%.3f", total));
+    }
+    for (Arc arc : state.getArcs()) {
+      String in = fst.getInputSymbols().invert().keyForId(arc.getIlabel());
+      String out = fst.getOutputSymbols().invert().keyForId(arc.getOlabel());
+      String step = (in.equals(Fst.EPS) && out.equals(Fst.EPS)) ? "" : " " + in + ":" + out;
+      addPaths(fst, arc.getNextState(), prefix + step, semiring.times(weight, arc.getWeight()), results);
+    }
+  }
+}
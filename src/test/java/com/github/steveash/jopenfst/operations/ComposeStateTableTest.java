@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Steve Ash
+ */
+public class ComposeStateTableTest {
+
+  @Test
+  public void shouldAssignDenseIdsInDiscoveryOrder() throws Exception {
+    ComposeStateTable table = new ComposeStateTable();
+    assertEquals(0, table.findOrAdd(0, 0, 0));
+    assertEquals(1, table.findOrAdd(0, 0, 1));
+    assertEquals(2, table.findOrAdd(Integer.MAX_VALUE, 0, 0));
+    assertEquals(3, table.findOrAdd(0, Integer.MAX_VALUE, 0));
+    assertEquals(4, table.findOrAdd(Integer.MAX_VALUE, Integer.MAX_VALUE, ComposeStateTable.MAX_FILTER_STATE));
+    assertEquals(1, table.findOrAdd(0, 0, 1));
+    assertEquals(2, table.findOrAdd(Integer.MAX_VALUE, 0, 0));
+    assertEquals(5, table.size());
+
+    assertEquals(Integer.MAX_VALUE, table.q1(4));
+    assertEquals(Integer.MAX_VALUE, table.q2(4));
+    assertEquals(ComposeStateTable.MAX_FILTER_STATE, table.filter(4));
+    assertEquals(0, table.q1(3));
+    assertEquals(Integer.MAX_VALUE, table.q2(3));
+  }
+
+  @Test
+  public void shouldGrowAndClear() throws Exception {
+    ComposeStateTable table = new ComposeStateTable();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, table.findOrAdd(i / 10, i % 10, i % 3));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, table.findOrAdd(i / 10, i % 10, i % 3));
+      assertEquals(i / 10, table.q1(i));
+      assertEquals(i % 10, table.q2(i));
+      assertEquals(i % 3, table.filter(i));
+    }
+    table.clear();
+    assertEquals(0, table.size());
+    assertEquals(0, table.findOrAdd(5, 5, 2));
+  }
+}
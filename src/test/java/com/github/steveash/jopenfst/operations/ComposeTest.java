@@ -17,13 +17,26 @@
 package com.github.steveash.jopenfst.operations;
 
 import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.ImmutableFst;
 import com.github.steveash.jopenfst.MutableFst;
 import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.SymbolTable;
 import com.github.steveash.jopenfst.io.Convert;
 import com.github.steveash.jopenfst.semiring.TropicalSemiring;
 import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -132,4 +145,230 @@ public class ComposeTest {
 
     assertTrue(FstUtils.fstEquals(composed, fstComposed, 0.1, FstUtils.LOG_REPORTER));
   }
+
+  @Test
+  public void testComposePrecomputedWithDifferentSymbolIds() {
+    MutableFst fstB = Convert.importFst("data/tests/algorithms/compose2/B", TropicalSemiring.INSTANCE);
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(fstB, TropicalSemiring.INSTANCE);
+    MutableFst fstA = Convert.importFst("data/tests/algorithms/compose2/A", TropicalSemiring.INSTANCE);
+    MutableFst sameIds = MutableFst.copyAndTranslateSymbols(fstA, fstA.getInputSymbols(),
+        precomputed.getFstInputSymbolsAsFrozen());
+
+    // same symbols but every id shifted (and an extra symbol that the inner fst doesn't have)
+    MutableSymbolTable shifted = new MutableSymbolTable();
+    shifted.getOrAdd(Fst.EPS);
+    shifted.getOrAdd("<not-in-inner>");
+    for (String symbol : precomputed.getFstInputSymbolsAsFrozen().symbols()) {
+      shifted.getOrAdd(symbol);
+    }
+    MutableFst otherIds = MutableFst.copyAndTranslateSymbols(fstA, fstA.getInputSymbols(), shifted);
+    otherIds.addArc(otherIds.getStartState(), "a", "<not-in-inner>", otherIds.getStartState(), 1.0);
+
+    MutableFst expected = Compose.composeWithPrecomputed(sameIds, precomputed);
+    MutableFst actual = Compose.composeWithPrecomputed(otherIds, precomputed);
+    assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void testComposeDoesNotModifyInputs() {
+    MutableFst fstA = Convert.importFst("data/tests/algorithms/composeeps/A", TropicalSemiring.INSTANCE);
+    MutableFst fstB = Convert.importFst("data/tests/algorithms/composeeps/B", TropicalSemiring.INSTANCE);
+    MutableFst copyA = MutableFst.copyFrom(fstA);
+    MutableFst copyB = MutableFst.copyFrom(fstB);
+
+    Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE);
+    Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE, true);
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(fstB, TropicalSemiring.INSTANCE);
+    Compose.composeWithPrecomputed(fstA, precomputed);
+
+    assertTrue(FstUtils.fstEquals(copyA, fstA, FstUtils.LOG_REPORTER));
+    assertTrue(FstUtils.fstEquals(copyB, fstB, FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void testComposeSpecialLabels() {
+    MutableSymbolTable inner = new MutableSymbolTable();
+    MutableSymbolTable outer = new MutableSymbolTable();
+    for (String symbol : new String[]{Fst.EPS, "a", "b", "c", Fst.SIGMA, Fst.RHO, Fst.PHI}) {
+      inner.getOrAdd(symbol);
+    }
+    for (String symbol : new String[]{Fst.EPS, "A", "B", "C", "X", Fst.SIGMA, Fst.RHO, Fst.PHI}) {
+      outer.getOrAdd(symbol);
+    }
+    // rho on the start state, a back-off from state 1 to state 2, and sigma on state 2
+    MutableFst special = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(inner),
+        new MutableSymbolTable(outer));
+    MutableState s0 = special.newStartState();
+    MutableState s1 = special.newState(0.0);
+    MutableState s2 = special.newState(0.0);
+    special.addArc(s0, "a", "A", s1, 1.0);
+    special.addArc(s0, Fst.RHO, "C", s0, 2.0);
+    special.addArc(s1, Fst.PHI, Fst.EPS, s2, 0.5);
+    special.addArc(s1, "b", "B", s1, 1.0);
+    special.addArc(s2, Fst.SIGMA, "X", s2, 3.0);
+
+    // the same thing with every arc spelled out
+    MutableFst explicit = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(inner),
+        new MutableSymbolTable(outer));
+    MutableState e0 = explicit.newStartState();
+    MutableState e1 = explicit.newState(0.0);
+    MutableState e2 = explicit.newState(0.0);
+    explicit.addArc(e0, "a", "A", e1, 1.0);
+    explicit.addArc(e0, "b", "C", e0, 2.0);
+    explicit.addArc(e0, "c", "C", e0, 2.0);
+    explicit.addArc(e1, "a", "X", e2, 3.5);
+    explicit.addArc(e1, "b", "B", e1, 1.0);
+    explicit.addArc(e1, "c", "X", e2, 3.5);
+    for (String symbol : new String[]{"a", "b", "c"}) {
+      explicit.addArc(e2, symbol, "X", e2, 3.0);
+    }
+
+    MutableFst input = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(inner),
+        new MutableSymbolTable(inner));
+    MutableState i0 = input.newStartState();
+    MutableState i1 = input.newState();
+    MutableState i2 = input.newState();
+    MutableState i3 = input.newState(0.0);
+    input.addArc(i0, "c", "c", i0, 0.0);
+    input.addArc(i0, "a", "a", i1, 0.0);
+    input.addArc(i1, "b", "b", i1, 0.0);
+    input.addArc(i1, "c", "c", i2, 0.0);
+    input.addArc(i1, "a", "a", i2, 0.0);
+    input.addArc(i2, "b", "b", i3, 0.0);
+
+    MutableFst expected = Compose.compose(input, explicit, TropicalSemiring.INSTANCE);
+    MutableFst actual = Compose.compose(input, special, TropicalSemiring.INSTANCE);
+    assertTrue(expected.getStateCount() > 1);
+    assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+
+    // and rewriting the output to the matched symbol (explicit, then sigma, then rho arcs match in that order)
+    special.addArc(s0, Fst.SIGMA, Fst.SIGMA, s0, 5.0);
+    for (String symbol : new String[]{"a", "b", "c"}) {
+      special.getOutputSymbols().getOrAdd(symbol);
+    }
+    MutableFst explicit2 = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(inner),
+        new MutableSymbolTable(special.getOutputSymbols()));
+    MutableState f0 = explicit2.newStartState();
+    MutableState f1 = explicit2.newState(0.0);
+    MutableState f2 = explicit2.newState(0.0);
+    explicit2.addArc(f0, "a", "A", f1, 1.0);
+    explicit2.addArc(f0, "a", "a", f0, 5.0);
+    explicit2.addArc(f0, "b", "b", f0, 5.0);
+    explicit2.addArc(f0, "b", "C", f0, 2.0);
+    explicit2.addArc(f0, "c", "c", f0, 5.0);
+    explicit2.addArc(f0, "c", "C", f0, 2.0);
+    explicit2.addArc(f1, "a", "X", f2, 3.5);
+    explicit2.addArc(f1, "b", "B", f1, 1.0);
+    explicit2.addArc(f1, "c", "X", f2, 3.5);
+    for (String symbol : new String[]{"a", "b", "c"}) {
+      explicit2.addArc(f2, symbol, "X", f2, 3.0);
+    }
+    expected = Compose.compose(input, explicit2, TropicalSemiring.INSTANCE);
+    actual = Compose.compose(input, special, TropicalSemiring.INSTANCE);
+    assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+  }
+
+  @Test
+  public void testComposeKeepsExplicitSpecialOutputs() {
+    MutableSymbolTable symbols = new MutableSymbolTable();
+    for (String symbol : new String[]{Fst.EPS, "a", "b", Fst.SIGMA}) {
+      symbols.getOrAdd(symbol);
+    }
+    // a is matched explicitly and outputs a literal sigma; b only matches the sigma arc so it is output as is
+    MutableFst special = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(symbols),
+        new MutableSymbolTable(symbols));
+    MutableState s0 = special.newStartState();
+    MutableState s1 = special.newState(0.0);
+    special.addArc(s0, "a", Fst.SIGMA, s1, 1.0);
+    special.addArc(s1, Fst.SIGMA, Fst.SIGMA, s1, 2.0);
+
+    MutableFst input = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(symbols),
+        new MutableSymbolTable(symbols));
+    MutableState i0 = input.newStartState();
+    MutableState i1 = input.newState();
+    MutableState i2 = input.newState(0.0);
+    input.addArc(i0, "a", "a", i1, 0.0);
+    input.addArc(i1, "b", "b", i2, 0.0);
+
+    MutableFst result = Compose.compose(input, special, TropicalSemiring.INSTANCE);
+    SymbolTable.InvertedSymbolTable outputs = result.getOutputSymbols().invert();
+    MutableState state = result.getStartState();
+    assertEquals(1, state.getArcCount());
+    assertEquals(Fst.SIGMA, outputs.keyForId(state.getArc(0).getOlabel()));
+    state = state.getArc(0).getNextState();
+    assertEquals(1, state.getArcCount());
+    assertEquals("b", outputs.keyForId(state.getArc(0).getOlabel()));
+  }
+
+  @Test
+  public void testComposeSharedImmutableInputs() throws Exception {
+    final ImmutableFst fstA = new ImmutableFst(Convert.importFst("data/tests/algorithms/compose/A",
+        TropicalSemiring.INSTANCE));
+    final ImmutableFst fstB = new ImmutableFst(Convert.importFst("data/tests/algorithms/compose/B",
+        TropicalSemiring.INSTANCE));
+    final MutableFst composed = Convert.importFst("data/tests/algorithms/compose/expected", TropicalSemiring.INSTANCE);
+    final PrecomputedComposeFst precomputed = Compose.precomputeInner(fstB, TropicalSemiring.INSTANCE);
+
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = Lists.newArrayList();
+      for (int i = 0; i < 16; i++) {
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            return FstUtils.fstEquals(composed, Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE), 0.1,
+                FstUtils.LOG_REPORTER) &&
+                   FstUtils.fstEquals(composed, Compose.composeWithPrecomputed(fstA, precomputed), 0.1,
+                       FstUtils.LOG_REPORTER);
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testComposeEpsilonFree() {
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd(Fst.EPS);
+    for (int i = 0; i < 10; i++) {
+      syms.getOrAdd("s" + i);
+    }
+    Random rand = new Random(0xCAFE);
+    MutableFst fstA = randomEpsilonFree(rand, syms, 30, 4);
+    MutableFst fstB = randomEpsilonFree(rand, syms, 20, 8);
+    assertTrue(Compose.composeLazy(fstA, fstB, TropicalSemiring.INSTANCE).isEpsilonFree());
+
+    // the same fst2 but with an (unreachable) input epsilon so it goes through the filter
+    MutableFst fstBWithEps = MutableFst.copyFrom(fstB);
+    MutableState unreachable = fstBWithEps.newState();
+    fstBWithEps.addArc(unreachable, Fst.EPS, "s1", fstBWithEps.getStartState(), 1.0);
+    assertFalse(Compose.composeLazy(fstA, fstBWithEps, TropicalSemiring.INSTANCE).isEpsilonFree());
+
+    for (boolean sorted : new boolean[]{false, true}) {
+      MutableFst expected = Compose.compose(fstA, fstBWithEps, TropicalSemiring.INSTANCE, sorted);
+      MutableFst actual = Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE, sorted);
+      assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+    }
+  }
+
+  private static MutableFst randomEpsilonFree(Random rand, MutableSymbolTable syms, int states, int arcsPerState) {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(syms),
+        new MutableSymbolTable(syms));
+    fst.newStartState();
+    for (int i = 1; i < states; i++) {
+      fst.newState(rand.nextInt(3) == 0 ? rand.nextDouble() : TropicalSemiring.INSTANCE.zero());
+    }
+    for (int i = 0; i < states; i++) {
+      for (int j = 0; j < arcsPerState; j++) {
+        fst.addArc(fst.getState(i), 1 + rand.nextInt(syms.size() - 1), 1 + rand.nextInt(syms.size() - 1),
+            fst.getState(rand.nextInt(states)), rand.nextDouble());
+      }
+    }
+    return fst;
+  }
 }
@@ -63,4 +63,16 @@ public class ConnectTest {
     assertTrue(FstUtils.fstEquals(fst, connectSaved, FstUtils.LOG_REPORTER));
 
   }
+
+  @Test
+  public void testConnectCopy() {
+    // copies never went through addArc, so this needs the reverse adjacency computed from the arcs
+    MutableFst fst = MutableFst.copyFrom(Convert.importFst("data/tests/algorithms/connect/A",
+                                                           TropicalSemiring.INSTANCE));
+    MutableFst connectSaved = Convert.importFst("data/tests/algorithms/connect/expected",
+                                                TropicalSemiring.INSTANCE);
+    Connect.apply(fst);
+
+    assertTrue(FstUtils.fstEquals(fst, connectSaved, FstUtils.LOG_REPORTER));
+  }
 }
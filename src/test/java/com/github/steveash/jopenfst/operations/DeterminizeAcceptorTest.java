@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.operations.Determinize.DeterminizeMode;
+import com.github.steveash.jopenfst.semiring.LogSemiring;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.FEW_LABELS;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.acyclic;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class DeterminizeAcceptorTest {
+
+  @Test
+  public void shouldMatchGallicConstruction() throws Exception {
+    Random rand = new Random(0xACC);
+    for (int trial = 0; trial < 20; trial++) {
+      MutableFst fst = acyclic(rand, TropicalSemiring.INSTANCE, FEW_LABELS, 12, 3, true, false);
+      assertTrue(FstUtils.isAcceptor(fst));
+      assertFalse(DeterminizeAcceptor.isUnweighted(fst));
+      assertSameAsGallic(fst, DeterminizeMode.FUNCTIONAL);
+      assertSameAsGallic(fst, DeterminizeMode.DISAMBIGUATE);
+      assertSameAsGallic(fst, DeterminizeMode.NON_FUNCTIONAL);
+    }
+  }
+
+  @Test
+  public void shouldMatchGallicConstructionInLogSemiring() throws Exception {
+    Random rand = new Random(0x106);
+    for (int trial = 0; trial < 20; trial++) {
+      MutableFst fst = acyclic(rand, LogSemiring.INSTANCE, FEW_LABELS, 10, 3, true, false);
+      assertSameAsGallic(fst, DeterminizeMode.FUNCTIONAL);
+      assertSameAsGallic(fst, DeterminizeMode.DISAMBIGUATE);
+    }
+    // one plus one isn't one in the log semiring so even unweighted inputs have residuals
+    assertFalse(DeterminizeAcceptor.isUnweighted(acyclic(rand, LogSemiring.INSTANCE, FEW_LABELS, 10, 3, false, false)));
+  }
+
+  @Test
+  public void shouldMatchGallicConstructionUnweighted() throws Exception {
+    Random rand = new Random(0xB175);
+    for (int trial = 0; trial < 20; trial++) {
+      MutableFst fst = acyclic(rand, TropicalSemiring.INSTANCE, FEW_LABELS, 12, 3, false, false);
+      assertTrue(DeterminizeAcceptor.isUnweighted(fst));
+      assertSameAsGallic(fst, DeterminizeMode.FUNCTIONAL);
+    }
+  }
+
+  private static void assertSameAsGallic(MutableFst fst, DeterminizeMode mode) {
+    MutableFst expected = new Determinize(mode).computeWithGallic(fst);
+    MutableFst actual = DeterminizeAcceptor.apply(fst, mode);
+    assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.operations.Determinize.DeterminizeMode;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.FEW_LABELS;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.acyclic;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.arcCount;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.bestWeight;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class DeterminizeFstTest {
+
+  private static final TropicalSemiring RING = TropicalSemiring.INSTANCE;
+
+  @Before
+  public void setUp() throws Exception {
+    Convert.setRegexToSplitOn("\\s+");
+  }
+
+  @Test
+  public void shouldDeterminizeSameAsEager() throws Exception {
+    assertSameAsEager("determinize", DeterminizeMode.FUNCTIONAL);
+    assertSameAsEager("determinizeWikiExample", DeterminizeMode.FUNCTIONAL);
+    assertSameAsEager("determinizeFstDisambiguate", DeterminizeMode.DISAMBIGUATE);
+    assertSameAsEager("determinizeFstNonFunctional", DeterminizeMode.NON_FUNCTIONAL);
+    assertSameAsEager("determinizeFstNonFunctional2", DeterminizeMode.NON_FUNCTIONAL);
+  }
+
+  @Test
+  public void shouldOnlyExpandWhatTheBestPathVisits() throws Exception {
+    MutableFst lattice = acyclic(new Random(0xDE7), RING, FEW_LABELS, 24, 4, true, false);
+    MutableFst eager = Determinize.apply(lattice);
+    DeterminizeFst lazy = Determinize.applyLazy(lattice);
+    assertEquals(1, lazy.getDiscoveredStateCount());
+
+    MutableFst best = NShortestPaths.applyLazy(lazy, 1);
+    assertTrue(lazy.getDiscoveredStateCount() < eager.getStateCount());
+    assertEquals(bestWeight(eager), bestWeight(best), 0.0001);
+  }
+
+  @Test
+  public void shouldReExpandEvictedStates() throws Exception {
+    MutableFst lattice = acyclic(new Random(0xCAC4E), RING, FEW_LABELS, 20, 3, true, false);
+    DeterminizeFst cached = new DeterminizeFst(lattice, DeterminizeMode.FUNCTIONAL, 2);
+    MutableFst expected = new DeterminizeFst(lattice).toMutableFst();
+    // visiting every state (twice) through the tiny cache gives the same arcs as the single pass expansion
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < expected.getStateCount(); i++) {
+        assertEquals(expected.getState(i).getArcCount(), cached.getState(i).getArcCount());
+        for (int j = 0; j < expected.getState(i).getArcCount(); j++) {
+          assertEquals(expected.getState(i).getArc(j).getNextState().getId(),
+              cached.getState(i).getArc(j).getNextState().getId());
+        }
+      }
+    }
+    assertTrue(FstUtils.fstEquals(expected, cached, FstUtils.LOG_REPORTER));
+  }
+
+  private static void assertSameAsEager(String name, DeterminizeMode mode) {
+    MutableFst fstA = Convert.importFst("data/tests/algorithms/" + name + "/A", RING);
+    MutableFst eager = new Determinize(mode).compute(fstA);
+    MutableFst lazy = new DeterminizeFst(fstA, mode).toMutableFst();
+    assertEquals(name, eager.getStateCount(), lazy.getStateCount());
+    assertEquals(name, arcCount(eager), arcCount(lazy));
+    assertEquals(name, bestWeight(eager), bestWeight(lazy), 0.0001);
+  }
+}
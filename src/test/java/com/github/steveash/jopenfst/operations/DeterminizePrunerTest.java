@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.operations.Determinize.DeterminizeMode;
+import com.github.steveash.jopenfst.operations.Determinize.StateLimitMode;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.FEW_LABELS;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.acyclic;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.arcCount;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.bestWeight;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class DeterminizePrunerTest {
+
+  private static final TropicalSemiring RING = TropicalSemiring.INSTANCE;
+
+  @Test
+  public void shouldKeepTheBestPathWithinTheThreshold() throws Exception {
+    MutableFst lattice = acyclic(new Random(0xB3A), RING, FEW_LABELS, 30, 4, true, false);
+    MutableFst full = Determinize.apply(lattice);
+    Determinize pruned = new Determinize(DeterminizeMode.FUNCTIONAL, 0.5, Integer.MAX_VALUE, StateLimitMode.FAIL);
+
+    MutableFst acceptorResult = pruned.compute(lattice);
+    MutableFst gallicResult = pruned.computeWithGallic(lattice);
+    assertTrue(acceptorResult.getStateCount() < full.getStateCount());
+    assertEquals(acceptorResult.getStateCount(), gallicResult.getStateCount());
+    assertEquals(bestWeight(full), bestWeight(acceptorResult), 0.0001);
+    assertEquals(bestWeight(full), bestWeight(gallicResult), 0.0001);
+  }
+
+  @Test
+  public void shouldKeepEverythingWithAHugeThreshold() throws Exception {
+    MutableFst lattice = acyclic(new Random(0xB16), RING, FEW_LABELS, 20, 3, true, false);
+    MutableFst full = Determinize.apply(lattice);
+    MutableFst pruned = new Determinize(DeterminizeMode.FUNCTIONAL, 1000.0, Integer.MAX_VALUE, StateLimitMode.FAIL)
+      .compute(lattice);
+    // states are numbered in best first order so just compare the sizes
+    assertEquals(full.getStateCount(), pruned.getStateCount());
+    assertEquals(arcCount(full), arcCount(pruned));
+    assertEquals(bestWeight(full), bestWeight(pruned), 0.0001);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldFailWhenExceedingTheStateLimit() throws Exception {
+    MutableFst lattice = acyclic(new Random(0xFA1), RING, FEW_LABELS, 20, 3, true, false);
+    new Determinize(DeterminizeMode.FUNCTIONAL, null, 3, StateLimitMode.FAIL).compute(lattice);
+  }
+
+  @Test
+  public void shouldTruncateAtTheStateLimit() throws Exception {
+    MutableFst lattice = acyclic(new Random(0x7C), RING, FEW_LABELS, 20, 3, true, false);
+    Determinize truncating = new Determinize(DeterminizeMode.FUNCTIONAL, null, 5, StateLimitMode.TRUNCATE);
+    MutableFst acceptorResult = truncating.compute(lattice);
+    MutableFst gallicResult = truncating.computeWithGallic(lattice);
+    assertTrue(acceptorResult.getStateCount() <= 5);
+    assertTrue(gallicResult.getStateCount() <= 5);
+    // whatever is left is already trimmed to complete paths
+    MutableFst trimmed = MutableFst.copyFrom(acceptorResult);
+    Connect.apply(trimmed);
+    assertEquals(acceptorResult.getStateCount(), trimmed.getStateCount());
+  }
+
+  @Test
+  public void shouldCountTheStatesThatEmitLeftOverOutputs() throws Exception {
+    MutableFst fst = leftOverOutputTransducer();
+    // {0}, {1/y 2/z}, {3/z}, {4} and one more state to emit the y or z left over at the final states
+    assertEquals(5, Determinize.apply(fst).getStateCount());
+
+    MutableFst truncated = new Determinize(DeterminizeMode.FUNCTIONAL, null, 4, StateLimitMode.TRUNCATE).compute(fst);
+    // only the c:w path doesn't need the fifth state
+    assertEquals(2, truncated.getStateCount());
+    assertEquals(1, arcCount(truncated));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldFailWhenTheLeftOverOutputsExceedTheStateLimit() throws Exception {
+    new Determinize(DeterminizeMode.FUNCTIONAL, null, 4, StateLimitMode.FAIL).compute(leftOverOutputTransducer());
+  }
+
+  @Test(expected = IllegalArgumentException.class, timeout = 5000)
+  public void shouldRejectImprovingWeightsWithAThreshold() throws Exception {
+    MutableFst fst = new MutableFst(RING);
+    fst.getInputSymbols().getOrAdd(Fst.EPS);
+    fst.getOutputSymbols().getOrAdd(Fst.EPS);
+    MutableState start = fst.newStartState();
+    MutableState loop = fst.newState(0.0);
+    fst.addArc(start, "a", "a", loop, 1.0);
+    // a negative cycle would never stop getting better
+    fst.addArc(loop, "b", "b", loop, -1.0);
+    new Determinize(DeterminizeMode.FUNCTIONAL, 0.5, Integer.MAX_VALUE, StateLimitMode.FAIL).compute(fst);
+  }
+
+  // a -> y and a b -> z share the a so their outputs are delayed until the final states; c -> w has no delay
+  private static MutableFst leftOverOutputTransducer() {
+    MutableFst fst = new MutableFst(RING);
+    fst.getInputSymbols().getOrAdd(Fst.EPS);
+    fst.getOutputSymbols().getOrAdd(Fst.EPS);
+    MutableState start = fst.newStartState();
+    MutableState afterB = fst.newState(0.0);
+    MutableState beforeB = fst.newState();
+    fst.addArc(start, "a", "y", fst.newState(0.0), 1.0);
+    fst.addArc(start, "a", "z", beforeB, 1.0);
+    fst.addArc(beforeB, "b", Fst.EPS, afterB, 1.0);
+    fst.addArc(start, "c", "w", fst.newState(0.0), 1.0);
+    return fst;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.semiring.GallicSemiring.GallicWeight;
+import com.github.steveash.jopenfst.semiring.UnionSemiring.UnionWeight;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Steve Ash
+ */
+public class DeterminizeStateTableTest {
+
+  @Test
+  public void shouldInternEqualResiduals() throws Exception {
+    DeterminizeStateTable table = new DeterminizeStateTable();
+    UnionWeight<GallicWeight> first = UnionWeight.createSingle(GallicWeight.createFromGiven(1.5, 3, 4));
+    assertEquals(0, table.internResidual(first));
+    assertEquals(1, table.internResidual(UnionWeight.createSingle(GallicWeight.createEmptyLabels(0.0))));
+    assertEquals(0, table.internResidual(UnionWeight.createSingle(GallicWeight.createFromGiven(1.5, 3, 4))));
+    assertEquals(2, table.internResidual(UnionWeight.createSingle(GallicWeight.createFromGiven(1.5, 4, 3))));
+    assertEquals(3, table.residualCount());
+    assertSame(first, table.residualForId(0));
+  }
+
+  @Test
+  public void shouldFindResidualsWithoutInterning() throws Exception {
+    DeterminizeStateTable table = new DeterminizeStateTable();
+    table.internResidual(UnionWeight.createSingle(GallicWeight.createFromGiven(1.5, 3, 4)));
+    assertEquals(0, table.findResidual(UnionWeight.createSingle(GallicWeight.createFromGiven(1.5, 3, 4))));
+    assertEquals(-1, table.findResidual(UnionWeight.createSingle(GallicWeight.createEmptyLabels(0.0))));
+    assertEquals(1, table.residualCount());
+  }
+
+  @Test
+  public void shouldAssignDenseIdsInDiscoveryOrder() throws Exception {
+    DeterminizeStateTable table = new DeterminizeStateTable();
+    int[] scratch = new int[]{0, 0, 5, 1};
+    assertEquals(0, table.findOrAdd(scratch, 2));
+    assertEquals(1, table.findOrAdd(scratch, 4));
+    scratch[3] = 2;
+    assertEquals(2, table.findOrAdd(scratch, 4));
+    // the table copies the pairs so changing the scratch doesn't change the subsets
+    scratch[3] = 1;
+    assertEquals(1, table.findOrAdd(scratch, 4));
+    assertEquals(0, table.findOrAdd(new int[]{0, 0}, 2));
+    assertEquals(3, table.size());
+
+    assertEquals(1, table.elementCount(0));
+    assertEquals(2, table.elementCount(2));
+    assertEquals(5, table.stateId(2, 1));
+    assertEquals(2, table.residualId(2, 1));
+    assertEquals(0, table.stateId(2, 0));
+  }
+
+  @Test
+  public void shouldGrow() throws Exception {
+    DeterminizeStateTable table = new DeterminizeStateTable();
+    int[] scratch = new int[20];
+    for (int i = 0; i < 1000; i++) {
+      int length = fill(scratch, i);
+      assertEquals(i, table.findOrAdd(scratch, length));
+    }
+    for (int i = 0; i < 1000; i++) {
+      int length = fill(scratch, i);
+      assertEquals(i, table.findOrAdd(scratch, length));
+      assertEquals(length / 2, table.elementCount(i));
+      assertEquals(i, table.residualId(i, 0));
+    }
+    assertEquals(1000, table.size());
+  }
+
+  // subset i has (i % 10) + 1 pairs
+  private static int fill(int[] scratch, int i) {
+    int count = (i % 10) + 1;
+    for (int j = 0; j < count; j++) {
+      scratch[j * 2] = j;
+      scratch[(j * 2) + 1] = i;
+    }
+    return count * 2;
+  }
+}
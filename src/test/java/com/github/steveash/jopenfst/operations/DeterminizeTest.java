@@ -18,7 +18,10 @@
 
 package com.github.steveash.jopenfst.operations;
 
+import com.github.steveash.jopenfst.Fst;
 import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
 import com.github.steveash.jopenfst.io.Convert;
 import com.github.steveash.jopenfst.semiring.TropicalSemiring;
 import org.junit.Before;
@@ -26,6 +29,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -109,4 +113,50 @@ public class DeterminizeTest {
     MutableFst fstDeterminizedMin = new Determinize(Determinize.DeterminizeMode.DISAMBIGUATE).compute(fstA);
     assertTrue(determinizedMin.equals(fstDeterminizedMin));
   }
+
+  @Test
+  public void testQuantizationMergesNoisyResiduals() {
+    MutableFst fst = noisyResidualsFst();
+    // x a and y a reach the same input states with residuals that only differ by floating point noise
+    assertEquals(5, new Determinize().compute(fst).getStateCount());
+    assertEquals(5, new Determinize().computeWithGallic(fst).getStateCount());
+
+    Determinize quantized = new Determinize(Determinize.DeterminizeMode.FUNCTIONAL, 1.0 / 1024.0);
+    assertEquals(4, quantized.compute(fst).getStateCount());
+    assertEquals(4, quantized.computeWithGallic(fst).getStateCount());
+    assertEquals(4, new DeterminizeFst(fst, Determinize.DeterminizeMode.FUNCTIONAL, 1.0 / 1024.0, 10)
+      .toMutableFst().getStateCount());
+  }
+
+  @Test
+  public void testQuantize() {
+    assertEquals(0.30078125, Determinize.quantize(0.4 - 0.1, 1.0 / 256.0), 0.0);
+    assertEquals(0.30078125, Determinize.quantize(0.3, 1.0 / 256.0), 0.0);
+    assertEquals(0.3, Determinize.quantize(0.3, Determinize.NO_QUANTIZATION), 0.0);
+    assertEquals(Double.POSITIVE_INFINITY, Determinize.quantize(Double.POSITIVE_INFINITY, 1.0 / 256.0), 0.0);
+  }
+
+  private static MutableFst noisyResidualsFst() {
+    TropicalSemiring ring = TropicalSemiring.INSTANCE;
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd(Fst.EPS);
+    int x = syms.getOrAdd("x");
+    int y = syms.getOrAdd("y");
+    int a = syms.getOrAdd("a");
+    MutableFst fst = new MutableFst(ring, syms, new MutableSymbolTable(syms));
+    MutableState start = fst.newStartState();
+    start.setFinalWeight(ring.zero());
+    MutableState p = fst.newState(ring.zero());
+    MutableState q = fst.newState(ring.zero());
+    MutableState s1 = fst.newState(ring.one());
+    MutableState s2 = fst.newState(ring.one());
+    fst.addArc(start, x, x, p, 0.0);
+    fst.addArc(start, y, y, q, 0.0);
+    // the residual of s2 is 0.4 - 0.1 after x a but 0.3 after y a
+    fst.addArc(p, a, a, s1, 0.1);
+    fst.addArc(p, a, a, s2, 0.4);
+    fst.addArc(q, a, a, s1, 0.0);
+    fst.addArc(q, a, a, s2, 0.3);
+    return fst;
+  }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.acyclic;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.paths;
+import static com.github.steveash.jopenfst.operations.RandomAcceptors.symbols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class IntersectTest {
+
+  private static final Semiring RING = TropicalSemiring.INSTANCE;
+
+  @Test
+  public void shouldIntersectDictionaryWithPattern() throws Exception {
+    MutableFst dictionary = new MutableFst(RING);
+    dictionary.getInputSymbols().getOrAdd(Fst.EPS);
+    dictionary.getOutputSymbols().getOrAdd(Fst.EPS);
+    MutableState start = dictionary.newStartState();
+    for (String word : new String[]{"cat", "car", "cart", "dog", "cab"}) {
+      MutableState last = start;
+      for (int i = 0; i < word.length(); i++) {
+        MutableState next = dictionary.newState();
+        String c = word.substring(i, i + 1);
+        dictionary.addArc(last, c, c, next, 1.0);
+        last = next;
+      }
+      last.setFinalWeight(0.0);
+    }
+    // c a then anything but t
+    MutableFst pattern = new MutableFst(RING, new MutableSymbolTable(dictionary.getInputSymbols()),
+        new MutableSymbolTable(dictionary.getInputSymbols()));
+    MutableState p0 = pattern.newStartState();
+    MutableState p1 = pattern.newState();
+    MutableState p2 = pattern.newState();
+    MutableState p3 = pattern.newState(0.0);
+    pattern.addArc(p0, "c", "c", p1, 0.0);
+    pattern.addArc(p1, "a", "a", p2, 0.0);
+    for (String c : new String[]{"b", "r"}) {
+      pattern.addArc(p2, c, c, p3, 0.5);
+    }
+    pattern.addArc(p3, "t", "t", p3, 0.0);
+
+    MutableFst result = Intersect.apply(dictionary, pattern, RING);
+    assertEquals(Lists.newArrayList("cab / 3.500", "car / 3.500", "cart / 4.500"), paths(result));
+  }
+
+  @Test
+  public void shouldIntersectSameAsCompose() throws Exception {
+    MutableSymbolTable syms = symbols("s", 4);
+    Random rand = new Random(0xACCE);
+    int nonEmpty = 0;
+    int expectedStates = 0;
+    int actualStates = 0;
+    for (int trial = 0; trial < 20; trial++) {
+      MutableFst fst1 = acyclic(rand, RING, syms, 8, 3, true, true);
+      MutableFst fst2 = acyclic(rand, RING, syms, 8, 3, true, true);
+      assertTrue(FstUtils.isAcceptor(fst1));
+
+      MutableFst expected = Compose.compose(fst1, fst2, RING);
+      MutableFst actual = Intersect.apply(fst1, fst2, RING);
+      // both filters allow exactly one path per pair of matching paths, so the paths are the same
+      assertEquals(paths(expected), paths(actual));
+      expectedStates += expected.getStateCount();
+      actualStates += actual.getStateCount();
+      if (!paths(actual).isEmpty()) {
+        nonEmpty += 1;
+      }
+    }
+    assertTrue(nonEmpty >= 5);
+    // the sequence filter can make an extra state for some inputs but it makes fewer overall
+    assertTrue(actualStates < expectedStates);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectTransducers() throws Exception {
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd(Fst.EPS);
+    syms.getOrAdd("a");
+    syms.getOrAdd("b");
+    MutableFst fst = new MutableFst(RING, syms, new MutableSymbolTable(syms));
+    MutableState start = fst.newStartState();
+    fst.addArc(start, "a", "b", fst.newState(0.0), 0.0);
+    assertFalse(FstUtils.isAcceptor(fst));
+    Intersect.apply(fst, fst, RING);
+  }
+}
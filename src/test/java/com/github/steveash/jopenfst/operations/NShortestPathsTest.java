@@ -19,11 +19,14 @@ package com.github.steveash.jopenfst.operations;
 
 import com.github.steveash.jopenfst.Fst;
 import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
 import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.semiring.LogSemiring;
 import com.github.steveash.jopenfst.semiring.TropicalSemiring;
 import com.github.steveash.jopenfst.utils.FstUtils;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -42,4 +45,42 @@ public class NShortestPathsTest {
 //    Convert.export(fstNsp, "shortest-export");
     assertTrue(FstUtils.fstEquals(nsp, fstNsp, FstUtils.LOG_REPORTER));
   }
+
+  @Test
+  public void shouldUseTheShortestDistanceForDelayedFstsToo() throws Exception {
+    // the negative weight on the second arc of b c means that the best first search alone would stop at a
+    DeterminizeFst lazy = new DeterminizeFst(negativeWeightFst(2.0));
+    MutableFst best = NShortestPaths.apply(lazy, 1);
+    Connect.apply(best);
+    MutableState state = best.getStartState();
+    assertEquals("b", best.getInputSymbols().invert().keyForId(state.getArc(0).getIlabel()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectImprovingWeightsLazily() throws Exception {
+    // b is expanded first so the search visits the negative weight
+    NShortestPaths.applyLazy(new DeterminizeFst(negativeWeightFst(0.0)), 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectSemiringsWithoutThePathPropertyLazily() throws Exception {
+    MutableFst fst = new MutableFst(LogSemiring.INSTANCE);
+    fst.setStart(fst.newState(LogSemiring.INSTANCE.one()));
+    NShortestPaths.applyLazy(fst, 1);
+  }
+
+  private static MutableFst negativeWeightFst(double bWeight) {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE);
+    fst.getInputSymbols().getOrAdd(Fst.EPS);
+    fst.getOutputSymbols().getOrAdd(Fst.EPS);
+    MutableState start = fst.newStartState();
+    start.setFinalWeight(TropicalSemiring.INSTANCE.zero());
+    MutableState a = fst.newState(0.0);
+    MutableState b = fst.newState(TropicalSemiring.INSTANCE.zero());
+    MutableState c = fst.newState(0.0);
+    fst.addArc(start, "a", "a", a, 1.0);
+    fst.addArc(start, "b", "b", b, bWeight);
+    fst.addArc(b, "c", "c", c, -5.0);
+    return fst;
+  }
 }
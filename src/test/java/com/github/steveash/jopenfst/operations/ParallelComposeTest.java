@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import com.github.steveash.jopenfst.utils.FstUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class ParallelComposeTest {
+
+  private static ForkJoinPool pool;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    pool = new ForkJoinPool(4);
+  }
+
+  @AfterClass
+  public static void tearDown() throws Exception {
+    pool.shutdown();
+  }
+
+  @Test
+  public void shouldComposeSameAsSequential() throws Exception {
+    for (String dir : new String[]{"compose", "compose2", "composeeps"}) {
+      MutableFst fstA = Convert.importFst("data/tests/algorithms/" + dir + "/A", TropicalSemiring.INSTANCE);
+      MutableFst fstB = Convert.importFst("data/tests/algorithms/" + dir + "/B", TropicalSemiring.INSTANCE);
+      for (boolean sorted : new boolean[]{false, true}) {
+        MutableFst expected = Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE, sorted);
+        MutableFst actual = Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE, sorted, pool);
+        assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+      }
+    }
+  }
+
+  @Test
+  public void shouldComposeBigRandomSameAsSequential() throws Exception {
+    // big enough that the levels are split into many chunks
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd("<eps>");
+    for (int i = 0; i < 20; i++) {
+      syms.getOrAdd("s" + i);
+    }
+    Random rand = new Random(0xF00D);
+    MutableFst fstA = randomFst(rand, syms, 400, 6);
+    MutableFst fstB = randomFst(rand, syms, 50, 30);
+
+    MutableFst expected = Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE);
+    MutableFst actual = Compose.compose(fstA, fstB, TropicalSemiring.INSTANCE, false, pool);
+    assertTrue(expected.getStateCount() > 10 * ParallelCompose.MIN_CHUNK_STATES);
+    assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(fstB, TropicalSemiring.INSTANCE);
+    expected = Compose.composeWithPrecomputed(fstA, precomputed, false, false);
+    actual = Compose.composeWithPrecomputed(fstA, precomputed, false, false, pool);
+    assertTrue(FstUtils.fstEquals(expected, actual, FstUtils.LOG_REPORTER));
+  }
+
+  private static MutableFst randomFst(Random rand, MutableSymbolTable syms, int states, int arcsPerState) {
+    MutableFst fst = new MutableFst(TropicalSemiring.INSTANCE, new MutableSymbolTable(syms),
+        new MutableSymbolTable(syms));
+    fst.newStartState();
+    for (int i = 1; i < states; i++) {
+      fst.newState(rand.nextInt(4) == 0 ? rand.nextDouble() : TropicalSemiring.INSTANCE.zero());
+    }
+    for (int i = 0; i < states; i++) {
+      MutableState state = fst.getState(i);
+      for (int j = 0; j < arcsPerState; j++) {
+        fst.addArc(state, rand.nextInt(syms.size()), rand.nextInt(syms.size()), fst.getState(rand.nextInt(states)),
+            rand.nextDouble());
+      }
+    }
+    return fst;
+  }
+}
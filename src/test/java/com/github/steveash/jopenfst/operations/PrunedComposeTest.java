@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.State;
+import com.github.steveash.jopenfst.io.Convert;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Ash
+ */
+public class PrunedComposeTest {
+
+  private static final Semiring RING = TropicalSemiring.INSTANCE;
+
+  @Test
+  public void shouldComposeSameWithoutLimits() throws Exception {
+    for (String dir : new String[]{"compose", "compose2", "composeeps"}) {
+      MutableFst fstA = Convert.importFst("data/tests/algorithms/" + dir + "/A", RING);
+      MutableFst fstB = Convert.importFst("data/tests/algorithms/" + dir + "/B", RING);
+      MutableFst expected = Compose.compose(fstA, fstB, RING);
+      MutableFst actual = Compose.composePruned(fstA, fstB, RING, RING.zero(), Integer.MAX_VALUE, Integer.MAX_VALUE);
+      assertEquals(dir, expected.getStateCount(), actual.getStateCount());
+      assertEquals(dir, arcCount(expected), arcCount(actual));
+      assertEquals(dir, bestWeight(expected), bestWeight(actual), 0.0001);
+    }
+  }
+
+  @Test
+  public void shouldKeepBestPathWithinBeam() throws Exception {
+    MutableSymbolTable syms = symbols();
+    Random rand = new Random(0xBEEF);
+    // a linear outer and a dense inner, so the beam is across the product states at each position of the input
+    MutableFst outer = new MutableFst(RING, new MutableSymbolTable(syms), new MutableSymbolTable(syms));
+    MutableState last = outer.newStartState();
+    for (int i = 0; i < 12; i++) {
+      MutableState next = outer.newState();
+      int label = 1 + rand.nextInt(syms.size() - 1);
+      outer.addArc(last, label, label, next, 0.0);
+      last = next;
+    }
+    last.setFinalWeight(0.0);
+    MutableFst inner = randomFst(rand, syms, 40, 20);
+
+    MutableFst full = Compose.compose(outer, inner, RING);
+    MutableFst pruned = Compose.composePruned(outer, inner, RING, 1.5, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    MutableFst wider = Compose.composePruned(outer, inner, RING, 3.0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    assertTrue(pruned.getStateCount() < wider.getStateCount());
+    assertTrue(wider.getStateCount() < full.getStateCount());
+    assertEquals(bestWeight(full), bestWeight(pruned), 0.0001);
+
+    PrecomputedComposeFst precomputed = Compose.precomputeInner(inner, RING);
+    MutableFst precomputedPruned = Compose.composeWithPrecomputedPruned(outer, precomputed, 1.5, Integer.MAX_VALUE,
+        Integer.MAX_VALUE);
+    assertEquals(pruned.getStateCount(), precomputedPruned.getStateCount());
+    assertEquals(bestWeight(full), bestWeight(precomputedPruned), 0.0001);
+  }
+
+  @Test
+  public void shouldStopAtLimits() throws Exception {
+    MutableSymbolTable syms = symbols();
+    Random rand = new Random(0xF00D);
+    MutableFst fstA = randomFst(rand, syms, 200, 6);
+    MutableFst fstB = randomFst(rand, syms, 50, 30);
+    MutableFst full = Compose.compose(fstA, fstB, RING);
+    assertTrue(full.getStateCount() > 1000);
+
+    MutableFst capped = Compose.composePruned(fstA, fstB, RING, RING.zero(), 100, Integer.MAX_VALUE);
+    assertTrue(capped.getStateCount() <= 100);
+    // some path is still found, but since the cap cuts off the frontier it isn't necessarily the best one
+    double cappedBest = bestWeight(capped);
+    assertTrue(RING.isNotZero(cappedBest));
+    assertTrue(!RING.naturalLess(cappedBest, bestWeight(full)));
+
+    MutableFst arcCapped = Compose.composePruned(fstA, fstB, RING, RING.zero(), Integer.MAX_VALUE, 500);
+    assertTrue(arcCount(arcCapped) <= 500);
+
+    MutableFst none = Compose.composePruned(fstA, fstB, RING, RING.zero(), Integer.MAX_VALUE, 0);
+    assertEquals(0, arcCount(none));
+  }
+
+  private static MutableSymbolTable symbols() {
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd(Fst.EPS);
+    for (int i = 0; i < 20; i++) {
+      syms.getOrAdd("s" + i);
+    }
+    return syms;
+  }
+
+  private static int arcCount(Fst fst) {
+    int count = 0;
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      count += fst.getState(i).getArcCount();
+    }
+    return count;
+  }
+
+  // the n-best result with n = 1 is a single path
+  private static double bestWeight(Fst fst) {
+    MutableFst best = NShortestPaths.apply(fst, 1);
+    double weight = RING.one();
+    State state = best.getStartState();
+    while (state.getArcCount() > 0) {
+      weight = RING.times(weight, state.getArc(0).getWeight());
+      state = state.getArc(0).getNextState();
+    }
+    return RING.times(weight, state.getFinalWeight());
+  }
+
+  private static MutableFst randomFst(Random rand, MutableSymbolTable syms, int states, int arcsPerState) {
+    MutableFst fst = new MutableFst(RING, new MutableSymbolTable(syms), new MutableSymbolTable(syms));
+    fst.newStartState();
+    for (int i = 1; i < states; i++) {
+      fst.newState(rand.nextInt(4) == 0 ? rand.nextDouble() : RING.zero());
+    }
+    for (int i = 0; i < states; i++) {
+      MutableState state = fst.getState(i);
+      for (int j = 0; j < arcsPerState; j++) {
+        fst.addArc(state, rand.nextInt(syms.size()), rand.nextInt(syms.size()), fst.getState(rand.nextInt(states)),
+            rand.nextDouble());
+      }
+    }
+    return fst;
+  }
+}
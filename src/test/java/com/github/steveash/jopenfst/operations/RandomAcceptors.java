@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Steve Ash
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.github.steveash.jopenfst.operations;
+
+import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.ImmutableSymbolTable;
+import com.github.steveash.jopenfst.MutableFst;
+import com.github.steveash.jopenfst.MutableState;
+import com.github.steveash.jopenfst.MutableSymbolTable;
+import com.github.steveash.jopenfst.State;
+import com.github.steveash.jopenfst.SymbolTable;
+import com.github.steveash.jopenfst.semiring.Semiring;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random acyclic acceptors for the operation tests and helpers to compare the results by their paths
+ *
+ * @author Steve Ash
+ */
+class RandomAcceptors {
+
+  // few labels so lots of states share prefixes (and lots of determinized subsets have more than one state)
+  static final SymbolTable FEW_LABELS = new ImmutableSymbolTable(symbols("w", 3));
+
+  /**
+   * Returns a symbol table with epsilon and `count` symbols named prefix0, prefix1, ...
+   */
+  static MutableSymbolTable symbols(String prefix, int count) {
+    MutableSymbolTable syms = new MutableSymbolTable();
+    syms.getOrAdd(Fst.EPS);
+    for (int i = 0; i < count; i++) {
+      syms.getOrAdd(prefix + i);
+    }
+    return syms;
+  }
+
+  /**
+   * Returns an acyclic acceptor over the given symbols; with few symbols lots of states share prefixes. Every arc goes
+   * at most four states forward and the last state is always final
+   * @param weighted if false every arc and final weight is one
+   * @param epsilons if false no arc is labelled with epsilon
+   */
+  static MutableFst acyclic(Random rand, Semiring semiring, SymbolTable syms, int states, int arcsPerState,
+                            boolean weighted, boolean epsilons) {
+    MutableFst fst = new MutableFst(semiring, new MutableSymbolTable(syms), new MutableSymbolTable(syms));
+    fst.newStartState().setFinalWeight(semiring.zero());
+    for (int i = 1; i < states; i++) {
+      boolean isFinal = (i == states - 1 || rand.nextInt(4) == 0);
+      double finalWeight = (weighted ? rand.nextInt(4) * 0.5 : semiring.one());
+      fst.newState(isFinal ? finalWeight : semiring.zero());
+    }
+    int firstLabel = (epsilons ? 0 : 1);
+    for (int i = 0; i < states - 1; i++) {
+      MutableState state = fst.getState(i);
+      for (int j = 0; j < arcsPerState; j++) {
+        int label = firstLabel + rand.nextInt(syms.size() - firstLabel);
+        int next = i + 1 + rand.nextInt(Math.min(4, states - i - 1));
+        fst.addArc(state, label, label, fst.getState(next), weighted ? rand.nextInt(8) * 0.25 : semiring.one());
+      }
+    }
+    return fst;
+  }
+
+  /**
+   * Returns every path of the (acyclic) fst as "input labels / weight", sorted
+   */
+  static List<String> paths(Fst fst) {
+    List<String> results = Lists.newArrayList();
+    if (fst.getStartState() != null) {
+      addPaths(fst, fst.getStartState(), "", fst.getSemiring().one(), results);
+    }
+    Collections.sort(results);
+    return results;
+  }
+
+  private static void addPaths(Fst fst, State state, String prefix, double weight, List<String> results) {
+    Semiring semiring = fst.getSemiring();
+    if (semiring.isNotZero(state.getFinalWeight())) {
+      results.add(prefix + " / " + String.format("%.3f", semiring.times(weight, state.getFinalWeight())));
+    }
+    for (Arc arc : state.getArcs()) {
+      String in = fst.getInputSymbols().invert().keyForId(arc.getIlabel());
+      String step = (in.equals(Fst.EPS) ? "" : in);
+      addPaths(fst, arc.getNextState(), prefix + step, semiring.times(weight, arc.getWeight()), results);
+    }
+  }
+
+  /**
+   * Returns the weight of the shortest path of the fst
+   */
+  static double bestWeight(Fst fst) {
+    Semiring semiring = fst.getSemiring();
+    // the n-best result with n = 1 is a single path once the dead ends of the search are trimmed, but every step of
+    // it keeps all of the parallel arcs between its two states, so take the best of those
+    MutableFst best = NShortestPaths.apply(fst, 1);
+    Connect.apply(best);
+    double weight = semiring.one();
+    MutableState state = best.getStartState();
+    while (state.getArcCount() > 0) {
+      double step = semiring.zero();
+      for (Arc arc : state.getArcs()) {
+        step = semiring.plus(step, arc.getWeight());
+      }
+      weight = semiring.times(weight, step);
+      state = state.getArc(0).getNextState();
+    }
+    return semiring.times(weight, state.getFinalWeight());
+  }
+
+  static int arcCount(Fst fst) {
+    int count = 0;
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      count += fst.getState(i).getArcCount();
+    }
+    return count;
+  }
+}